@@ -0,0 +1,58 @@
+package com.kwanii.chat;
+
+import java.io.IOException;
+
+/**
+ * A packet sent to many users. It is encoded at most once for each wire
+ * format and every connection writes the same bytes, so sending to a room
+ * costs one encoding instead of one for each member.
+ *
+ * The frames must not be modified once they are encoded.
+ */
+public class EncodedPacket
+{
+    final private Packet packet;
+
+    // frames by format, encoded on first use
+    private volatile byte[] serialized;
+
+    private volatile byte[] binary;
+
+    public EncodedPacket(Packet packet)
+    {
+        this.packet = packet;
+    }
+
+    public Packet getPacket()
+    {
+        return packet;
+    }
+
+    /**
+     * Gets the frame in the format, encoding it if it's the first time.
+     * Two threads may both encode it, the frames are equal.
+     *
+     * @param format wire format of the connection
+     * @return encoded packet shared by all connections
+     * @throws IOException if the packet can't be serialized
+     */
+    public byte[] getFrame(WireFormat format) throws IOException
+    {
+        if (format == WireFormat.BINARY)
+        {
+            byte[] frame = binary;
+
+            if (frame == null)
+                binary = frame = format.encode(packet);
+
+            return frame;
+        }
+
+        byte[] frame = serialized;
+
+        if (frame == null)
+            serialized = frame = format.encode(packet);
+
+        return frame;
+    }
+}
@@ -0,0 +1,122 @@
+package com.kwanii.chat;
+
+import java.io.StreamCorruptedException;
+
+/**
+ * Wire format negotiation when a client connects.
+ *
+ * A client that can speak other formats starts with a hello:
+ *   int magic, byte version, byte preferred format
+ * and the server answers:
+ *   int magic, byte chosen format
+ *
+ * Old clients start with the object stream header (0xACED) instead and
+ * get java serialization without a handshake.
+ */
+public class Handshake
+{
+    // "KWCH"
+    final public static int MAGIC = 0x4B574348;
+
+    final public static byte VERSION = 1;
+
+    final public static int HELLO_SIZE = Integer.BYTES + 2;
+
+    final public static int RESPONSE_SIZE = Integer.BYTES + 1;
+
+    // first bytes of an object stream, ObjectStreamConstants.STREAM_MAGIC
+    final private static int STREAM_MAGIC = 0xACED;
+
+    /**
+     * Creates the hello a client sends first
+     *
+     * @param preferred format the client wants
+     * @return hello bytes
+     */
+    public static byte[] hello(WireFormat preferred)
+    {
+        byte[] hello = new byte[HELLO_SIZE];
+
+        putMagic(hello);
+        hello[4] = VERSION;
+        hello[5] = preferred.getId();
+
+        return hello;
+    }
+
+    /**
+     * Creates the server's answer to a hello
+     *
+     * @param chosen format both sides use from now on
+     * @return response bytes
+     */
+    public static byte[] response(WireFormat chosen)
+    {
+        byte[] response = new byte[RESPONSE_SIZE];
+
+        putMagic(response);
+        response[4] = chosen.getId();
+
+        return response;
+    }
+
+    /**
+     * Checks the first two bytes from the peer
+     *
+     * @return true if the peer started an object stream without a handshake
+     */
+    public static boolean isObjectStream(byte first, byte second)
+    {
+        return ((first & 0xff) << 8 | (second & 0xff)) == STREAM_MAGIC;
+    }
+
+    /**
+     * Reads the format from a hello or a response
+     *
+     * @param buf bytes received
+     * @param offset position of the magic number
+     * @param formatOffset position of the format id from the magic number
+     * @return the format
+     * @throws StreamCorruptedException if the magic number doesn't match
+     */
+    public static WireFormat readFormat(byte[] buf, int offset,
+                                        int formatOffset)
+        throws StreamCorruptedException
+    {
+        int magic = ((buf[offset] & 0xff) << 24)
+            | ((buf[offset + 1] & 0xff) << 16)
+            | ((buf[offset + 2] & 0xff) << 8)
+            | (buf[offset + 3] & 0xff);
+
+        if (magic != MAGIC)
+            throw new StreamCorruptedException("Invalid handshake");
+
+        return WireFormat.valueOf(buf[offset + formatOffset]);
+    }
+
+    /**
+     * Reads the preferred format from a client hello
+     */
+    public static WireFormat readHello(byte[] buf, int offset)
+        throws StreamCorruptedException
+    {
+        return readFormat(buf, offset, HELLO_SIZE - 1);
+    }
+
+    /**
+     * Reads the chosen format from a server response
+     */
+    public static WireFormat readResponse(byte[] buf, int offset)
+        throws StreamCorruptedException
+    {
+        return readFormat(buf, offset, RESPONSE_SIZE - 1);
+    }
+
+    private static void putMagic(byte[] buf)
+    {
+        buf[0] = (byte) (MAGIC >>> 24);
+        buf[1] = (byte) (MAGIC >>> 16);
+        buf[2] = (byte) (MAGIC >>> 8);
+        buf[3] = (byte) MAGIC;
+    }
+}
@@ -0,0 +1,19 @@
+package com.kwanii.chat;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a parameter, field or return value that may be null.
+ * It only documents the code, nothing checks it.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD,
+    ElementType.LOCAL_VARIABLE})
+public @interface Nullable
+{
+}
@@ -22,13 +22,13 @@ public class Packet implements Serializable
     // logout
     final public static short LOGOUT = 0x05;
 
-    // accept connection
+    // accept connection, the message has the resumption token if any
     final public static short ACCEPT_LOGIN = 0x06;
 
     // reject connection
     final public static short REJECT_LOGIN = 0x07;
 
-    // update user list
+    // full user list with the presence version it reflects
     final public static short UPDATE_LIST = 0x08;
 
     // for message
@@ -58,6 +58,18 @@ public class Packet implements Serializable
     // to update room status
     final public static short ROOM_STATUS = 0x11;
 
+    // users logged in since the previous presence version
+    final public static short USER_JOINED = 0x12;
+
+    // users logged out since the previous presence version
+    final public static short USER_LEFT = 0x13;
+
+    // ask for a full user list when presence versions have a gap
+    final public static short REQUEST_LIST = 0x14;
+
+    // log in again after reconnecting, the password is the resumption token
+    final public static short RESUME = 0x15;
+
     // used for sender and receiver
     final public static String SERVER = "server";
 
@@ -82,6 +94,11 @@ public class Packet implements Serializable
     // room id
     final private String roomId;
 
+    // presence version for user lists, 0 if not used
+    final private long version;
+
+    // time to wait before trying again (ms) when the server is busy, 0 if not
+    final private long retryAfter;
 
     private Packet(Builder builder) {
         type = builder._type;
@@ -91,6 +108,8 @@ public class Packet implements Serializable
         receiver = builder._receiver;
         roomId = builder._roomId;
         password = builder._password;
+        version = builder._version;
+        retryAfter = builder._retryAfter;
     }
 
 
@@ -129,6 +148,16 @@ public class Packet implements Serializable
         return roomId;
     }
 
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public long getRetryAfter()
+    {
+        return retryAfter;
+    }
+
 
 
     // Packet Builder
@@ -141,6 +170,8 @@ public class Packet implements Serializable
         private String _receiver;
         private String _password;
         private String _roomId;
+        private long _version;
+        private long _retryAfter;
 
         public Builder() {}
 
@@ -192,6 +223,18 @@ public class Packet implements Serializable
             return this;
         }
 
+        public Builder setVersion(long version)
+        {
+            _version = version;
+            return this;
+        }
+
+        public Builder setRetryAfter(long retryAfter)
+        {
+            _retryAfter = retryAfter;
+            return this;
+        }
+
         public Packet build()
         {
             return new Packet(this);
@@ -0,0 +1,434 @@
+package com.kwanii.chat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+
+/**
+ * Binary wire format of Packet.
+ *
+ * frame:  int length of the rest of the frame
+ *         short type
+ *         byte presence bits, one for each field that is not null
+ *         fields in the order of the bits
+ *
+ * string: varint length of UTF-8 bytes, UTF-8 bytes
+ * list:   varint count, strings
+ * number: varint
+ *
+ * A one word message from a user takes about 20 bytes instead of the
+ * hundreds java serialization writes for the class descriptors.
+ */
+public class PacketCodec
+{
+    // the largest frame accepted, the length prefix is not included
+    final public static int MAX_FRAME_SIZE = 1024 * 1024;
+
+    // size of the length prefix
+    final public static int LENGTH_SIZE = Integer.BYTES;
+
+    // presence bits
+    final private static int SENDER = 1;
+
+    final private static int RECEIVER = 1 << 1;
+
+    final private static int MESSAGE = 1 << 2;
+
+    final private static int USER_LIST = 1 << 3;
+
+    final private static int PASSWORD = 1 << 4;
+
+    final private static int ROOM_ID = 1 << 5;
+
+    final private static int VERSION = 1 << 6;
+
+    final private static int RETRY_AFTER = 1 << 7;
+
+    // type and presence bits
+    final private static int HEADER_SIZE = Short.BYTES + 1;
+
+    /**
+     * Encodes the packet to a frame with its length prefix.
+     * The array is exactly the size of the frame.
+     *
+     * @param packet packet to encode
+     * @return encoded frame
+     */
+    public static byte[] encode(Packet packet)
+    {
+        int bits = 0;
+        int size = HEADER_SIZE;
+
+        if (packet.getSender() != null)
+        {
+            bits |= SENDER;
+            size += sizeOf(packet.getSender());
+        }
+        if (packet.getReceiver() != null)
+        {
+            bits |= RECEIVER;
+            size += sizeOf(packet.getReceiver());
+        }
+        if (packet.getMessage() != null)
+        {
+            bits |= MESSAGE;
+            size += sizeOf(packet.getMessage());
+        }
+        if (packet.getUserList() != null)
+        {
+            bits |= USER_LIST;
+            size += varIntSize(packet.getUserList().size());
+
+            for (String user: packet.getUserList())
+                size += sizeOf(user);
+        }
+        if (packet.getPassword() != null)
+        {
+            bits |= PASSWORD;
+            size += sizeOf(packet.getPassword());
+        }
+        if (packet.getRoomId() != null)
+        {
+            bits |= ROOM_ID;
+            size += sizeOf(packet.getRoomId());
+        }
+        if (packet.getVersion() != 0)
+        {
+            bits |= VERSION;
+            size += varLongSize(packet.getVersion());
+        }
+        if (packet.getRetryAfter() != 0)
+        {
+            bits |= RETRY_AFTER;
+            size += varLongSize(packet.getRetryAfter());
+        }
+
+        byte[] frame = new byte[LENGTH_SIZE + size];
+
+        int pos = putInt(frame, 0, size);
+        frame[pos++] = (byte) (packet.getType() >>> 8);
+        frame[pos++] = (byte) packet.getType();
+        frame[pos++] = (byte) bits;
+
+        if ((bits & SENDER) != 0)
+            pos = putString(frame, pos, packet.getSender());
+        if ((bits & RECEIVER) != 0)
+            pos = putString(frame, pos, packet.getReceiver());
+        if ((bits & MESSAGE) != 0)
+            pos = putString(frame, pos, packet.getMessage());
+        if ((bits & USER_LIST) != 0)
+        {
+            pos = putVarInt(frame, pos, packet.getUserList().size());
+
+            for (String user: packet.getUserList())
+                pos = putString(frame, pos, user);
+        }
+        if ((bits & PASSWORD) != 0)
+            pos = putString(frame, pos, packet.getPassword());
+        if ((bits & ROOM_ID) != 0)
+            pos = putString(frame, pos, packet.getRoomId());
+        if ((bits & VERSION) != 0)
+            pos = putVarLong(frame, pos, packet.getVersion());
+        if ((bits & RETRY_AFTER) != 0)
+            putVarLong(frame, pos, packet.getRetryAfter());
+
+        return frame;
+    }
+
+    /**
+     * Reads the length prefix of a frame
+     *
+     * @param buf bytes received
+     * @param offset position of the frame
+     * @return the length of the frame without the prefix
+     * @throws StreamCorruptedException if the length is out of range
+     */
+    public static int frameLength(byte[] buf, int offset)
+        throws StreamCorruptedException
+    {
+        int length = ((buf[offset] & 0xff) << 24)
+            | ((buf[offset + 1] & 0xff) << 16)
+            | ((buf[offset + 2] & 0xff) << 8)
+            | (buf[offset + 3] & 0xff);
+
+        if (length < HEADER_SIZE || length > MAX_FRAME_SIZE)
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+
+        return length;
+    }
+
+    /**
+     * Blocks until a whole frame is read and decodes it
+     *
+     * @param input stream to read
+     * @return decoded packet
+     * @throws IOException if the stream is closed or the frame is invalid
+     */
+    public static Packet read(DataInputStream input) throws IOException
+    {
+        byte[] prefix = new byte[LENGTH_SIZE];
+        input.readFully(prefix);
+
+        byte[] frame = new byte[frameLength(prefix, 0)];
+        input.readFully(frame);
+
+        return decode(frame, 0, frame.length);
+    }
+
+    /**
+     * Decodes a frame without its length prefix
+     *
+     * @param buf bytes received
+     * @param offset position after the length prefix
+     * @param length frame length
+     * @return decoded packet
+     * @throws StreamCorruptedException if the frame is invalid
+     */
+    public static Packet decode(byte[] buf, int offset, int length)
+        throws StreamCorruptedException
+    {
+        Reader reader = new Reader(buf, offset, offset + length);
+
+        short type = (short) ((reader.readByte() << 8) | reader.readByte());
+        int bits = reader.readByte();
+
+        Packet.Builder builder = new Packet.Builder(type);
+
+        if ((bits & SENDER) != 0)
+            builder.setSender(reader.readString());
+        if ((bits & RECEIVER) != 0)
+            builder.setReceiver(reader.readString());
+        if ((bits & MESSAGE) != 0)
+            builder.setMessage(reader.readString());
+        if ((bits & USER_LIST) != 0)
+        {
+            int count = reader.readVarInt();
+
+            HashSet<String> userList =
+                new HashSet<>(Math.max(16, (int) (count / 0.75f) + 1));
+
+            for (int i = 0; i < count; i++)
+                userList.add(reader.readString());
+
+            builder.setUserList(userList);
+        }
+        if ((bits & PASSWORD) != 0)
+            builder.setPassword(reader.readString());
+        if ((bits & ROOM_ID) != 0)
+            builder.setRoomId(reader.readString());
+        if ((bits & VERSION) != 0)
+            builder.setVersion(reader.readVarLong());
+        if ((bits & RETRY_AFTER) != 0)
+            builder.setRetryAfter(reader.readVarLong());
+
+        if (reader.pos != reader.end)
+            throw new StreamCorruptedException("Unexpected bytes in the frame");
+
+        return builder.build();
+    }
+
+    // the size of the string with its length
+    private static int sizeOf(String value)
+    {
+        int length = utf8Length(value);
+        return varIntSize(length) + length;
+    }
+
+    private static int utf8Length(String value)
+    {
+        int length = 0;
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            if (c < 0x80)
+                length++;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                length += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c))
+                length++;
+            else
+                length += 3;
+        }
+
+        return length;
+    }
+
+    private static int varIntSize(int value)
+    {
+        int size = 1;
+
+        while ((value >>>= 7) != 0)
+            size++;
+
+        return size;
+    }
+
+    private static int varLongSize(long value)
+    {
+        int size = 1;
+
+        while ((value >>>= 7) != 0)
+            size++;
+
+        return size;
+    }
+
+    private static int putInt(byte[] buf, int pos, int value)
+    {
+        buf[pos] = (byte) (value >>> 24);
+        buf[pos + 1] = (byte) (value >>> 16);
+        buf[pos + 2] = (byte) (value >>> 8);
+        buf[pos + 3] = (byte) value;
+
+        return pos + 4;
+    }
+
+    private static int putVarInt(byte[] buf, int pos, int value)
+    {
+        while ((value & ~0x7f) != 0)
+        {
+            buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int putVarLong(byte[] buf, int pos, long value)
+    {
+        while ((value & ~0x7fL) != 0)
+        {
+            buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int putString(byte[] buf, int pos, String value)
+    {
+        pos = putVarInt(buf, pos, utf8Length(value));
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            if (c < 0x80)
+                buf[pos++] = (byte) c;
+            else if (c < 0x800)
+            {
+                buf[pos++] = (byte) (0xc0 | (c >>> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+
+                buf[pos++] = (byte) (0xf0 | (codePoint >>> 18));
+                buf[pos++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+            // unpaired surrogate, same as String.getBytes()
+            else if (Character.isSurrogate(c))
+                buf[pos++] = (byte) '?';
+            else
+            {
+                buf[pos++] = (byte) (0xe0 | (c >>> 12));
+                buf[pos++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        return pos;
+    }
+
+    /**
+     * Reads fields of a frame and checks its bounds
+     */
+    private static class Reader
+    {
+        final private byte[] buf;
+
+        final private int end;
+
+        private int pos;
+
+        Reader(byte[] buf, int pos, int end)
+        {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        int readByte() throws StreamCorruptedException
+        {
+            if (pos >= end)
+                throw new StreamCorruptedException("Frame is too short");
+
+            return buf[pos++] & 0xff;
+        }
+
+        int readVarInt() throws StreamCorruptedException
+        {
+            int value = 0;
+
+            for (int shift = 0; shift < 32; shift += 7)
+            {
+                int b = readByte();
+                value |= (b & 0x7f) << shift;
+
+                if ((b & 0x80) == 0)
+                {
+                    if (value < 0 || value > end - pos)
+                        throw new StreamCorruptedException(
+                            "Invalid length: " + value);
+
+                    return value;
+                }
+            }
+
+            throw new StreamCorruptedException("Invalid varint");
+        }
+
+        long readVarLong() throws StreamCorruptedException
+        {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7)
+            {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+
+            throw new StreamCorruptedException("Invalid varint");
+        }
+
+        String readString() throws StreamCorruptedException
+        {
+            int length = readVarInt();
+
+            String value =
+                new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+
+            return value;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.kwanii.chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Reads and writes packets over socket streams in the negotiated format.
+ * Used by the client and the blocking server transport.
+ * Writers must not call it concurrently.
+ *
+ * Every packet is written as a frame from WireFormat.encode, so frames
+ * encoded on other threads can be written as they are.
+ */
+public class PacketStream
+{
+    final private WireFormat format;
+
+    final private OutputStream output;
+
+    // for the binary format
+    private DataInputStream input;
+
+    // for the serialized format
+    private ObjectInputStream objectInput;
+
+    private PacketStream(WireFormat format, InputStream in, OutputStream out)
+        throws IOException
+    {
+        this.format = format;
+        output = new BufferedOutputStream(out);
+
+        if (format == WireFormat.BINARY)
+        {
+            input = new DataInputStream(in);
+        }
+        else
+        {
+            // write the header first, the peer's constructor waits for it
+            output.write(WireFormat.STREAM_HEADER);
+            output.flush();
+
+            objectInput = new ObjectInputStream(in);
+        }
+    }
+
+    /**
+     * Opens the client side of a connection. It sends a hello unless the
+     * preferred format is serialization.
+     *
+     * @param socket socket connected to the server
+     * @param preferred format the client wants
+     * @return packet stream or null if the server doesn't know the hello,
+     *         the caller should reconnect with serialization
+     * @throws IOException if the connection fails
+     */
+    public static PacketStream connect(Socket socket, WireFormat preferred)
+        throws IOException
+    {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+
+        if (preferred == WireFormat.SERIALIZED)
+            return new PacketStream(WireFormat.SERIALIZED, in, out);
+
+        out.write(Handshake.hello(preferred));
+        out.flush();
+
+        byte[] response = new byte[Handshake.RESPONSE_SIZE];
+        DataInputStream dataIn = new DataInputStream(in);
+        dataIn.readFully(response, 0, 2);
+
+        // an old server opened an object stream right away
+        if (Handshake.isObjectStream(response[0], response[1]))
+            return null;
+
+        dataIn.readFully(response, 2, response.length - 2);
+
+        return new PacketStream(Handshake.readResponse(response, 0), in, out);
+    }
+
+    /**
+     * Opens the server side of a connection. It blocks until the client
+     * sends a hello or the object stream header.
+     *
+     * @param socket socket accepted
+     * @param allowBinary false makes every client use serialization
+     * @return packet stream
+     * @throws IOException if the connection fails
+     */
+    public static PacketStream accept(Socket socket, boolean allowBinary)
+        throws IOException
+    {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+
+        if (first < 0 || second < 0)
+            throw new IOException("Connection closed before the handshake");
+
+        if (Handshake.isObjectStream((byte) first, (byte) second))
+            return new PacketStream(WireFormat.SERIALIZED, in, out);
+
+        byte[] hello = new byte[Handshake.HELLO_SIZE];
+        new DataInputStream(in).readFully(hello);
+
+        WireFormat chosen = (allowBinary
+            && Handshake.readHello(hello, 0) == WireFormat.BINARY) ?
+            WireFormat.BINARY : WireFormat.SERIALIZED;
+
+        out.write(Handshake.response(chosen));
+        out.flush();
+
+        return new PacketStream(chosen, in, out);
+    }
+
+    /**
+     * Blocks until the next packet arrives
+     *
+     * @return a packet or null if the object is not a packet
+     * @throws IOException if the stream is closed or corrupted
+     * @throws ClassNotFoundException if the object can't be decoded
+     */
+    public Packet readPacket() throws IOException, ClassNotFoundException
+    {
+        if (format == WireFormat.BINARY)
+            return PacketCodec.read(input);
+
+        Object obj = objectInput.readObject();
+
+        return (obj instanceof Packet) ? (Packet) obj : null;
+    }
+
+    public void writePacket(Packet packet) throws IOException
+    {
+        writeFrame(format.encode(packet));
+        flush();
+    }
+
+    /**
+     * Buffers a packet encoded by getFormat().encode(),
+     * flush() sends buffered packets together
+     *
+     * @param frame encoded packet
+     * @throws IOException if the stream is closed
+     */
+    public void writeFrame(byte[] frame) throws IOException
+    {
+        output.write(frame);
+    }
+
+    public void flush() throws IOException
+    {
+        output.flush();
+    }
+
+    public WireFormat getFormat()
+    {
+        return format;
+    }
+}
@@ -0,0 +1,192 @@
+package com.kwanii.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A file of Recordables with a versioned, checksummed header, such as the
+ * schedule file.
+ *
+ * The whole file is read into a buffer with one channel read and the
+ * records are decoded from it in one pass by the Reader of their type, the
+ * other half of record(). A file is written to a temporary file and
+ * renamed, a reader never sees a part of it.
+ *
+ * Layout: magic, version (short), reserved (short), count, body length,
+ * CRC32 of the body, then the records back to back.
+ */
+public class RecordFile
+{
+    final public static int HEADER_SIZE = 20;
+
+    // header fields
+    final private static int VERSION_POS = 4;
+
+    final private static int COUNT_POS = 8;
+
+    final private static int LENGTH_POS = 12;
+
+    final private static int CRC_POS = 16;
+
+    // the largest file read
+    final private static int MAX_SIZE = 64 << 20;
+
+    /**
+     * Reads a whole file
+     *
+     * @param file file to read
+     * @return buffer holding the file, positioned at 0
+     * @throws IOException if the file can't be read or is too large
+     */
+    public static ByteBuffer load(File file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.READ))
+        {
+            if (channel.size() > MAX_SIZE)
+                throw new IOException("File too large: " + file);
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+
+            // one read for a file, more only if the channel returns less
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+                ;
+
+            buffer.flip();
+
+            return buffer;
+        }
+    }
+
+    /**
+     * @param buffer a file loaded
+     * @param magic magic of the type of the file
+     * @return true if the file starts with the header of the type, false
+     *         if it is in another format
+     */
+    public static boolean hasHeader(ByteBuffer buffer, int magic)
+    {
+        return buffer.limit() >= HEADER_SIZE && buffer.getInt(0) == magic;
+    }
+
+    /**
+     * Decodes the records of a file loaded
+     *
+     * @param buffer a file loaded
+     * @param magic magic of the type of the file
+     * @param version the latest version the reader knows
+     * @param reader decodes a record
+     * @param <T> type of the records
+     * @return the records in the order they were written
+     * @throws IOException if the file isn't of the type or version, or is
+     *         cut or corrupt
+     */
+    public static <T> List<T> read(ByteBuffer buffer, int magic, short version,
+                                   Recordable.Reader<T> reader) throws IOException
+    {
+        if (!hasHeader(buffer, magic))
+            throw new IOException("Not a record file of this type");
+
+        short fileVersion = buffer.getShort(VERSION_POS);
+
+        if (fileVersion < 1 || fileVersion > version)
+            throw new IOException("Record file version " + fileVersion
+                + " is newer than " + version);
+
+        int count = buffer.getInt(COUNT_POS);
+        int length = buffer.getInt(LENGTH_POS);
+
+        if (count < 0 || length < 0 || buffer.limit() != HEADER_SIZE + length)
+            throw new IOException("Record file is cut");
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), buffer.arrayOffset() + HEADER_SIZE, length);
+
+        if ((int) crc.getValue() != buffer.getInt(CRC_POS))
+            throw new IOException("Record file is corrupt");
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(HEADER_SIZE);
+
+        List<T> records = new ArrayList<>(count);
+
+        try
+        {
+            for (int i = 0; i < count; i++)
+                records.add(reader.read(body, fileVersion));
+        }
+        catch (BufferUnderflowException | IllegalArgumentException ex)
+        {
+            throw new IOException("Record file has a bad record", ex);
+        }
+
+        if (body.hasRemaining())
+            throw new IOException("Record file has bytes after its records");
+
+        return records;
+    }
+
+    /**
+     * Writes records to a file, replacing it
+     *
+     * @param file file to write
+     * @param magic magic of the type of the file
+     * @param version version of the records written
+     * @param records records to write
+     * @throws IOException if the file can't be written
+     */
+    public static void write(File file, int magic, short version,
+                             Collection<? extends Recordable> records)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        // the header is written over once the body is known
+        output.write(new byte[HEADER_SIZE]);
+
+        for (Recordable record: records)
+            record.record(output);
+
+        output.flush();
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        int length = buffer.capacity() - HEADER_SIZE;
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, length);
+
+        buffer.putInt(0, magic);
+        buffer.putShort(VERSION_POS, version);
+        buffer.putInt(COUNT_POS, records.size());
+        buffer.putInt(LENGTH_POS, length);
+        buffer.putInt(CRC_POS, (int) crc.getValue());
+
+        File temp = new File(file.getPath() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temp.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+
+            channel.force(true);
+        }
+
+        Files.move(temp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -2,13 +2,33 @@ package com.kwanii.chat;
 
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 
 /**
- *  Recordable interface
+ *  Recordable interface. A type kept in a RecordFile has a Reader that
+ *  decodes what record() writes.
  */
 public interface Recordable
 {
+    /**
+     * Decodes a record written by record(), the other half of a Recordable
+     *
+     * @param <T> type of the records
+     */
+    @FunctionalInterface
+    interface Reader<T>
+    {
+        /**
+         * @param buffer buffer positioned at the record, left after it
+         * @param version version of the file the record was written in
+         * @return the record
+         * @throws IllegalArgumentException if the record is invalid
+         */
+        T read(ByteBuffer buffer, int version);
+    }
+
     /**
      * Records using output and returns total record size
      *
@@ -20,6 +40,50 @@ public interface Recordable
     long record(DataOutput output) throws IOException;
 
 
+    /**
+     * Writes a string as its UTF-8 length (unsigned short) and bytes, read
+     * by readString()
+     *
+     * @param output DataOutput
+     * @param value string to write
+     * @return the size recorded
+     * @throws IOException if the string is longer than 65535 bytes
+     */
+    default int writeString(DataOutput output, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        if (bytes.length > 0xffff)
+            throw new IOException("String too long to record: " + bytes.length);
+
+        output.writeShort(bytes.length);
+        output.write(bytes);
+
+        return Short.BYTES + bytes.length;
+    }
+
+    /**
+     * Reads a string written by writeString()
+     *
+     * @param buffer heap buffer positioned at the string, left after it
+     * @return the string
+     */
+    static String readString(ByteBuffer buffer)
+    {
+        int length = buffer.getShort() & 0xffff;
+
+        if (length > buffer.remaining())
+            throw new IllegalArgumentException("String cut: " + length);
+
+        String value = new String(buffer.array(),
+            buffer.arrayOffset() + buffer.position(), length,
+            StandardCharsets.UTF_8);
+
+        buffer.position(buffer.position() + length);
+
+        return value;
+    }
+
     /**
      * Create space padding as long as the length
      *
@@ -0,0 +1,80 @@
+package com.kwanii.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+/**
+ * Encodings of packets on the wire, agreed on when a client connects
+ */
+public enum WireFormat
+{
+    // java serialization through ObjectOutputStream, understood by all clients
+    SERIALIZED((byte) 0),
+
+    // length prefixed frames written by PacketCodec
+    BINARY((byte) 1);
+
+    // object stream magic and version written by ObjectOutputStream
+    final public static byte[] STREAM_HEADER =
+        {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+
+    // sent in the handshake
+    final private byte id;
+
+    WireFormat(byte id)
+    {
+        this.id = id;
+    }
+
+    public byte getId()
+    {
+        return id;
+    }
+
+    /**
+     * Encodes the packet to bytes that can be written to any connection
+     * using this format. For serialization it is a stream reset followed by
+     * the object, so it can be appended to any object stream opened with
+     * STREAM_HEADER no matter what was written before.
+     *
+     * @param packet packet to encode
+     * @return bytes to write
+     * @throws IOException if the packet can't be serialized
+     */
+    public byte[] encode(Packet packet) throws IOException
+    {
+        if (this == BINARY)
+            return PacketCodec.encode(packet);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+
+        // drop the stream header, the peer read it when it connected
+        bytes.reset();
+
+        // the peer must forget handles of the previous packet
+        output.reset();
+        output.writeUnshared(packet);
+        output.flush();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Finds the format by its handshake id
+     *
+     * @param id format id
+     * @return the format, SERIALIZED for unknown ids
+     */
+    public static WireFormat valueOf(byte id)
+    {
+        for (WireFormat format: values())
+        {
+            if (format.id == id)
+                return format;
+        }
+
+        return SERIALIZED;
+    }
+}
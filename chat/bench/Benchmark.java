@@ -0,0 +1,74 @@
+package com.kwanii.chat.bench;
+
+/**
+ * Small timing helper for the benchmarks in this package.
+ * Each benchmark is a main class run from the command line:
+ *
+ *   java -cp classes com.kwanii.chat.bench.PacketCodecBenchmark
+ */
+public class Benchmark
+{
+    // keeps results alive so the JIT can't drop the measured work
+    private static volatile long sink;
+
+    /**
+     * Operation measured by run()
+     */
+    @FunctionalInterface
+    public interface Operation
+    {
+        /**
+         * @param i iteration number
+         * @return any value that depends on the work done
+         */
+        long run(int i) throws Exception;
+    }
+
+    /**
+     * Warms up then measures the operation
+     *
+     * @param name printed with the result
+     * @param iterations measured iterations
+     * @param operation operation to measure
+     * @return nanoseconds per operation
+     */
+    public static double run(String name, int iterations, Operation operation)
+        throws Exception
+    {
+        long value = 0;
+
+        // warm up with the same number of iterations
+        for (int i = 0; i < iterations; i++)
+            value += operation.run(i);
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++)
+            value += operation.run(i);
+
+        long elapsed = System.nanoTime() - start;
+        sink += value;
+
+        double nsPerOp = (double) elapsed / iterations;
+        System.out.printf("%-40s %12.1f ns/op %14.0f ops/s%n",
+            name, nsPerOp, 1e9 / nsPerOp);
+
+        return nsPerOp;
+    }
+
+    /**
+     * Prints a value that is not a time
+     */
+    public static void report(String name, double value, String unit)
+    {
+        System.out.printf("%-40s %12.1f %s%n", name, value, unit);
+    }
+
+    /**
+     * Keeps a value alive, for results computed outside run()
+     */
+    public static void consume(long value)
+    {
+        sink += value;
+    }
+}
@@ -0,0 +1,102 @@
+package com.kwanii.chat.bench;
+
+import com.kwanii.chat.server.ChatLog.ConnectionInfo;
+import com.kwanii.chat.server.LogEvent;
+import com.kwanii.chat.server.LogSegment;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Connection log writers: the text record opened with "rws" for each
+ * record as ChatLog did first, text records appended to a channel and
+ * forced per batch, and binary records in a mapped LogSegment forced per
+ * batch. Then reads of record N from the segment.
+ */
+public class ConnectionLogBenchmark
+{
+    // records of the writer that syncs each one, it is slow
+    final private static int SYNCED_RECORDS = 2000;
+
+    final private static int RECORDS = 200000;
+
+    // records forced at once, the default log.sync.batch
+    final private static int BATCH = 256;
+
+    public static void main(String... args) throws Exception
+    {
+        ConnectionInfo info = new ConnectionInfo(LogEvent.LOGIN,
+            "192.168.0.10", System.currentTimeMillis(), "user@example.com");
+        byte[] text = String.format("%-16s%-21s%-15s%-16s", "Login",
+            "192.168.0.10:50000", "2016-01-01_T1200", "user@example.com")
+            .getBytes();
+
+        File file = File.createTempFile("log-", ".log");
+
+        try
+        {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rws"))
+            {
+                Benchmark.run("rws file, a sync per record", SYNCED_RECORDS, i ->
+                {
+                    raf.seek(raf.length());
+                    raf.write(text);
+                    return text.length;
+                });
+            }
+
+            file.delete();
+
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND))
+            {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH * text.length);
+
+                Benchmark.run("channel, text, sync per " + BATCH, RECORDS, i ->
+                {
+                    buffer.put(text);
+
+                    if (buffer.hasRemaining())
+                        return 0;
+
+                    buffer.flip();
+                    channel.write(buffer);
+                    buffer.clear();
+                    channel.force(false);
+                    return 1;
+                });
+            }
+
+            file.delete();
+
+            try (LogSegment segment = new LogSegment(file))
+            {
+                Benchmark.run("mapped segment, sync per " + BATCH, RECORDS, i ->
+                {
+                    segment.append(info);
+
+                    if ((i + 1) % BATCH == 0)
+                        segment.force();
+
+                    return 1;
+                });
+
+                long size = segment.size();
+
+                Benchmark.run("mapped segment, read record N", RECORDS, i ->
+                    segment.read((i * 7919L) % size).getTime());
+
+                Benchmark.report("segment bytes per record",
+                    (double) segment.length() / size, "B");
+            }
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
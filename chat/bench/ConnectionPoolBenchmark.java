@@ -0,0 +1,155 @@
+package com.kwanii.chat.bench;
+
+import com.kwanii.chat.server.ConnectionPool;
+import com.kwanii.chat.server.OracleUserStore;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The database user store on the connection pool over the in-memory
+ * database: logins per second from more threads than connections, the
+ * wait for a connection and the statements prepared, then the pool
+ * closed with connections lent and callers waiting.
+ */
+public class ConnectionPoolBenchmark
+{
+    final private static int USERS = 10000;
+
+    final private static int POOL_SIZE = 4;
+
+    // auth threads logging in at once
+    final private static int THREADS = 16;
+
+    final private static int LOGINS = 20000;
+
+    // time (us) of a statement on the database
+    final private static long ROUND_TRIP = 50;
+
+    public static void main(String... args) throws Exception
+    {
+        MemoryDatabase database = new MemoryDatabase(ROUND_TRIP);
+        ConnectionPool pool = new ConnectionPool(database, POOL_SIZE, 5000);
+        OracleUserStore store = new OracleUserStore(pool);
+
+        byte[] hash = new byte[20];
+        byte[] salt = new byte[20];
+
+        for (int i = 0; i < USERS; i++)
+            database.put("user" + i, hash, salt);
+
+        Benchmark.run("fetchCredentials, 1 thread", LOGINS / 4, i ->
+            store.fetchCredentials("user" + i % USERS).getHash().length);
+
+        AtomicLong found = new AtomicLong();
+        Thread[] threads = new Thread[THREADS];
+        long start = System.nanoTime();
+
+        for (int t = 0; t < THREADS; t++)
+        {
+            int first = t;
+
+            threads[t] = new Thread(() ->
+            {
+                for (int i = first; i < LOGINS; i += THREADS)
+                {
+                    if (store.fetchCredentials("user" + i % USERS) != null)
+                        found.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread: threads)
+            thread.join();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Benchmark.consume(found.get());
+        Benchmark.report("fetchCredentials, " + THREADS + " threads",
+            LOGINS / seconds, "ops/s");
+        Benchmark.report("  wait avg", pool.getAverageWait() / 1000.0, "us");
+        Benchmark.report("  wait max", pool.getMaxWait() / 1000.0, "us");
+        Benchmark.report("  timeouts", pool.getTimeouts(), "");
+        Benchmark.report("  connections opened", database.getOpened(), "");
+        Benchmark.report("  statements prepared", database.getPrepared(), "");
+
+        checkClose(database, pool);
+    }
+
+    /**
+     * Closes the pool with a connection lent and a caller waiting, and
+     * prints whether each is handled
+     */
+    private static void checkClose(MemoryDatabase database, ConnectionPool pool)
+        throws Exception
+    {
+        ConnectionPool.PooledConnection once = pool.acquire();
+        int idle = pool.getIdle();
+
+        once.close();
+        once.close();
+
+        check("close twice returns once", pool.getIdle() == idle + 1
+            && pool.getActive() == 0);
+        check("prepare after close fails", fails(() ->
+            once.prepare("SELECT password, salt FROM users WHERE id = ?")));
+
+        ConnectionPool.PooledConnection[] lent =
+            new ConnectionPool.PooledConnection[POOL_SIZE];
+
+        for (int i = 0; i < POOL_SIZE; i++)
+            lent[i] = pool.acquire();
+
+        CompletableFuture<ConnectionPool.PooledConnection> waiting =
+            pool.acquireAsync();
+
+        pool.close();
+
+        check("waiter fails on close", fails(waiting::get));
+        check("acquire after close fails", fails(pool::acquire));
+        check("lent connections stay open", database.getOpen() == POOL_SIZE);
+
+        for (ConnectionPool.PooledConnection connection: lent)
+            connection.close();
+
+        check("returned connections are closed", database.getOpen() == 0
+            && pool.getIdle() == 0);
+    }
+
+    private static void check(String name, boolean ok)
+    {
+        System.out.printf("%-40s %12s%n", name, ok ? "ok" : "FAILED");
+    }
+
+    /**
+     * @return true if the call throws SQLException, or fails with it
+     */
+    private static boolean fails(Call call)
+    {
+        try
+        {
+            call.run();
+            return false;
+        }
+        catch (SQLException ex)
+        {
+            return true;
+        }
+        catch (ExecutionException ex)
+        {
+            return ex.getCause() instanceof SQLException;
+        }
+        catch (Exception ex)
+        {
+            return false;
+        }
+    }
+
+    private interface Call
+    {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,99 @@
+package com.kwanii.chat.bench;
+
+import com.kwanii.chat.server.ChatLog.ConnectionInfo;
+import com.kwanii.chat.server.EventBus;
+import com.kwanii.chat.server.EventMetrics;
+import com.kwanii.chat.server.LogEvent;
+import com.kwanii.chat.server.UserInfo;
+
+import java.lang.management.ManagementFactory;
+import java.util.Calendar;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Cost of an event on the connection thread: the message formatted and
+ * the log record made on the caller as printEvent did, then a publish to
+ * the event bus with the log, display and metrics consumers running on
+ * their own threads. Bytes allocated per event on the caller too.
+ */
+public class EventBusBenchmark
+{
+    final private static int EVENTS = 1000000;
+
+    final private static String ADDRESS = "/192.168.0.10:50000";
+
+    final private static String USER_ID = "user@example.com";
+
+    public static void main(String... args) throws Exception
+    {
+        Queue<String> messages = new ConcurrentLinkedQueue<>();
+        Queue<ConnectionInfo> records = new ConcurrentLinkedQueue<>();
+
+        Benchmark.Operation formatted = i ->
+        {
+            Calendar time = Calendar.getInstance();
+            messages.add(String.format("[%s] ID: %s, IP: %s, Time: %s",
+                LogEvent.LOGIN.getLabel(), USER_ID, ADDRESS,
+                String.format("%tF_%tT", time, time)));
+            records.add(new ConnectionInfo(LogEvent.LOGIN,
+                UserInfo.hostOf(ADDRESS), System.currentTimeMillis(), USER_ID));
+
+            // the queues are drained by their readers
+            messages.poll();
+            records.poll();
+            return 1;
+        };
+
+        Benchmark.run("format on the caller", EVENTS, formatted);
+        Benchmark.report("  bytes per event", allocated(formatted), "B");
+
+        EventBus bus = new EventBus(65536);
+        EventMetrics metrics = new EventMetrics();
+
+        bus.start("log", event -> records.add(new ConnectionInfo(
+            event.getEvent(), UserInfo.hostOf(event.getAddress()),
+            event.getTime(), event.getUserId())));
+        bus.start("display", event -> messages.add(String.format(
+            "[%s] ID: %s, IP: %s, Time: %tF_%<tT", event.getEvent().getLabel(),
+            event.getUserId(), event.getAddress(), event.getTime())));
+        bus.start("metrics", metrics);
+        bus.start("drain", event ->
+        {
+            messages.poll();
+            records.poll();
+        });
+
+        Benchmark.Operation published = i ->
+        {
+            bus.publish(LogEvent.LOGIN, ADDRESS, USER_ID);
+            return 1;
+        };
+
+        Benchmark.run("publish to the event bus", EVENTS, published);
+        Benchmark.report("  bytes per event", allocated(published), "B");
+
+        bus.close();
+
+        for (EventBus.Cursor cursor: bus.getCursors())
+            Benchmark.report("  lost by " + cursor.getName(), cursor.getLost(), "");
+    }
+
+    /**
+     * @return bytes the operation allocates on the calling thread
+     */
+    private static double allocated(Benchmark.Operation operation)
+        throws Exception
+    {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+
+        long before = threads.getThreadAllocatedBytes(id);
+
+        for (int i = 0; i < EVENTS; i++)
+            operation.run(i);
+
+        return (double) (threads.getThreadAllocatedBytes(id) - before) / EVENTS;
+    }
+}
@@ -0,0 +1,87 @@
+package com.kwanii.chat.bench;
+
+import com.kwanii.chat.EncodedPacket;
+import com.kwanii.chat.Packet;
+import com.kwanii.chat.WireFormat;
+import com.kwanii.chat.server.OutboundQueue;
+import com.kwanii.chat.server.ServerConfig;
+
+import java.io.File;
+
+/**
+ * Cost of sending one room message to every member against room size:
+ * encoding the packet for each member as the server used to, and
+ * encoding it once and queueing the same frame for every member.
+ */
+public class FanOutBenchmark
+{
+    // members sent to in each measurement
+    final private static int MEMBERS_PER_RUN = 2000000;
+
+    final private static int[] ROOM_SIZES = {1, 10, 100, 500, 2000};
+
+    public static void main(String... args) throws Exception
+    {
+        for (WireFormat format: WireFormat.values())
+        {
+            System.out.println("== " + format);
+
+            for (int size: ROOM_SIZES)
+                measure(format, size);
+        }
+    }
+
+    private static void measure(WireFormat format, int size) throws Exception
+    {
+        OutboundQueue.Settings settings = new OutboundQueue.Settings(
+            16, ServerConfig.SlowConsumerPolicy.DROP_OLDEST,
+            new File(System.getProperty("java.io.tmpdir")), 0);
+
+        OutboundQueue[] queues = new OutboundQueue[size];
+
+        for (int i = 0; i < size; i++)
+            queues[i] = new OutboundQueue(settings);
+
+        int iterations = Math.max(20, MEMBERS_PER_RUN / size / 10);
+
+        double each = Benchmark.run("encode each, " + size + " members",
+            iterations, i ->
+        {
+            long bytes = 0;
+
+            for (OutboundQueue queue: queues)
+            {
+                byte[] frame = format.encode(message(i));
+                queue.offer(frame);
+                bytes += queue.poll().length;
+            }
+
+            return bytes;
+        });
+
+        double once = Benchmark.run("encode once, " + size + " members",
+            iterations, i ->
+        {
+            EncodedPacket packet = new EncodedPacket(message(i));
+            long bytes = 0;
+
+            for (OutboundQueue queue: queues)
+            {
+                queue.offer(packet.getFrame(format));
+                bytes += queue.poll().length;
+            }
+
+            return bytes;
+        });
+
+        Benchmark.report("  ns per member, encode each", each / size, "ns");
+        Benchmark.report("  ns per member, encode once", once / size, "ns");
+    }
+
+    // a new packet for each message like the server builds
+    private static Packet message(int i)
+    {
+        return new Packet.Builder(Packet.MESSAGE).setSender("kwanii@chat.com")
+            .setRoomId("lobby").setMessage("hello " + i).build();
+    }
+}
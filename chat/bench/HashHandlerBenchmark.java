@@ -0,0 +1,97 @@
+package com.kwanii.chat.bench;
+
+import com.kwanii.chat.HashHandler;
+import com.kwanii.chat.server.KdfAlgorithm;
+import com.kwanii.chat.server.Pbkdf2HashHandler;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Password verifies per second per core of each PBKDF2 function, on one
+ * thread and on a thread per core. A cheap hash shows what looking up
+ * the SecretKeyFactory for every hash cost before it was cached.
+ */
+public class HashHandlerBenchmark
+{
+    // iterations of the measured hashes, the time scales with it
+    final private static int ITERATIONS = 10000;
+
+    // iterations of the hash the factory lookup is measured with
+    final private static int CHEAP_ITERATIONS = 100;
+
+    final private static int VERIFIES = 100;
+
+    // time each thread verifies for on all cores (ms)
+    final private static long PARALLEL_TIME = 2000;
+
+    public static void main(String... args) throws Exception
+    {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.println(ITERATIONS + " iterations, " + cores + " cores");
+
+        for (KdfAlgorithm algorithm: KdfAlgorithm.values())
+        {
+            HashHandler handler = new Pbkdf2HashHandler(algorithm, ITERATIONS);
+            byte[] salt = handler.getSalt(20);
+            byte[] hash = handler.hash("password", salt);
+
+            Benchmark.run(algorithm + " verify, 1 thread", VERIFIES, i ->
+                handler.verify("password", hash, salt) ? 1 : 0);
+
+            Benchmark.report(algorithm + " verifies/s per core, "
+                + cores + " threads",
+                parallel(handler, hash, salt, cores) / cores, "ops/s");
+        }
+
+        HashHandler cached =
+            new Pbkdf2HashHandler(KdfAlgorithm.PBKDF2_SHA1, CHEAP_ITERATIONS);
+        byte[] salt = cached.getSalt(20);
+
+        Benchmark.run("hash, cached factory", VERIFIES * 100, i ->
+            cached.hash("password", salt).length);
+
+        Benchmark.run("hash, factory looked up", VERIFIES * 100, i ->
+            SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(
+                new PBEKeySpec("password".toCharArray(), salt,
+                    CHEAP_ITERATIONS, 160)).getEncoded().length);
+    }
+
+    /**
+     * Verifies on a thread per core for PARALLEL_TIME
+     *
+     * @return verifies per second of all threads
+     */
+    private static double parallel(HashHandler handler, byte[] hash,
+                                   byte[] salt, int threads)
+        throws InterruptedException
+    {
+        AtomicLong verifies = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+        long end = System.nanoTime() + PARALLEL_TIME * 1000000L;
+
+        for (int t = 0; t < threads; t++)
+        {
+            new Thread(() ->
+            {
+                long count = 0;
+
+                while (System.nanoTime() < end)
+                {
+                    if (handler.verify("password", hash, salt))
+                        count++;
+                }
+
+                verifies.addAndGet(count);
+                done.countDown();
+            }).start();
+        }
+
+        done.await();
+
+        return verifies.get() * 1000.0 / PARALLEL_TIME;
+    }
+}
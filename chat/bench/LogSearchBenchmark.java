@@ -0,0 +1,144 @@
+package com.kwanii.chat.bench;
+
+import com.kwanii.chat.server.ChatLog.ConnectionInfo;
+import com.kwanii.chat.server.CompressedSegment;
+import com.kwanii.chat.server.LogEvent;
+import com.kwanii.chat.server.LogIndex;
+import com.kwanii.chat.server.LogSearch;
+import com.kwanii.chat.server.LogSegment;
+import com.kwanii.chat.server.LogWriter;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Searches of a month of connection logs, a segment per day: by user id,
+ * by IP address and by an hour of one day with the indexes, and by user
+ * id with a scan of every record as the logs were searched before. Then
+ * the same searches once the segments are compressed.
+ */
+public class LogSearchBenchmark
+{
+    final private static int DAYS = 30;
+
+    final private static int RECORDS_PER_DAY = 50000;
+
+    final private static int USERS = 20000;
+
+    final private static int SEARCHES = 200;
+
+    final private static long DAY = 24 * 3600 * 1000L;
+
+    public static void main(String... args) throws Exception
+    {
+        File dir = Files.createTempDirectory("logs-").toFile();
+        long start = System.currentTimeMillis() - DAYS * DAY;
+        Random random = new Random(1);
+
+        try
+        {
+            for (int day = 0; day < DAYS; day++)
+            {
+                File file = new File(dir, String.format("day-%02d.log", day));
+
+                try (LogSegment segment = new LogSegment(file))
+                {
+                    for (int i = 0; i < RECORDS_PER_DAY; i++)
+                        segment.append(new ConnectionInfo(LogEvent.LOGIN,
+                            "10.0." + random.nextInt(64) + "." + random.nextInt(256),
+                            start + day * DAY + i * (DAY / RECORDS_PER_DAY),
+                            "user" + random.nextInt(USERS)));
+                }
+
+                try (LogSegment segment = new LogSegment(file, true))
+                {
+                    LogIndex.build(segment);
+                }
+            }
+
+            LogWriter writer = new LogWriter(new File(dir, "temp.log"),
+                1000, 256, 0, 0, () -> new File(dir, "rotated.log"), file -> { });
+            LogSearch search = new LogSearch(dir, writer);
+
+            Benchmark.report("records per segment", RECORDS_PER_DAY, "");
+            Benchmark.report("segments", DAYS, "");
+
+            searches("indexed", search, start);
+
+            Benchmark.run("scan, user id", 4, i ->
+            {
+                int found = 0;
+
+                for (File file: dir.listFiles((d, name) -> name.startsWith("day-")
+                    && name.endsWith(".log")))
+                {
+                    try (LogSegment segment = new LogSegment(file, true))
+                    {
+                        for (long n = 0; n < segment.size(); n++)
+                        {
+                            if (segment.read(n).getId().equals("user" + i))
+                                found++;
+                        }
+                    }
+                }
+
+                return found;
+            });
+
+            long length = 0;
+            long compressed = 0;
+
+            for (File file: dir.listFiles((d, name) -> name.startsWith("day-")
+                && name.endsWith(".log")))
+            {
+                try (LogSegment segment = new LogSegment(file, true))
+                {
+                    length += segment.length();
+
+                    try (CompressedSegment copy = new CompressedSegment(
+                        CompressedSegment.compress(segment)))
+                    {
+                        compressed += copy.length();
+                    }
+                }
+
+                file.delete();
+            }
+
+            Benchmark.report("compressed size", 100.0 * compressed / length, "%");
+
+            searches("compressed", search, start);
+
+            search.close();
+            writer.close();
+        }
+        finally
+        {
+            for (File file: dir.listFiles())
+                file.delete();
+
+            dir.delete();
+        }
+    }
+
+    private static void searches(String name, LogSearch search, long start)
+        throws Exception
+    {
+        long end = start + DAYS * DAY;
+
+        Benchmark.run(name + ", user id", SEARCHES, i -> search.find(
+            start, end, "user" + i, null, 1000).getRecords().size());
+
+        Benchmark.run(name + ", IP address", SEARCHES, i -> search.find(
+            start, end, null, "10.0." + (i % 64) + ".1", 1000)
+            .getRecords().size());
+
+        Benchmark.run(name + ", an hour of a day", SEARCHES, i ->
+        {
+            long from = start + (i % DAYS) * DAY + 12 * 3600 * 1000L;
+            return search.find(from, from + 3600 * 1000L, null, null, 10000)
+                .getRecords().size();
+        });
+    }
+}
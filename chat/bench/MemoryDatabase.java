@@ -0,0 +1,278 @@
+package com.kwanii.chat.bench;
+
+import com.kwanii.chat.server.ConnectionPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory stand-in for the JDBC driver of OracleUserStore, so the
+ * connection pool runs without a database. It knows the statements of
+ * the store only: the users table is a map and a statement executed
+ * waits the round trip time set.
+ *
+ * Connections, statements and result sets are proxies of the JDBC
+ * interfaces, a method the store doesn't call throws
+ * SQLFeatureNotSupportedException.
+ */
+public class MemoryDatabase implements ConnectionPool.ConnectionFactory
+{
+    // users table, id to {password, salt}
+    final private ConcurrentHashMap<String, byte[][]> users =
+        new ConcurrentHashMap<>();
+
+    // time a statement takes (us), 0 for none
+    final private long roundTrip;
+
+    // connections opened and not closed yet
+    final private AtomicInteger open = new AtomicInteger();
+
+    // connections opened since the start
+    final private AtomicInteger opened = new AtomicInteger();
+
+    // statements prepared since the start
+    final private AtomicInteger prepared = new AtomicInteger();
+
+    /**
+     * @param roundTrip time (us) each statement executed takes
+     */
+    public MemoryDatabase(long roundTrip)
+    {
+        this.roundTrip = roundTrip;
+    }
+
+    @Override
+    public Connection open() throws SQLException
+    {
+        open.incrementAndGet();
+        opened.incrementAndGet();
+
+        boolean[] closed = {false};
+
+        return proxy(Connection.class, (proxy, method, args) ->
+        {
+            switch (method.getName())
+            {
+                case "prepareStatement":
+                    if (closed[0])
+                        throw new SQLException("Connection is closed");
+
+                    prepared.incrementAndGet();
+                    return statement((String) args[0]);
+                case "isClosed":
+                    return closed[0];
+                case "close":
+                    if (!closed[0])
+                        open.decrementAndGet();
+
+                    closed[0] = true;
+                    return null;
+                default:
+                    return unsupported(proxy, method.getName(), args);
+            }
+        });
+    }
+
+    /**
+     * Statement of the store on the users map
+     */
+    private PreparedStatement statement(String sql)
+    {
+        Object[] parameters = new Object[4];
+
+        return proxy(PreparedStatement.class, (proxy, method, args) ->
+        {
+            switch (method.getName())
+            {
+                case "setString":
+                    parameters[(Integer) args[0]] = args[1];
+                    return null;
+                case "setBinaryStream":
+                    parameters[(Integer) args[0]] = readAll((InputStream) args[1]);
+                    return null;
+                case "setFetchSize":
+                case "close":
+                    return null;
+                case "executeQuery":
+                    sleep(roundTrip);
+                    return query(sql, parameters);
+                case "executeUpdate":
+                    sleep(roundTrip);
+                    return update(sql, parameters);
+                default:
+                    return unsupported(proxy, method.getName(), args);
+            }
+        });
+    }
+
+    private ResultSet query(String sql, Object[] parameters) throws SQLException
+    {
+        List<Object[]> rows = new ArrayList<>();
+
+        if (sql.startsWith("SELECT password, salt FROM users"))
+        {
+            byte[][] user = users.get((String) parameters[1]);
+
+            if (user != null)
+                rows.add(new Object[] {user[0], user[1]});
+        }
+        else if (sql.startsWith("SELECT id FROM users"))
+        {
+            for (String id: users.keySet())
+                rows.add(new Object[] {id});
+        }
+        else
+        {
+            throw new SQLException("Unknown query: " + sql);
+        }
+
+        int[] row = {-1};
+
+        return proxy(ResultSet.class, (proxy, method, args) ->
+        {
+            switch (method.getName())
+            {
+                case "next":
+                    return ++row[0] < rows.size();
+                case "getBytes":
+                    return rows.get(row[0])["salt".equals(args[0]) ? 1 : 0];
+                case "getString":
+                    return rows.get(row[0])[(Integer) args[0] - 1];
+                case "close":
+                    return null;
+                default:
+                    return unsupported(proxy, method.getName(), args);
+            }
+        });
+    }
+
+    private int update(String sql, Object[] parameters) throws SQLException
+    {
+        if (sql.startsWith("MERGE INTO users"))
+        {
+            byte[][] user = {(byte[]) parameters[2], (byte[]) parameters[3]};
+
+            return users.putIfAbsent((String) parameters[1], user) == null ? 1 : 0;
+        }
+
+        if (sql.startsWith("UPDATE users"))
+        {
+            byte[][] user = {(byte[]) parameters[1], (byte[]) parameters[2]};
+
+            return users.replace((String) parameters[3], user) != null ? 1 : 0;
+        }
+
+        throw new SQLException("Unknown update: " + sql);
+    }
+
+    private static byte[] readAll(InputStream input) throws SQLException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int read;
+
+        try
+        {
+            while ((read = input.read(buffer)) >= 0)
+                bytes.write(buffer, 0, read);
+        }
+        catch (IOException ex)
+        {
+            throw new SQLException(ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    // the round trip to the database
+    private static void sleep(long micros)
+    {
+        if (micros > 0)
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+
+    /**
+     * Object methods of a proxy, anything else isn't supported
+     */
+    private static Object unsupported(Object proxy, String name, Object[] args)
+        throws SQLException
+    {
+        switch (name)
+        {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "MemoryDatabase@" + Integer.toHexString(
+                    System.identityHashCode(proxy));
+            default:
+                throw new SQLFeatureNotSupportedException(name);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler)
+    {
+        return (T) Proxy.newProxyInstance(MemoryDatabase.class.getClassLoader(),
+            new Class<?>[] {type}, handler);
+    }
+
+    /**
+     * Adds a row to the users table without a statement
+     *
+     * @param id user id
+     * @param hash password hash
+     * @param salt salt of the hash
+     */
+    public void put(String id, byte[] hash, byte[] salt)
+    {
+        users.put(id, new byte[][] {hash, salt});
+    }
+
+    /**
+     * @return connections open now
+     */
+    public int getOpen()
+    {
+        return open.get();
+    }
+
+    /**
+     * @return connections opened since the start
+     */
+    public int getOpened()
+    {
+        return opened.get();
+    }
+
+    /**
+     * @return statements prepared since the start
+     */
+    public int getPrepared()
+    {
+        return prepared.get();
+    }
+
+    /**
+     * @return users in the table
+     */
+    public int getUsers()
+    {
+        return users.size();
+    }
+}
@@ -0,0 +1,119 @@
+package com.kwanii.chat.bench;
+
+import com.kwanii.chat.Packet;
+import com.kwanii.chat.PacketCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Compares java serialization with PacketCodec:
+ * bytes per packet and encode / decode time per packet
+ */
+public class PacketCodecBenchmark
+{
+    final private static int ITERATIONS = 200000;
+
+    public static void main(String... args) throws Exception
+    {
+        Packet message = new Packet.Builder(Packet.MESSAGE)
+            .setSender("kwanii@chat.com").setRoomId("lobby")
+            .setMessage("hello").build();
+
+        HashSet<String> users = new HashSet<>();
+
+        for (int i = 0; i < 50; i++)
+            users.add("user" + i + "@chat.com");
+
+        Packet userList = new Packet.Builder(Packet.UPDATE_LIST)
+            .setSender(Packet.SERVER).setReceiver("kwanii@chat.com")
+            .setUserList(users).build();
+
+        measure("MESSAGE", message);
+        measure("UPDATE_LIST (50 users)", userList);
+    }
+
+    private static void measure(String name, Packet packet) throws Exception
+    {
+        System.out.println("== " + name);
+
+        byte[] serialized = serialize(packet);
+        byte[] binary = PacketCodec.encode(packet);
+
+        Benchmark.report("serialized bytes/packet", serialized.length, "bytes");
+        Benchmark.report("binary bytes/packet", binary.length, "bytes");
+
+        // the way the server writes: one stream reset after each packet
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+
+        Benchmark.run("serialized encode", ITERATIONS, i ->
+        {
+            bytes.reset();
+            output.writeUnshared(packet);
+            output.flush();
+            output.reset();
+            return bytes.size();
+        });
+
+        Benchmark.run("binary encode", ITERATIONS,
+            i -> PacketCodec.encode(packet).length);
+
+        // a stream with many packets, decoded the way the client reads
+        byte[] stream = serializeMany(packet, ITERATIONS);
+        ObjectInputStream[] input = new ObjectInputStream[1];
+
+        Benchmark.run("serialized decode", ITERATIONS, i ->
+        {
+            if (i == 0)
+                input[0] = new ObjectInputStream(
+                    new ByteArrayInputStream(stream));
+
+            return ((Packet) input[0].readObject()).getType();
+        });
+
+        Benchmark.run("binary decode", ITERATIONS, i ->
+            PacketCodec.decode(binary, PacketCodec.LENGTH_SIZE,
+                binary.length - PacketCodec.LENGTH_SIZE).getType());
+    }
+
+    // bytes of one packet in a long lived stream
+    private static byte[] serialize(Packet packet) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeUnshared(packet);
+        output.reset();
+        output.flush();
+
+        int first = bytes.size();
+
+        output.writeUnshared(packet);
+        output.reset();
+        output.flush();
+
+        return Arrays.copyOfRange(
+            bytes.toByteArray(), first, bytes.size());
+    }
+
+    private static byte[] serializeMany(Packet packet, int count)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+
+        for (int i = 0; i < count; i++)
+        {
+            output.writeUnshared(packet);
+            output.flush();
+            output.reset();
+        }
+
+        return bytes.toByteArray();
+    }
+}
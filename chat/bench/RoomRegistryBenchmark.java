@@ -0,0 +1,132 @@
+package com.kwanii.chat.bench;
+
+import com.kwanii.chat.server.RoomRegistry;
+
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the room registry with threads doing a mix of
+ * operations on shared rooms: 60% message fan-out over a member snapshot,
+ * 20% join and 20% leave, creating a room when it is gone. Each room has
+ * its own pool of users so rooms stay around ten members.
+ * One lock stripe shows the cost of a single lock for all rooms.
+ */
+public class RoomRegistryBenchmark
+{
+    final private static int ROOMS = 512;
+
+    final private static int USERS = 4096;
+
+    // users that join and leave a room
+    final private static int ROOM_POOL = 20;
+
+    final private static long RUN_MILLIS = 2000;
+
+    // ids made before measuring
+    final private static String[] ROOM_IDS = new String[ROOMS];
+
+    final private static String[] USER_IDS = new String[USERS];
+
+    public static void main(String... args) throws Exception
+    {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i < ROOMS; i++)
+            ROOM_IDS[i] = "room" + i;
+
+        for (int i = 0; i < USERS; i++)
+            USER_IDS[i] = "user" + i;
+
+        for (int stripes: new int[] {1, cores * 4})
+        {
+            System.out.println("== " + stripes + " stripes");
+
+            for (int threads = 1; threads <= cores * 2; threads <<= 1)
+            {
+                double opsPerSec = measure(new RoomRegistry(stripes), threads);
+                Benchmark.report(threads + " threads", opsPerSec, "ops/s");
+            }
+        }
+    }
+
+    private static double measure(RoomRegistry registry, int threads)
+        throws InterruptedException
+    {
+        // rooms with a few members to start with
+        for (int i = 0; i < ROOMS; i++)
+        {
+            registry.create(roomId(i), userId(i * 8));
+
+            for (int j = 1; j < ROOM_POOL / 2; j++)
+                registry.join(roomId(i), userId(i * 8 + j));
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong ops = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++)
+        {
+            Thread thread = new Thread(() ->
+            {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                long members = 0;
+
+                while (running.get())
+                {
+                    int room = random.nextInt(ROOMS);
+                    String roomId = roomId(room);
+                    String userId = userId(room * 8 + random.nextInt(ROOM_POOL));
+                    int op = random.nextInt(10);
+
+                    if (op < 6)
+                    {
+                        Set<String> snapshot = registry.snapshot(roomId);
+
+                        if (snapshot != null)
+                        {
+                            for (String member: snapshot)
+                                members += member.length();
+                        }
+                    }
+                    else if (op < 8)
+                    {
+                        if (registry.join(roomId, userId) == null)
+                            registry.create(roomId, userId);
+                    }
+                    else
+                        registry.leave(roomId, userId);
+
+                    count++;
+                }
+
+                ops.addAndGet(count);
+                Benchmark.consume(members);
+                done.countDown();
+            });
+
+            thread.start();
+        }
+
+        Thread.sleep(RUN_MILLIS);
+        running.set(false);
+        done.await();
+
+        return ops.get() * 1000.0 / RUN_MILLIS;
+    }
+
+    private static String roomId(int i)
+    {
+        return ROOM_IDS[i];
+    }
+
+    private static String userId(int i)
+    {
+        return USER_IDS[i % USERS];
+    }
+}
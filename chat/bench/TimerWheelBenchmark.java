@@ -0,0 +1,113 @@
+package com.kwanii.chat.bench;
+
+import com.kwanii.chat.server.TimerWheel;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of the timers of the server with many of them waiting: schedule and
+ * cancel, and reschedule, on the timer wheel and on a scheduled thread
+ * pool as each Schedule used, then how late timers fire on each.
+ */
+public class TimerWheelBenchmark
+{
+    // timers waiting during the measures, expiring in the next hour
+    final private static int WAITING = 100000;
+
+    final private static int OPERATIONS = 200000;
+
+    // timers fired to measure how late they are, over a second
+    final private static int FIRED = 10000;
+
+    public static void main(String... args) throws Exception
+    {
+        Random random = new Random(1);
+
+        TimerWheel wheel = new TimerWheel(10, 2, 4096);
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1);
+        pool.setRemoveOnCancelPolicy(true);
+
+        Runnable nothing = () -> { };
+
+        TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[WAITING];
+        ScheduledFuture<?>[] futures = new ScheduledFuture<?>[WAITING];
+
+        for (int i = 0; i < WAITING; i++)
+        {
+            long delay = 60000 + random.nextInt(3600000);
+            timeouts[i] = wheel.schedule(nothing, delay, TimeUnit.MILLISECONDS);
+            futures[i] = pool.schedule(nothing, delay, TimeUnit.MILLISECONDS);
+        }
+
+        System.out.printf("%d timers waiting%n", WAITING);
+
+        Benchmark.run("wheel schedule and cancel", OPERATIONS, i ->
+            wheel.schedule(nothing, 60000 + i, TimeUnit.MILLISECONDS)
+                .cancel() ? 1 : 0);
+
+        Benchmark.run("pool schedule and cancel", OPERATIONS, i ->
+            pool.schedule(nothing, 60000 + i, TimeUnit.MILLISECONDS)
+                .cancel(false) ? 1 : 0);
+
+        // an idle timer moved on each message, as a room expiry is
+        Benchmark.run("wheel reschedule", OPERATIONS, i ->
+            timeouts[i % WAITING].reschedule(60000 + i,
+                TimeUnit.MILLISECONDS) ? 1 : 0);
+
+        Benchmark.run("pool cancel and schedule again", OPERATIONS, i ->
+        {
+            int n = i % WAITING;
+            futures[n].cancel(false);
+            futures[n] = pool.schedule(nothing, 60000 + i, TimeUnit.MILLISECONDS);
+            return 1;
+        });
+
+        Benchmark.report("  wheel timers waiting", wheel.getPending(), "");
+        Benchmark.report("  pool timers waiting", pool.getQueue().size(), "");
+
+        Benchmark.report("wheel late fire avg", late((task, delay) ->
+            wheel.schedule(task, delay, TimeUnit.MILLISECONDS)), "ms");
+        Benchmark.report("pool late fire avg", late((task, delay) ->
+            pool.schedule(task, delay, TimeUnit.MILLISECONDS)), "ms");
+
+        wheel.close();
+        pool.shutdownNow();
+    }
+
+    /**
+     * Schedules timers over a second and waits for them
+     *
+     * @return the average time (ms) a timer fired after its time
+     */
+    private static double late(Scheduler scheduler) throws Exception
+    {
+        CountDownLatch latch = new CountDownLatch(FIRED);
+        AtomicLong late = new AtomicLong();
+
+        for (int i = 0; i < FIRED; i++)
+        {
+            long delay = i % 1000;
+            long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+
+            scheduler.schedule(() ->
+            {
+                late.addAndGet(System.nanoTime() - due);
+                latch.countDown();
+            }, delay);
+        }
+
+        latch.await(10, TimeUnit.SECONDS);
+
+        return (double) TimeUnit.NANOSECONDS.toMicros(late.get()) / FIRED / 1000;
+    }
+
+    private interface Scheduler
+    {
+        void schedule(Runnable task, long delay);
+    }
+}
@@ -0,0 +1,66 @@
+package com.kwanii.chat.bench;
+
+import com.kwanii.chat.server.FileUserStore;
+import com.kwanii.chat.server.UserStore;
+
+import java.io.File;
+
+/**
+ * Lookups and sign ups of the file user store, and the time to open a
+ * file with many users, which builds the index from the records.
+ */
+public class UserStoreBenchmark
+{
+    final private static int USERS = 200000;
+
+    final private static int LOOKUPS = 2000000;
+
+    // sign ups measured, as many again warm up
+    final private static int CREATES = 2000;
+
+    public static void main(String... args) throws Exception
+    {
+        File file = File.createTempFile("users-", ".dat");
+        file.delete();
+
+        String[] ids = new String[USERS];
+        byte[] hash = new byte[20];
+        byte[] salt = new byte[20];
+
+        for (int i = 0; i < USERS; i++)
+            ids[i] = "user" + i;
+
+        try
+        {
+            UserStore store = new FileUserStore(file);
+
+            for (int i = 0; i < USERS - 2 * CREATES; i++)
+                store.create(ids[i], hash, salt);
+
+            // every sign up forces the record to the disk
+            int[] next = {USERS - 2 * CREATES};
+
+            Benchmark.run("create", CREATES, i ->
+                store.create(ids[next[0]++], hash, salt) ? 1 : 0);
+
+            store.close();
+
+            long start = System.nanoTime();
+            UserStore reopened = new FileUserStore(file);
+            Benchmark.report("open " + USERS + " users",
+                (System.nanoTime() - start) / 1e6, "ms");
+
+            Benchmark.run("fetchCredentials", LOOKUPS, i ->
+                reopened.fetchCredentials(ids[i % USERS]).getHash().length);
+
+            Benchmark.run("exists, unknown id", LOOKUPS, i ->
+                reopened.exists("none" + (i & 1023)) ? 1 : 0);
+
+            reopened.close();
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.kwanii.chat.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides if a login or sign up may hash a password before it is queued.
+ * A client retrying in a loop is refused here, cheaply, instead of taking
+ * an auth thread for each attempt.
+ *
+ * Each IP address and each user id has a token bucket: an attempt takes a
+ * token, tokens come back at the rate set up to the burst. The number of
+ * attempts queued or hashing at once is capped for all users.
+ *
+ * The limits can be changed while the server runs, buckets use the new
+ * rate from their next attempt.
+ */
+public class AdmissionControl
+{
+    // returned by admit() when the attempt may go on
+    final public static long ADMITTED = 0;
+
+    // returned by admit() when too many attempts are hashing at once
+    final public static long BUSY = -1;
+
+    // attempts per minute and burst of an IP address, rate 0 is no limit
+    private volatile int ipRate;
+
+    private volatile int ipBurst;
+
+    // attempts per minute and burst of a user id, rate 0 is no limit
+    private volatile int userRate;
+
+    private volatile int userBurst;
+
+    // attempts queued or hashing at once
+    private volatile int maxConcurrent;
+
+    final private AtomicInteger concurrent = new AtomicInteger();
+
+    final private ConcurrentHashMap<String, Bucket> ipBuckets =
+        new ConcurrentHashMap<>();
+
+    final private ConcurrentHashMap<String, Bucket> userBuckets =
+        new ConcurrentHashMap<>();
+
+    // attempts refused by each limit
+    final private AtomicLong ipRejected = new AtomicLong();
+
+    final private AtomicLong userRejected = new AtomicLong();
+
+    final private AtomicLong busyRejected = new AtomicLong();
+
+    final private AtomicLong admitted = new AtomicLong();
+
+    public AdmissionControl(ServerConfig config)
+    {
+        setLimits(config.getLoginIpRate(), config.getLoginIpBurst(),
+            config.getLoginUserRate(), config.getLoginUserBurst(),
+            config.getLoginConcurrent());
+    }
+
+    /**
+     * Changes the limits, called by any thread
+     *
+     * @param ipRate attempts per minute of an IP address, 0 for no limit
+     * @param ipBurst attempts an IP address can make at once
+     * @param userRate attempts per minute of a user id, 0 for no limit
+     * @param userBurst attempts a user id can get at once
+     * @param maxConcurrent attempts queued or hashing at once
+     */
+    public void setLimits(int ipRate, int ipBurst, int userRate,
+                          int userBurst, int maxConcurrent)
+    {
+        this.ipRate = Math.max(0, ipRate);
+        this.ipBurst = Math.max(1, ipBurst);
+        this.userRate = Math.max(0, userRate);
+        this.userBurst = Math.max(1, userBurst);
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    /**
+     * Takes a slot and tokens for an attempt. An admitted attempt must call
+     * release() when its password is hashed.
+     *
+     * @param ip IP address of the connection
+     * @param userId user id of the attempt, null to skip its bucket
+     * @return ADMITTED, BUSY or the time (ms) until a token comes back
+     */
+    public long admit(String ip, String userId)
+    {
+        if (concurrent.incrementAndGet() > maxConcurrent)
+        {
+            concurrent.decrementAndGet();
+            busyRejected.incrementAndGet();
+            return BUSY;
+        }
+
+        long now = System.nanoTime();
+
+        long wait = take(ipBuckets, ip, ipRate, ipBurst, now);
+
+        if (wait > 0)
+            ipRejected.incrementAndGet();
+        else if (userId != null)
+        {
+            wait = take(userBuckets, userId, userRate, userBurst, now);
+
+            if (wait > 0)
+                userRejected.incrementAndGet();
+        }
+
+        if (wait > 0)
+        {
+            concurrent.decrementAndGet();
+            return TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+        }
+
+        admitted.incrementAndGet();
+
+        return ADMITTED;
+    }
+
+    /**
+     * Frees the slot of an admitted attempt
+     */
+    public void release()
+    {
+        concurrent.decrementAndGet();
+    }
+
+    /**
+     * @return 0 if a token is taken or the time (ns) until one comes back
+     */
+    private static long take(ConcurrentHashMap<String, Bucket> buckets,
+                             String key, int rate, int burst, long now)
+    {
+        if (rate <= 0)
+            return 0;
+
+        long[] wait = new long[1];
+
+        // compute() runs one attempt of a key at a time
+        buckets.compute(key, (k, bucket) ->
+        {
+            if (bucket == null)
+                bucket = new Bucket(burst, now);
+
+            wait[0] = bucket.take(rate, burst, now);
+            return bucket;
+        });
+
+        return wait[0];
+    }
+
+    /**
+     * Drops full buckets, they are the same as no bucket. Called
+     * periodically so addresses and ids seen once don't stay.
+     */
+    public void purge()
+    {
+        purge(ipBuckets, ipRate, ipBurst);
+        purge(userBuckets, userRate, userBurst);
+    }
+
+    private static void purge(ConcurrentHashMap<String, Bucket> buckets,
+                              int rate, int burst)
+    {
+        long now = System.nanoTime();
+
+        // checked inside computeIfPresent() so an attempt isn't lost
+        for (String key: buckets.keySet())
+            buckets.computeIfPresent(key, (k, bucket) ->
+                bucket.isFull(rate, burst, now) ? null : bucket);
+    }
+
+    public int getIpRate()
+    {
+        return ipRate;
+    }
+
+    public int getIpBurst()
+    {
+        return ipBurst;
+    }
+
+    public int getUserRate()
+    {
+        return userRate;
+    }
+
+    public int getUserBurst()
+    {
+        return userBurst;
+    }
+
+    public int getMaxConcurrent()
+    {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return attempts queued or hashing now
+     */
+    public int getConcurrent()
+    {
+        return concurrent.get();
+    }
+
+    public long getAdmitted()
+    {
+        return admitted.get();
+    }
+
+    public long getIpRejected()
+    {
+        return ipRejected.get();
+    }
+
+    public long getUserRejected()
+    {
+        return userRejected.get();
+    }
+
+    public long getBusyRejected()
+    {
+        return busyRejected.get();
+    }
+
+    /**
+     * Tokens of an IP address or a user id, changed inside compute()
+     */
+    private static class Bucket
+    {
+        private double tokens;
+
+        // time the tokens were counted (ns)
+        private long updated;
+
+        Bucket(int burst, long now)
+        {
+            tokens = burst;
+            updated = now;
+        }
+
+        // add the tokens come back since the last count
+        private void refill(int rate, int burst, long now)
+        {
+            tokens = Math.min(burst,
+                tokens + (now - updated) * rate / (double) TimeUnit.MINUTES.toNanos(1));
+            updated = now;
+        }
+
+        long take(int rate, int burst, long now)
+        {
+            refill(rate, burst, now);
+
+            if (tokens >= 1)
+            {
+                tokens -= 1;
+                return 0;
+            }
+
+            return (long) ((1 - tokens) * TimeUnit.MINUTES.toNanos(1) / rate);
+        }
+
+        boolean isFull(int rate, int burst, long now)
+        {
+            return rate <= 0 || tokens
+                + (now - updated) * rate / (double) TimeUnit.MINUTES.toNanos(1)
+                >= burst;
+        }
+    }
+}
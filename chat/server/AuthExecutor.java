@@ -0,0 +1,146 @@
+package com.kwanii.chat.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool for password hashing. Login and sign up hash the password
+ * with PBKDF2 for a long time, running them here keeps connection threads
+ * and event loops free for messages when many users log in at once.
+ *
+ * When the queue is full a task is refused rather than queued, the user is
+ * told to retry after the time the queue is expected to take.
+ */
+public class AuthExecutor
+{
+    final private ThreadPoolExecutor executor;
+
+    final private int numThreads;
+
+    // the least retry time given to a refused user (ms)
+    final private long minRetryAfter;
+
+    // tasks completed and the time they ran
+    final private AtomicLong completed = new AtomicLong();
+
+    final private AtomicLong totalNanos = new AtomicLong();
+
+    // tasks refused because the queue was full
+    final private AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Starts daemon threads that take tasks from a bounded queue
+     *
+     * @param numThreads the number of threads
+     * @param queueCapacity tasks waiting before new tasks are refused
+     * @param minRetryAfter the least retry time given to a refused user (ms)
+     */
+    public AuthExecutor(int numThreads, int queueCapacity, long minRetryAfter)
+    {
+        this.numThreads = Math.max(1, numThreads);
+        this.minRetryAfter = minRetryAfter;
+
+        AtomicInteger count = new AtomicInteger();
+
+        executor = new ThreadPoolExecutor(this.numThreads, this.numThreads,
+            0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), task ->
+            {
+                Thread thread =
+                    new Thread(task, "auth-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    public AuthExecutor(ServerConfig config)
+    {
+        this(config.getAuthThreads(), config.getAuthQueue(),
+            config.getAuthRetryAfter());
+    }
+
+    /**
+     * Queues a task unless the queue is full, it can be called by any thread
+     *
+     * @param task login or sign up work, it sends the result itself
+     * @return false if the task was refused
+     */
+    public boolean submit(Runnable task)
+    {
+        try
+        {
+            executor.execute(() ->
+            {
+                long start = System.nanoTime();
+
+                try
+                {
+                    task.run();
+                }
+                finally
+                {
+                    totalNanos.addAndGet(System.nanoTime() - start);
+                    completed.incrementAndGet();
+                }
+            });
+
+            return true;
+        }
+        catch (RejectedExecutionException ex)
+        {
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Estimates the time until the queue has room, from the tasks waiting
+     * and the average time of a task
+     *
+     * @return time a refused user should wait before retrying (ms)
+     */
+    public long getRetryAfter()
+    {
+        long estimate = TimeUnit.NANOSECONDS.toMillis(
+            (getQueueDepth() + numThreads) * getAverageTime() / numThreads);
+
+        return Math.max(minRetryAfter, estimate);
+    }
+
+    /**
+     * @return tasks waiting for a thread
+     */
+    public int getQueueDepth()
+    {
+        return executor.getQueue().size();
+    }
+
+    public long getCompleted()
+    {
+        return completed.get();
+    }
+
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * @return average time a task ran (ns)
+     */
+    public long getAverageTime()
+    {
+        long count = completed.get();
+
+        return (count == 0) ? 0 : totalNanos.get() / count;
+    }
+
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,156 @@
+package com.kwanii.chat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of strings that answers "definitely not in" or "maybe in". It keeps
+ * bits instead of the strings, so a million user ids fit in about a
+ * megabyte at a 1% false positive rate.
+ *
+ * Bits are only set, never cleared, so threads add and test without a
+ * lock. Each string sets k bits picked from two 64 bit hashes.
+ */
+public class BloomFilter
+{
+    // the bits, set with compare and swap
+    final private AtomicLongArray words;
+
+    // the number of bits
+    final private long size;
+
+    // bits set for each string
+    final private int hashes;
+
+    // strings added, the false positive rate grows with it
+    final private AtomicLong count = new AtomicLong();
+
+    /**
+     * Sizes the filter for the expected strings and false positive rate
+     *
+     * @param expected strings expected to be added
+     * @param fpr false positive rate with that many strings, e.g. 0.01
+     */
+    public BloomFilter(int expected, double fpr)
+    {
+        expected = Math.max(1, expected);
+        fpr = Math.min(0.5, Math.max(1e-9, fpr));
+
+        // m = -n ln p / (ln 2)^2, k = m / n ln 2
+        long bits = (long) Math.ceil(
+            -expected * Math.log(fpr) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) >>> 6);
+
+        this.words = new AtomicLongArray(words);
+        this.size = (long) words << 6;
+        this.hashes = Math.max(1,
+            (int) Math.round((double) size / expected * Math.log(2)));
+    }
+
+    /**
+     * Adds a string
+     *
+     * @param value string to add
+     */
+    public void add(String value)
+    {
+        long hash1 = hash(value, 0x9E3779B97F4A7C15L);
+        long hash2 = hash(value, 0xC2B2AE3D27D4EB4FL) | 1;
+        boolean changed = false;
+
+        for (int i = 0; i < hashes; i++)
+            changed |= set(Long.remainderUnsigned(hash1 + i * hash2, size));
+
+        // a string already added sets no new bit
+        if (changed)
+            count.incrementAndGet();
+    }
+
+    /**
+     * Tests a string
+     *
+     * @param value string to test
+     * @return false if the string was never added, true if it may have been
+     */
+    public boolean mightContain(String value)
+    {
+        long hash1 = hash(value, 0x9E3779B97F4A7C15L);
+        long hash2 = hash(value, 0xC2B2AE3D27D4EB4FL) | 1;
+
+        for (int i = 0; i < hashes; i++)
+        {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, size);
+
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    // set a bit, true if it was clear
+    private boolean set(long bit)
+    {
+        int index = (int) (bit >>> 6);
+        long mask = 1L << bit;
+
+        while (true)
+        {
+            long word = words.get(index);
+
+            if ((word & mask) != 0)
+                return false;
+
+            if (words.compareAndSet(index, word, word | mask))
+                return true;
+        }
+    }
+
+    // 64 bit hash of the chars, mixed like murmur3's finalizer
+    private static long hash(String value, long seed)
+    {
+        long hash = seed ^ value.length();
+
+        for (int i = 0; i < value.length(); i++)
+            hash = (hash ^ value.charAt(i)) * 0x100000001B3L;
+
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    /**
+     * @return the false positive rate expected with the strings added
+     */
+    public double getFalsePositiveRate()
+    {
+        return Math.pow(
+            1 - Math.exp(-(double) hashes * count.get() / size), hashes);
+    }
+
+    /**
+     * @return the number of bits
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    public int getHashes()
+    {
+        return hashes;
+    }
+
+    /**
+     * @return the number of strings added, a string that set no new bit
+     *         (added before or a false positive) isn't counted
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+}
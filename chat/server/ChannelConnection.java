@@ -0,0 +1,432 @@
+package com.kwanii.chat.server;
+
+import com.kwanii.chat.EncodedPacket;
+import com.kwanii.chat.Handshake;
+import com.kwanii.chat.Packet;
+import com.kwanii.chat.PacketCodec;
+import com.kwanii.chat.WireFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.SequenceInputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection over a non-blocking channel owned by one event loop.
+ *
+ * The first bytes from the client choose the wire format: a hello
+ * negotiates the binary codec, and the object stream header of an old
+ * client selects java serialization. For serialization it speaks the same
+ * object stream as ObjectInputStream and ObjectOutputStream. Clients reset
+ * their stream after every packet, so each packet can be decoded on its
+ * own as soon as all of its bytes have arrived.
+ *
+ * Senders on any thread only queue encoded packets, the loop writes them.
+ */
+public class ChannelConnection implements UserConnection
+{
+    // the largest packet accepted from a client
+    final private static int MAX_PACKET_SIZE = PacketCodec.MAX_FRAME_SIZE;
+
+    final private static byte[] STREAM_HEADER = WireFormat.STREAM_HEADER;
+
+    // the most packets written with one gathering write
+    final private static int WRITE_BATCH = 16;
+
+    final private SocketChannel channel;
+
+    final private SelectionKey key;
+
+    final private NioServer.EventLoop loop;
+
+    final private String remoteAddress;
+
+    // encoded packets waiting to be written
+    final private OutboundQueue outbound;
+
+    // packets taken from the queue, from batchStart are not fully written
+    final private ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+
+    private int batchStart;
+
+    private int batchEnd;
+
+    // true while a flush task is queued on the loop
+    final private AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    final private AtomicBoolean closed = new AtomicBoolean();
+
+    // false makes the client fall back to serialization
+    final private boolean allowBinary;
+
+    private NioServer.Handler handler;
+
+    // null until the client's first bytes arrive
+    private volatile WireFormat format;
+
+    // bytes read, the ones from receivedStart are not decoded yet
+    private byte[] received = new byte[1024];
+
+    private int receivedStart;
+
+    private int receivedLength;
+
+    private boolean headerReceived;
+
+    ChannelConnection(SocketChannel channel, SelectionKey key,
+                      NioServer.EventLoop loop, boolean allowBinary,
+                      OutboundQueue.Settings outboundSettings)
+        throws IOException
+    {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.allowBinary = allowBinary;
+        outbound = new OutboundQueue(outboundSettings);
+        remoteAddress = channel.getRemoteAddress().toString();
+    }
+
+    void setHandler(NioServer.Handler handler)
+    {
+        this.handler = handler;
+    }
+
+    @Override
+    public void sendPacket(EncodedPacket packet)
+    {
+        WireFormat format = this.format;
+
+        if (format == null)
+            return;
+
+        try
+        {
+            write(packet.getFrame(format));
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Queues bytes and lets the loop write them, it can be called by any thread
+     *
+     * @param frame bytes to write
+     */
+    private void write(byte[] frame)
+    {
+        if (closed.get())
+            return;
+
+        if (!outbound.offer(frame))
+        {
+            // the user is too slow, close it on the loop like other closes
+            loop.execute(this::close);
+            return;
+        }
+
+        if (flushScheduled.compareAndSet(false, true))
+            loop.execute(this::flush);
+    }
+
+    /**
+     * Writes queued bytes until the socket buffer is full, called by the loop
+     */
+    void flush()
+    {
+        flushScheduled.set(false);
+
+        try
+        {
+            while (true)
+            {
+                if (batchStart == batchEnd && !fillBatch())
+                    break;
+
+                channel.write(batch, batchStart, batchEnd - batchStart);
+
+                while (batchStart < batchEnd && !batch[batchStart].hasRemaining())
+                    batch[batchStart++] = null;
+
+                // the socket is full, wait until it is writable
+                if (batchStart < batchEnd)
+                {
+                    if (key.isValid())
+                        key.interestOps(
+                            SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            if (key.isValid())
+                key.interestOps(SelectionKey.OP_READ);
+        }
+        catch (IOException ex)
+        {
+            close();
+        }
+    }
+
+    /**
+     * Takes packets from the queue for the next gathering write
+     *
+     * @return false if the queue is empty
+     */
+    private boolean fillBatch()
+    {
+        batchStart = batchEnd = 0;
+
+        byte[] frame;
+
+        while (batchEnd < batch.length && (frame = outbound.poll()) != null)
+            batch[batchEnd++] = ByteBuffer.wrap(frame);
+
+        return batchEnd > 0;
+    }
+
+    /**
+     * Reads available bytes and dispatches every complete packet,
+     * called by the loop
+     */
+    void read()
+    {
+        try
+        {
+            ByteBuffer buffer = loop.getReadBuffer();
+            buffer.clear();
+
+            int count = channel.read(buffer);
+
+            if (count < 0)
+            {
+                close();
+                return;
+            }
+
+            buffer.flip();
+
+            if (receivedStart + receivedLength + count > received.length)
+            {
+                // move undecoded bytes to the front, grow if it's not enough
+                if (receivedLength + count > received.length)
+                    received = Arrays.copyOf(received,
+                        Math.max(received.length << 1, receivedLength + count));
+
+                System.arraycopy(received, receivedStart,
+                    received, 0, receivedLength);
+                receivedStart = 0;
+            }
+
+            buffer.get(received, receivedStart + receivedLength, count);
+            receivedLength += count;
+
+            while (receivedLength > 0 && decodeNext())
+            {
+                // keep decoding until a packet is incomplete
+            }
+
+            if (receivedLength == 0)
+                receivedStart = 0;
+
+            if (receivedLength > MAX_PACKET_SIZE)
+                throw new StreamCorruptedException("Packet is too large");
+        }
+        catch (IOException | ClassNotFoundException ex)
+        {
+            ex.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Decodes one packet from the received bytes and dispatches it
+     *
+     * @return false if the packet is not complete yet
+     */
+    private boolean decodeNext() throws IOException, ClassNotFoundException
+    {
+        if (format == null)
+            return negotiate();
+
+        if (format == WireFormat.BINARY)
+            return decodeFrame();
+
+        return decodeObject();
+    }
+
+    /**
+     * Chooses the wire format from the client's first bytes
+     *
+     * @return false if the hello is not complete yet
+     */
+    private boolean negotiate() throws IOException
+    {
+        if (receivedLength < 2)
+            return false;
+
+        // an old client opened an object stream without a hello
+        if (Handshake.isObjectStream(
+            received[receivedStart], received[receivedStart + 1]))
+        {
+            format = WireFormat.SERIALIZED;
+            write(STREAM_HEADER);
+            return true;
+        }
+
+        if (receivedLength < Handshake.HELLO_SIZE)
+            return false;
+
+        WireFormat chosen = (allowBinary && Handshake.readHello(
+            received, receivedStart) == WireFormat.BINARY) ?
+            WireFormat.BINARY : WireFormat.SERIALIZED;
+
+        consume(Handshake.HELLO_SIZE);
+
+        // one packet so a full queue can't drop half of the handshake.
+        // The client opens its object stream after the response
+        byte[] response = Handshake.response(chosen);
+
+        if (chosen == WireFormat.SERIALIZED)
+        {
+            response = Arrays.copyOf(response,
+                response.length + STREAM_HEADER.length);
+            System.arraycopy(STREAM_HEADER, 0, response,
+                Handshake.RESPONSE_SIZE, STREAM_HEADER.length);
+        }
+
+        write(response);
+
+        format = chosen;
+        return true;
+    }
+
+    private boolean decodeFrame() throws IOException
+    {
+        if (receivedLength < PacketCodec.LENGTH_SIZE)
+            return false;
+
+        int length = PacketCodec.frameLength(received, receivedStart);
+
+        if (receivedLength < PacketCodec.LENGTH_SIZE + length)
+            return false;
+
+        Packet packet = PacketCodec.decode(received,
+            receivedStart + PacketCodec.LENGTH_SIZE, length);
+
+        consume(PacketCodec.LENGTH_SIZE + length);
+
+        if (handler != null)
+            handler.handlePacket(packet);
+
+        return true;
+    }
+
+    private boolean decodeObject() throws IOException, ClassNotFoundException
+    {
+        if (!headerReceived)
+        {
+            if (receivedLength < STREAM_HEADER.length)
+                return false;
+
+            for (int i = 0; i < STREAM_HEADER.length; i++)
+            {
+                if (received[receivedStart + i] != STREAM_HEADER[i])
+                    throw new StreamCorruptedException("Invalid stream header");
+            }
+
+            consume(STREAM_HEADER.length);
+            headerReceived = true;
+            return true;
+        }
+
+        ByteArrayInputStream chunk = new ByteArrayInputStream(
+            received, receivedStart, receivedLength);
+
+        Object obj;
+
+        try
+        {
+            ObjectInputStream input = new ObjectInputStream(
+                new SequenceInputStream(
+                    new ByteArrayInputStream(STREAM_HEADER), chunk));
+
+            obj = input.readObject();
+        }
+        catch (IOException ex)
+        {
+            // the object ran past the received bytes, wait for the rest.
+            // It may fail inside a data block, not only as EOFException
+            if (chunk.available() == 0)
+                return false;
+
+            throw ex;
+        }
+
+        consume(receivedLength - chunk.available());
+
+        if (obj instanceof Packet && handler != null)
+            handler.handlePacket((Packet) obj);
+
+        return true;
+    }
+
+    private void consume(int length)
+    {
+        receivedStart += length;
+        receivedLength -= length;
+    }
+
+    public WireFormat getFormat()
+    {
+        return format;
+    }
+
+    @Override
+    public Socket getSocket()
+    {
+        return channel.socket();
+    }
+
+    @Override
+    public String getRemoteAddress()
+    {
+        return remoteAddress;
+    }
+
+    @Override
+    public boolean isClosed()
+    {
+        return closed.get();
+    }
+
+    @Override
+    public void close()
+    {
+        if (!closed.compareAndSet(false, true))
+            return;
+
+        key.cancel();
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        outbound.close();
+
+        if (handler != null)
+            handler.connectionClosed();
+    }
+}
@@ -1,68 +1,88 @@
 package com.kwanii.chat.server;
 
 
+import com.kwanii.chat.RecordFile;
 import com.kwanii.chat.Recordable;
-import javafx.geometry.Insets;
-import javafx.geometry.Pos;
-import javafx.scene.Scene;
-import javafx.scene.control.*;
-import javafx.scene.control.cell.PropertyValueFactory;
-
-import javafx.scene.layout.HBox;
-
-
-import javafx.scene.layout.VBox;
-import javafx.scene.text.Text;
-
-import javafx.stage.FileChooser;
-import javafx.stage.Modality;
-import javafx.stage.Stage;
-
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.Calendar;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 
 //TODO ini file for setup
 //TODO log status messages and exception
-//TODO need to arrange data for search later
 
 /**
- *  Log server's event
+ *  Log server's event. LogSettingsWindow edits its schedules and
+ *  searches the records.
+ *
+ *  Records are written by a LogWriter thread, the connection threads
+ *  that log an event only queue it. The writer rotates the file when a
+ *  schedule runs or the file reaches log.rotate.size or log.rotate.age.
+ *  Each file closed gets an index, then is compressed, on the archiver
+ *  thread. LogSearch reads the records through the index.
  */
 public class ChatLog
 {
-    final private static Double DEFAULT_WIDTH = 640.0;
-
-    final private static Double DEFAULT_HEIGHT = 480.0;
-
-    final private static String FILE_FORMAT = "%tF_T%tH%tM.log";
+    // rotation time to the ms, names sort in time order
+    final private static String FILE_FORMAT = "%1$tF_T%1$tH%1$tM%1$tS%1$tL.log";
 
     final private static String SCHEDULE_FILE = "schedule.dat";
 
+    // last fire of each schedule by its cron expression
+    final private static String FIRED_FILE = "schedule.fired";
+
     final private static String SCHEDULE_DIR = "schedule/";
 
     final private static String LOG_DIR = "log/";
 
-    private ChatServer chatServer;
+    private ChatServerCore chatServer;
 
-    private File logFile;
+    private File logFile = new File(LOG_DIR + "temp.log");
 
-    private File scheduleFile = new File(SCHEDULE_DIR + SCHEDULE_FILE);
+    // appends the records to logFile on its own thread
+    private LogWriter logWriter;
 
-    private long filePos;
+    // indexes and compresses each closed file, one at a time
+    final private ExecutorService archiver = Executors.newSingleThreadExecutor(r ->
+    {
+        Thread thread = new Thread(r, "log-archiver");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private LogSearch logSearch;
+
+    // compress the closed files
+    final private boolean compress;
+
+    private File scheduleFile = new File(SCHEDULE_DIR + SCHEDULE_FILE);
 
     private ArrayList<Schedule> schedules = new ArrayList<>();
 
+    // what the schedules do with the fires missed while stopped
+    final private ServerConfig.CatchUp catchUp;
 
-    public ChatLog(ChatServer chatServer)
+    // last fires (epoch ms) by cron expression, kept in FIRED_FILE
+    final private Properties fired = new Properties();
+
+    final private ReentrantLock firedLock = new ReentrantLock();
+
+    public ChatLog(ChatServerCore chatServer, ServerConfig config)
     {
         this.chatServer = chatServer;
-        createNewLogFile();
-        loadSchedule(scheduleFile, schedules, true);
-        startSchedules(schedules, this::createNewLogFile);
+        this.compress = config.isLogCompress();
+        this.catchUp = config.getScheduleCatchUp();
 
         File file = new File(LOG_DIR);
 
@@ -73,261 +93,97 @@ public class ChatLog
 
         if (!file.exists())
             file.mkdirs();
-    }
-
-    /**
-     * Create new Stage for Setting
-     *
-     * @return stage for log setting
-     */
-
-    public Stage getSettingStage()
-    {
-        // stage to return
-        Stage settingStage = new Stage();
-        settingStage.setTitle("Log Settings");
-
-
-        /**
-         * Setting items to input date and time
-         */
-
-        ComboBox<String> cbRoutine = new ComboBox<>();
-        cbRoutine.getItems().setAll("Monthly", "Weekly", "Daily", "Hourly");
-        cbRoutine.getSelectionModel().select(0);
-
-        Label lbRoutine = new Label("Schedule Task", cbRoutine);
-        lbRoutine.setContentDisplay(ContentDisplay.BOTTOM);
-
-        ComboBox<String> cbWeek = new ComboBox<>();
-        cbWeek.getItems()
-            .setAll("Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat");
-        cbWeek.getSelectionModel().select(0);
-        cbWeek.setDisable(true);
-
-        Spinner<Integer> spinDay = new Spinner<>(1, 31, 1);
-        spinDay.setPrefWidth(80);
-
-        Spinner<Integer> spinHour = new Spinner<>(0, 24, 0);
-        spinHour.setPrefWidth(80);
-
-        Spinner<Integer> spinMin = new Spinner<>(0, 60, 0, 5);
-        spinMin.setPrefWidth(80);
-
-        Label lbWeek = new Label("Day of week", cbWeek);
-        Label lbDay = new Label("day(s)", spinDay);
-        Label lbHour = new Label("hour(s)", spinHour);
-        Label lbMin = new Label("min(s)", spinMin);
 
-        lbWeek.setContentDisplay(ContentDisplay.BOTTOM);
-        lbDay.setContentDisplay(ContentDisplay.BOTTOM);
-        lbHour.setContentDisplay(ContentDisplay.BOTTOM);
-        lbMin.setContentDisplay(ContentDisplay.BOTTOM);
-
-        HBox timeBox =
-            new HBox(5, lbRoutine, lbWeek, lbDay, lbHour, lbMin);
-        timeBox.setAlignment(Pos.CENTER);
-
-        /**
-         *  Buttons to add and remove a schedule and Comment Text Field
-         */
-
-        Button btAdd = new Button("Add");
-        btAdd.setPrefWidth(100);
-        Button btRemove = new Button("Remove");
-        btRemove.setPrefWidth(100);
-        TextField tfComment = new TextField();
-        tfComment.setPrefWidth(350);
-        Label lbComment = new Label("Comment", tfComment);
-        lbComment.setContentDisplay(ContentDisplay.RIGHT);
-
-        HBox btBox = new HBox(10 , lbComment, btAdd, btRemove);
-        btBox.setAlignment(Pos.CENTER);
-
-
-        /**
-         * Table view interface to show registered schedules
-         */
-
-        TableView<Schedule> scheduleTableView = new TableView<>();
-
-        TableColumn<Schedule, String> scheduleCol = new TableColumn<>("Schedule");
-        scheduleCol.setCellValueFactory(new PropertyValueFactory<>("name"));
-        scheduleCol.setPrefWidth(DEFAULT_WIDTH * 0.4);
-
-        TableColumn<Schedule, String> commentCol = new TableColumn<>("Comment");
-        commentCol.setCellValueFactory(new PropertyValueFactory<>("comment"));
-        commentCol.setPrefWidth(DEFAULT_WIDTH * 0.6);
-
-        scheduleTableView.getColumns().setAll(scheduleCol, commentCol);
-        scheduleTableView.getItems().setAll(schedules);
-
-
-        /**
-         * File chooser interface
-         */
-
-        Text txtFilePath = new Text(scheduleFile.getAbsolutePath());
-        Label lbFilePath = new Label("Schedule file", txtFilePath);
-        lbFilePath.setContentDisplay(ContentDisplay.BOTTOM);
-
-        Button btLoad = new Button("Load a file");
-        btLoad.setPrefWidth(100);
-        Button btSaveAs = new Button("Save as");
-        btSaveAs.setPrefWidth(100);
-
-        FileChooser chooser = new FileChooser();
-        chooser.setTitle("Choose a file to save log files");
-        chooser.setInitialDirectory(new File(SCHEDULE_DIR));
-        chooser.getExtensionFilters().add(
-            new FileChooser.ExtensionFilter("Schedule data files", "*.dat"));
-
-        HBox fileBox = new HBox(10, lbFilePath, btLoad, btSaveAs);
-        fileBox.setAlignment(Pos.CENTER);
-
-
-        /**
-         * Buttons for apply and cancel
-         */
-
-        Button btApply = new Button("Apply");
-        btApply.setPrefWidth(100);
-        Button btCancel = new Button("Cancel");
-        btCancel.setPrefWidth(100);
-
-        HBox applyBox = new HBox(10, btApply, btCancel);
-        applyBox.setAlignment(Pos.CENTER_RIGHT);
-
-
-        // set input controls options following the routine value
-        cbRoutine.setOnAction(ev ->
+        try
         {
-            cbWeek.setDisable(true);
-            spinDay.setDisable(true);
-            spinHour.setDisable(true);
-
-            switch(cbRoutine.getValue())
-            {
-                case "Weekly":
-                    cbWeek.setDisable(false);
-                    spinHour.setDisable(false);
-                    break;
-                case "Monthly":
-                    spinDay.setDisable(false);
-                case "Daily":
-                    spinHour.setDisable(false);
-            }
-        });
-
-        // button load action: load a file and refresh the schedules
-        btLoad.setOnAction( ev->
+            logWriter = new LogWriter(logFile, config.getLogSyncInterval(),
+                config.getLogSyncBatch(), config.getLogRotateSize(),
+                config.getLogRotateAge(), this::nextLogFile, this::archive);
+        }
+        catch (IOException ex)
         {
-            File selectedFile = chooser.showOpenDialog(settingStage);
+            throw new UncheckedIOException(ex);
+        }
 
-            if (selectedFile!= null)
-            {
-                loadSchedule(selectedFile, scheduleTableView.getItems(), true);
+        logSearch = new LogSearch(new File(LOG_DIR), logWriter);
 
-                txtFilePath.setText(selectedFile.getAbsolutePath());
-            }
-        });
-
-        // save current data to a new file
-        btSaveAs.setOnAction(ev ->
-        {
-            File selectedFile = chooser.showSaveDialog(settingStage);
+        // files closed before the last stop and not archived
+        File[] closed = new File(LOG_DIR).listFiles((dir, name) ->
+            name.endsWith(".log") && !name.equals(logFile.getName())
+                && (compress || !LogIndex.indexFile(new File(dir, name)).exists()));
 
-            if (selectedFile!= null)
-                saveSchedule(selectedFile, scheduleTableView.getItems());
-        });
+        if (closed != null)
+            for (File closedFile: closed)
+                archive(closedFile);
 
-        // create new schedule object and add it to the tableView
-        btAdd.setOnAction(ev ->
+        try (InputStream input = new FileInputStream(SCHEDULE_DIR + FIRED_FILE))
         {
-            // get selected routine
-            String routine = cbRoutine.getSelectionModel().getSelectedItem();
-
-            // get current time
-            Calendar eventTime = Calendar.getInstance();
-
-            // when routine is weekly get a day of week
-            int dayOfWeek = cbWeek.isDisable() ? -1
-                : cbWeek.getSelectionModel().getSelectedIndex() + 1;
-
-            // get comment
-            String comment = tfComment.getText().trim();
-
-            // set event time from the user inputs
-            switch (routine)
-            {
-                case "Monthly":
-                    eventTime.set(Calendar.DATE, spinDay.getValue());
-                case "Weekly":
-                case "Daily":
-                    eventTime.set(Calendar.HOUR_OF_DAY, spinHour.getValue());
-                case "Hourly":
-                    eventTime.set(Calendar.MINUTE, spinMin.getValue());
-                    eventTime.set(Calendar.SECOND, 0);
-                    eventTime.set(Calendar.MILLISECOND, 0);
-            }
-
-            // create a new schedule and add it to the table view
-            Schedule schedule = new Schedule(routine, eventTime, comment, dayOfWeek);
-            System.out.println(schedule.getBytes().length);
-            scheduleTableView.getItems().add(schedule);
-        });
-
-        // Button remove: remove schedule item from the table view
-        btRemove.setOnAction(ev ->
+            fired.load(input);
+        }
+        catch (FileNotFoundException ex)
         {
-            scheduleTableView.getItems().remove(
-                scheduleTableView.getSelectionModel().getSelectedItem());
-        });
-
-        // Button apply setting
-        btApply.setOnAction(ev ->
+            // no schedule fired yet
+        }
+        catch (IOException ex)
         {
-            // cancel all task in the schedules
-            cancelSchedules(schedules);
+            ex.printStackTrace();
+        }
 
-            // remove schedules
-            schedules.clear();
+        loadSchedule(scheduleFile, schedules, true);
+        startSchedules(schedules, this::createNewLogFile);
+    }
 
-            // add schedules from the setting table view
-            schedules.addAll(scheduleTableView.getItems());
+    /**
+     * @return a copy of the schedules running
+     */
+    public List<Schedule> getSchedules()
+    {
+        return new ArrayList<>(schedules);
+    }
 
-            // start new schedules
-            startSchedules(schedules, this::createNewLogFile);
+    public File getScheduleFile()
+    {
+        return scheduleFile;
+    }
 
-            // create a new file from the user selection
-            scheduleFile = new File(txtFilePath.getText());
+    /**
+     * @return directory a schedule file is chosen from
+     */
+    public File getScheduleDirectory()
+    {
+        return new File(SCHEDULE_DIR);
+    }
 
-            // save new schedules into a schedule file
-            saveSchedule(scheduleFile, schedules);
+    /**
+     * Replaces the schedules running and saves them
+     *
+     * @param newSchedules schedules to start
+     * @param file schedule file to save them in, loaded next time
+     */
+    public void applySchedules(Collection<Schedule> newSchedules, File file)
+    {
+        // cancel all task in the schedules
+        cancelSchedules(schedules);
 
-            // close this stage
-            settingStage.close();
-        });
+        // remove schedules
+        schedules.clear();
 
-        // cancel button action
-        btCancel.setOnAction(ev -> settingStage.close());
+        // add schedules from the setting table view
+        schedules.addAll(newSchedules);
 
-        // put all nodes into the root pane
-        VBox rootPane =
-            new VBox(10, timeBox, btBox, scheduleTableView, fileBox, applyBox);
-        rootPane.setAlignment(Pos.CENTER);
-        rootPane.setPadding(new Insets(5));
+        // start new schedules
+        startSchedules(schedules, this::createNewLogFile);
 
+        scheduleFile = file;
 
-        Scene scene = new Scene(rootPane, DEFAULT_WIDTH, DEFAULT_HEIGHT);
-        settingStage.setScene(scene);
-        settingStage.initModality(Modality.APPLICATION_MODAL);
-        settingStage.setResizable(false);
-        return settingStage;
+        // save new schedules into a schedule file
+        saveSchedule(scheduleFile, schedules);
     }
 
     /**
-     * Load data from schedule file and add it to Collection object
+     * Load data from schedule file and add it to Collection object. The
+     * file is read at once and decoded in one pass, a file in the legacy
+     * layout is saved again in the versioned one.
      *
      * @param file File object to load
      * @param schedules Collection object to add data from the file
@@ -348,49 +204,29 @@ public class ChatLog
             String.format("[Loaded Schedule file] %s, Time: %s",
             file.getAbsolutePath(), chatServer.getCurrentTime()));
 
-        try (DataInputStream input =
-                 new DataInputStream(new FileInputStream(file)))
+        try
         {
+            ByteBuffer buffer = RecordFile.load(file);
+            boolean legacy = !RecordFile.hasHeader(buffer, Schedule.FILE_MAGIC);
 
-            while(input.available() >= Schedule.SIZE)
-            {
-                StringBuilder builder = new StringBuilder();
-
-
-                for (int i = 0; i < (Schedule.NAME_SIZE >>> 1); i++)
-                    builder.append(input.readChar());
-
-                String name = builder.toString().trim();
-
-                builder = new StringBuilder();
-
-                for (int i = 0; i < (Schedule.ROUTINE_SIZE >>> 1); i++)
-                    builder.append(input.readChar());
-
-                String routine = builder.toString().trim();
-
-                builder = new StringBuilder();
-
-                for (int i = 0; i < (Schedule.COMMENT_SIZE >>> 1); i++)
-                    builder.append(input.readChar());
-
-                String comment = builder.toString().trim();
-
-                long eventTime = input.readLong();
-                int dayOfWeek = input.readInt();
-
-                Schedule schedule =
-                    new Schedule(name, routine, eventTime, comment, dayOfWeek);
+            List<Schedule> loaded = legacy
+                ? Schedule.readLegacy(buffer)
+                : RecordFile.read(buffer, Schedule.FILE_MAGIC,
+                    Schedule.VERSION, Schedule::read);
 
+            for (Schedule schedule: loaded)
                 chatServer.displayMessage(
                     String.format("[Loaded Schedule] %s Time: %s",
                     schedule.getName(), chatServer.getCurrentTime()));
 
-                schedules.add(schedule);
-            }
+            schedules.addAll(loaded);
+
+            if (legacy)
+                saveSchedule(file, loaded);
         }
-        catch (IOException ex)
+        catch (IOException | IllegalArgumentException ex)
         {
+            // readLegacy rejects a cut file or a bad cron expression
             ex.printStackTrace();
         }
     }
@@ -403,12 +239,10 @@ public class ChatLog
      */
     public void saveSchedule(File file, Collection<Schedule> schedules)
     {
-
-        try (DataOutputStream output =
-                 new DataOutputStream(new FileOutputStream(file)))
+        try
         {
-            for(Schedule schedule: schedules)
-                schedule.record(output);
+            RecordFile.write(file, Schedule.FILE_MAGIC, Schedule.VERSION,
+                schedules);
 
             chatServer.displayMessage(
                 String.format("[Saved Schedule file] %s Time: %s",
@@ -421,7 +255,8 @@ public class ChatLog
     }
 
     /**
-     * Set task into each schedule in the collection then start it.
+     * Set task into each schedule in the collection then start it. A
+     * schedule that fired before catches up the fires missed since.
      *
      * @param schedules schedule collection to start
      * @param task Runnable object to set
@@ -430,8 +265,43 @@ public class ChatLog
     {
         for (Schedule schedule: schedules)
         {
-            schedule.setTask(task);
-            schedule.start(true);
+            String cron = schedule.getCron();
+
+            if (cron == null)
+                continue;
+
+            schedule.setLastFire(Long.parseLong(fired.getProperty(cron, "0")));
+            schedule.setTask(() ->
+            {
+                task.run();
+                saveFired(cron, schedule.getLastFire());
+            });
+            schedule.start(chatServer.getTimerWheel(), catchUp);
+        }
+    }
+
+    /**
+     * Keeps the last fire of a schedule for the catch up after a restart
+     *
+     * @param cron cron expression of the schedule
+     * @param time time (epoch ms) of the fire
+     */
+    private void saveFired(String cron, long time)
+    {
+        firedLock.lock();
+
+        try (OutputStream output = new FileOutputStream(SCHEDULE_DIR + FIRED_FILE))
+        {
+            fired.setProperty(cron, Long.toString(time));
+            fired.store(output, "last fire (epoch ms) of each schedule");
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+        finally
+        {
+            firedLock.unlock();
         }
     }
 
@@ -446,95 +316,318 @@ public class ChatLog
     }
 
     /**
-     * records connection info to the log file
+     * Queues connection info for the log file, it is written and forced
+     * to the disk by the log writer
      *
      * @param info connection info object
      */
     public void recordConnectionInfo(ConnectionInfo info)
     {
-        try (RandomAccessFile raf = new RandomAccessFile(logFile, "rws"))
-        {
-            raf.seek(filePos);
-            filePos += info.record(raf);
-        }
-        catch (IOException ex)
-        {
-            ex.printStackTrace();
-        }
+        logWriter.append(info);
+    }
+
+    /**
+     * Records a server event, called by the log consumer of the event bus.
+     * The record is made here, off the connection thread that published it.
+     *
+     * @param event event read from the bus
+     */
+    public void recordEvent(EventBus.Event event)
+    {
+        String userId = event.getUserId();
+
+        recordConnectionInfo(new ConnectionInfo(event.getEvent(),
+            UserInfo.hostOf(event.getAddress()), event.getTime(),
+            (userId == null) ? "" : userId));
     }
 
     /**
-     * Creates a new log file the first time create temp.log file
-     * then every time this method is called, it copies temp.log file
-     * to a new current time file and overwrites temp.log
+     * Records go to temp.log, every time this method is called the log
+     * writer renames temp.log to the current time and starts it again
      */
     public void createNewLogFile()
     {
-        if (logFile != null && logFile.exists())
+        logWriter.rotate();
+    }
+
+    /**
+     * Name of the next file closed, called by the log writer. A time taken
+     * by a file or its compressed copy is moved by a ms, so two rotations
+     * never get the same name and the names keep the time order.
+     *
+     * @return a log file name not taken
+     */
+    private File nextLogFile()
+    {
+        long time = System.currentTimeMillis();
+        File file;
+
+        while ((file = new File(LOG_DIR + String.format(FILE_FORMAT, time)))
+            .exists() || CompressedSegment.compressedFile(file).exists())
+            time++;
+
+        return file;
+    }
+
+    /**
+     * Queues a closed log file for the archiver: its index is built, then
+     * it is compressed if log.compress is set and the copy not compressed
+     * removed. Searches find it from the next one.
+     *
+     * @param file log file closed by a rotation
+     */
+    private void archive(File file)
+    {
+        archiver.execute(() ->
         {
-            GregorianCalendar c = new GregorianCalendar();
-            String fileName = String.format(FILE_FORMAT, c, c, c);
-            logFile.renameTo(new File(LOG_DIR + fileName));
+            try (LogSegment segment = new LogSegment(file, true))
+            {
+                if (!LogIndex.indexFile(file).exists())
+                    LogIndex.build(segment);
+
+                if (compress)
+                    CompressedSegment.compress(segment);
+            }
+            catch (IOException ex)
+            {
+                ex.printStackTrace();
+                return;
+            }
+
+            // searches read the copy not compressed until it is gone
+            if (compress && !file.delete())
+                System.err.println("Log not removed after compression: " + file);
+        });
+    }
+
+    /**
+     * Finds connection records in all log files, see LogSearch
+     *
+     * @param from first time (epoch ms)
+     * @param to last time (epoch ms)
+     * @param userId user id, null for any user
+     * @param ip IP address, null for any address
+     * @param limit most records returned
+     * @return the records found in time order
+     */
+    public LogSearch.Result search(long from, long to, String userId,
+                                   String ip, int limit)
+    {
+        return logSearch.find(from, to, userId, ip, limit);
+    }
+
+    /**
+     * Stops the schedules, writes the records queued and closes the
+     * files searched
+     */
+    public void close()
+    {
+        cancelSchedules(schedules);
+        logWriter.close();
+
+        archiver.shutdown();
+
+        try
+        {
+            archiver.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
         }
 
-        logFile = new File(LOG_DIR + "temp.log");
-        filePos = 0;
+        logSearch.close();
+    }
+
+    public LogWriter getLogWriter()
+    {
+        return logWriter;
     }
 
     /**
-     * User connection info
+     * User connection info, a fixed width binary record:
+     * time (epoch ms), event code, id length, IPv6 address or IPv4 mapped
+     * to IPv6, then the user id in UTF-8
      */
     public static class ConnectionInfo implements Recordable
     {
-        final private static int EVENT_LENGTH = 16;
+        // bytes of a record
+        final public static int SIZE = 64;
+
+        final private static int TIME_POS = 0;
 
-        final private static int IP_LENGTH = 21;
+        final private static int EVENT_POS = 8;
 
-        final private static int TIME_LENGTH = FILE_FORMAT.length() - 4;
+        final private static int ID_LENGTH_POS = 10;
 
-        final private static int ID_LENGTH = 16;
+        final private static int ADDRESS_POS = 12;
 
-        final private static int SIZE =
-            (EVENT_LENGTH + IP_LENGTH + TIME_LENGTH + ID_LENGTH) << 1;
+        final private static int ADDRESS_LENGTH = 16;
 
-        // a type of events
-        private String event;
+        final private static int ID_POS = ADDRESS_POS + ADDRESS_LENGTH;
 
-        // user's ip address
-        private String ip;
+        // bytes of the user id, a longer id is cut
+        final public static int ID_LENGTH = SIZE - ID_POS;
 
-        // time when the event occurs
-        private String time;
+        // time when the event occurs (epoch ms)
+        final private long time;
 
-        // user's id
-        private String id;
+        // a type of events, see LogEvent
+        final private short event;
 
-        public ConnectionInfo(String event, String ip, String time, String id)
+        // user's ip address, 16 bytes
+        final private byte[] address;
+
+        // user's id, "" if no user
+        final private String id;
+
+        /**
+         * @param event a type of events
+         * @param ip user's IP address, IPv4 or IPv6 text
+         * @param time time when the event occurs (epoch ms)
+         * @param id user's id, "" if no user
+         */
+        public ConnectionInfo(LogEvent event, String ip, long time, String id)
         {
-            this.event = (event.length() > EVENT_LENGTH) ?
-                event.substring(0, EVENT_LENGTH) : event;
+            this(event.getCode(), parseAddress(ip), time, cut(id));
+        }
 
-            this.ip = (ip.length() > IP_LENGTH) ?
-                ip.substring(0, IP_LENGTH) : ip;
+        private ConnectionInfo(short event, byte[] address, long time, String id)
+        {
+            this.event = event;
+            this.address = address;
+            this.time = time;
+            this.id = id;
+        }
 
-            this.time = (time.length() > TIME_LENGTH) ?
-                time.substring(0, TIME_LENGTH) : time;
+        /**
+         * @param id user id
+         * @return the longest start of the id that fits in ID_LENGTH bytes,
+         *         the id as it is logged
+         */
+        public static String cut(String id)
+        {
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+
+            if (bytes.length <= ID_LENGTH)
+                return id;
+
+            int length = ID_LENGTH;
+
+            // don't cut a character in the middle
+            while ((bytes[length] & 0xc0) == 0x80)
+                length--;
 
-            this.id = (id.length() > ID_LENGTH) ?
-                id.substring(0, ID_LENGTH) : id;
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
         }
 
-        public String getEvent()
+        /**
+         * Converts an IP address text without a name lookup
+         *
+         * @param ip IPv4 or IPv6 text
+         * @return 16 bytes, IPv4 mapped to IPv6, zeros if it isn't an address
+         */
+        public static byte[] parseAddress(String ip)
+        {
+            byte[] bytes = new byte[ADDRESS_LENGTH];
+
+            // an IPv6 literal is parsed without a lookup, other text
+            // could be looked up as a host name
+            if (ip.indexOf(':') >= 0)
+            {
+                if (!ip.matches("[0-9a-fA-F:.]+"))
+                    return bytes;
+
+                try
+                {
+                    byte[] parsed = InetAddress.getByName(ip).getAddress();
+                    System.arraycopy(parsed, 0, bytes,
+                        ADDRESS_LENGTH - parsed.length, parsed.length);
+
+                    if (parsed.length == 4)
+                        bytes[10] = bytes[11] = (byte) 0xff;
+                }
+                catch (UnknownHostException ex)
+                {
+                    return new byte[ADDRESS_LENGTH];
+                }
+
+                return bytes;
+            }
+
+            String[] parts = ip.split("\\.");
+
+            if (parts.length != 4)
+                return bytes;
+
+            try
+            {
+                for (int i = 0; i < 4; i++)
+                {
+                    int part = Integer.parseInt(parts[i]);
+
+                    if (part < 0 || part > 255)
+                        return new byte[ADDRESS_LENGTH];
+
+                    bytes[12 + i] = (byte) part;
+                }
+            }
+            catch (NumberFormatException ex)
+            {
+                return new byte[ADDRESS_LENGTH];
+            }
+
+            bytes[10] = bytes[11] = (byte) 0xff;
+
+            return bytes;
+        }
+
+        /**
+         * @return the event or null if the code is unknown
+         */
+        public LogEvent getEvent()
+        {
+            return LogEvent.fromCode(event);
+        }
+
+        public short getEventCode()
         {
             return event;
         }
 
+        /**
+         * @return IPv4 or IPv6 text, "" if no address was logged
+         */
         public String getIp()
         {
-            return ip;
+            boolean empty = true;
+
+            for (byte b: address)
+                empty &= (b == 0);
+
+            if (empty)
+                return "";
+
+            try
+            {
+                // an IPv4 mapped address gives an Inet4Address
+                return InetAddress.getByAddress(address).getHostAddress();
+            }
+            catch (UnknownHostException ex)
+            {
+                return "";
+            }
+        }
+
+        /**
+         * @return a copy of the 16 address bytes
+         */
+        public byte[] getAddress()
+        {
+            return address.clone();
         }
 
-        public String getTime()
+        public long getTime()
         {
             return time;
         }
@@ -544,17 +637,80 @@ public class ChatLog
             return id;
         }
 
+        /**
+         * Writes the record at a position of the buffer
+         *
+         * @param buffer buffer to write
+         * @param pos position of the record
+         */
+        public void write(ByteBuffer buffer, int pos)
+        {
+            byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+
+            buffer.putLong(pos + TIME_POS, time);
+            buffer.putShort(pos + EVENT_POS, event);
+            buffer.put(pos + ID_LENGTH_POS, (byte) idBytes.length);
+
+            for (int i = 0; i < ADDRESS_LENGTH; i++)
+                buffer.put(pos + ADDRESS_POS + i, address[i]);
+
+            for (int i = 0; i < ID_LENGTH; i++)
+                buffer.put(pos + ID_POS + i,
+                    (i < idBytes.length) ? idBytes[i] : 0);
+        }
+
+        /**
+         * Reads a record at a position of the buffer
+         *
+         * @param buffer buffer to read
+         * @param pos position of the record
+         * @return the record
+         */
+        public static ConnectionInfo read(ByteBuffer buffer, int pos)
+        {
+            byte[] address = new byte[ADDRESS_LENGTH];
+
+            for (int i = 0; i < ADDRESS_LENGTH; i++)
+                address[i] = buffer.get(pos + ADDRESS_POS + i);
+
+            byte[] id = new byte[
+                Math.min(ID_LENGTH, buffer.get(pos + ID_LENGTH_POS) & 0xff)];
+
+            for (int i = 0; i < id.length; i++)
+                id[i] = buffer.get(pos + ID_POS + i);
+
+            return new ConnectionInfo(buffer.getShort(pos + EVENT_POS), address,
+                buffer.getLong(pos + TIME_POS),
+                new String(id, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @return true if a record is written at the position, its time
+         *         is never 0
+         */
+        public static boolean isWritten(ByteBuffer buffer, int pos)
+        {
+            return buffer.getLong(pos + TIME_POS) != 0;
+        }
+
         @Override
         public long record(DataOutput output) throws IOException
         {
-            StringBuilder builder = new StringBuilder(event)
-                .append(getPadding(EVENT_LENGTH - event.length()))
-                .append(ip).append(getPadding(IP_LENGTH - ip.length()))
-                .append(time).append(getPadding(TIME_LENGTH - time.length()))
-                .append(id).append(getPadding(ID_LENGTH - id.length()));
+            byte[] bytes = new byte[SIZE];
+            write(ByteBuffer.wrap(bytes), 0);
 
-            output.write(builder.toString().getBytes());
+            output.write(bytes);
             return SIZE;
         }
+
+        @Override
+        public String toString()
+        {
+            LogEvent logEvent = getEvent();
+
+            return String.format("%tF %<tT [%s] ID: %s, IP: %s", time,
+                (logEvent == null) ? "Event " + event : logEvent.getLabel(),
+                id, getIp());
+        }
     }
 }
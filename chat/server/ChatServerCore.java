@@ -0,0 +1,1398 @@
+package com.kwanii.chat.server;
+
+import com.kwanii.chat.EncodedPacket;
+import com.kwanii.chat.Nullable;
+import com.kwanii.chat.Packet;
+
+import java.io.*;
+
+import java.net.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+//TODO use key stretch for user's password when a user sends it
+//TODO method for showing status message more detail such as count threads
+
+/**
+ * The chat server without a user interface: transports, users, rooms and
+ * the connection log. main() runs it headless, so JavaFX is not needed on
+ * the classpath. The ChatServer window creates one and samples its state.
+ */
+public class ChatServerCore
+{
+    // chat server TCP port number
+    final public static int SERVER_PORT = 30000;
+
+    // maximum of the queue of incoming connection
+    final public static int BACKLOG = 5000;
+
+    // Server socket
+    private ServerSocket serverSocket;
+
+    // non-blocking transport, used instead of the server socket
+    private NioServer nioServer;
+
+    // the most recent events kept for an observer
+    final public static int MAX_EVENTS = 1000;
+
+    // server settings
+    final private ServerConfig config;
+
+    // store User information of connection
+    private ConcurrentHashMap<String, UserInfo> userInfoMap =
+        new ConcurrentHashMap<>();
+
+    // store User's connection
+    private ConcurrentHashMap<String, UserConnection> connectionMap =
+        new ConcurrentHashMap<>();
+
+    // rooms, created from the settings
+    private RoomRegistry roomRegistry;
+
+    // threads that run room work in sharded execution, null if locked
+    private RoomShards roomShards;
+
+    // thread pool for long running threads, created from the settings
+    private ExecutorService threadPool;
+
+    // timers of the server: schedules, maintenance and room publishes
+    private TimerWheel timerWheel;
+
+    // sends ROOM_STATUS of changed rooms, created from the settings
+    private CoalescingPublisher<Room> roomStatusPublisher;
+
+    // limits of the queue of packets waiting to be written to each user
+    private OutboundQueue.Settings outboundSettings;
+
+    // hashes passwords for login and sign up, created from the settings
+    private AuthExecutor authExecutor;
+
+    // tokens that log a reconnecting user in without its password
+    private SessionTokens sessionTokens;
+
+    // limits logins and sign ups before their passwords are hashed
+    private AdmissionControl admission;
+
+    // orders presence changes so every user gets versions in sequence
+    final private ReentrantLock presenceLock = new ReentrantLock();
+
+    // incremented by every login and logout, guarded by presenceLock
+    private long presenceVersion;
+
+    // reports virtual threads pinned to their carrier
+    private PinningMonitor pinningMonitor = new PinningMonitor();
+
+    // the number of users connected
+    final private AtomicInteger numConnect = new AtomicInteger();
+
+    // the number of Users logged in
+    final private AtomicInteger countLogin = new AtomicInteger();
+
+    // recent event messages, the oldest is dropped beyond MAX_EVENTS
+    final private Queue<String> events = new ConcurrentLinkedQueue<>();
+
+    final private AtomicInteger numEvents = new AtomicInteger();
+
+    // true prints event messages to the standard output as well
+    private volatile boolean echoEvents;
+
+    private ChatLog chatLog;
+
+    private DBHandler dbHandler;
+
+    // carries events to the log, the event messages and the metrics
+    private EventBus eventBus;
+
+    // counts the events, a consumer of the event bus
+    final private EventMetrics eventMetrics = new EventMetrics();
+
+    /**
+     * Creates the pools, the rooms and the log from the settings.
+     * The server starts with run() or start().
+     *
+     * @param config server settings
+     */
+    public ChatServerCore(ServerConfig config)
+    {
+        this.config = config;
+
+        threadPool = createThreadPool();
+        timerWheel = new TimerWheel(config.getTimerTick(),
+            config.getTimerThreads(), config.getTimerQueue());
+        outboundSettings = new OutboundQueue.Settings(config);
+        authExecutor = new AuthExecutor(config);
+        sessionTokens = new SessionTokens(config.getSessionTtl());
+        admission = new AdmissionControl(config);
+        roomRegistry = new RoomRegistry(config.getRoomStripes());
+
+        if (config.getRoomExecution() == ServerConfig.RoomExecution.SHARDED)
+            roomShards = new RoomShards(config.getRoomShards());
+
+        roomStatusPublisher = new CoalescingPublisher<>(timerWheel,
+            config.getRoomStatusWindow(), room ->
+                runInRoom(room.getRoomId(), () -> sendRoomStatus(room)));
+
+        if (sessionTokens.isEnabled())
+            timerWheel.scheduleWithFixedDelay(sessionTokens::purge,
+                sessionTokens.getTtl(), TimeUnit.MILLISECONDS);
+
+        timerWheel.scheduleWithFixedDelay(admission::purge, 1, TimeUnit.MINUTES);
+
+        chatLog = new ChatLog(this, config);
+        dbHandler = new DBHandler(config);
+
+        // each consumer reads the events at its own pace
+        eventBus = new EventBus(config.getEventRingSize());
+        eventBus.start("log", chatLog::recordEvent);
+        eventBus.start("display", event -> displayMessage(formatEvent(event)));
+        eventBus.start("metrics", eventMetrics);
+    }
+
+    /**
+     * Runs the transport selected in the server settings on the calling
+     * thread until the server is stopped
+     */
+    public void run()
+    {
+        if (config.getTransport() == ServerConfig.TransportMode.NIO)
+            runNioServer();
+        else
+            runBlockingServer();
+    }
+
+    /**
+     * Runs the server on a thread of the pool and returns
+     */
+    public void start()
+    {
+        threadPool.execute(this::run);
+    }
+
+    /**
+     * Closes the listening socket, run() shuts the pools down and returns
+     */
+    public void stop()
+    {
+        try
+        {
+            if (serverSocket != null)
+                serverSocket.close();
+
+            if (nioServer != null)
+                nioServer.close();
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Accepts sockets and runs a thread for each user
+     */
+    private void runBlockingServer()
+    {
+        try
+        {
+            // open server socket
+            serverSocket = new ServerSocket(
+                SERVER_PORT, BACKLOG, InetAddress.getLocalHost());
+
+            threadPool.execute(() -> dbHandler.connectDB());
+
+
+            printEvent(LogEvent.SERVER_STARTED,
+                serverSocket.getLocalSocketAddress().toString(), null);
+
+
+
+            while (true)
+            {
+                Socket socket = serverSocket.accept();
+
+                acceptUser(socket.getRemoteSocketAddress().toString());
+
+                // open new thread when a new User connect the server
+                threadPool.execute(new HandleAUser(socket));
+            }
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+        finally
+        {
+            // null if the port couldn't be bound
+            try
+            {
+                if (serverSocket != null)
+                    serverSocket.close();
+            }
+            catch (IOException ex)
+            {
+                ex.printStackTrace();
+            }
+
+            closeServices();
+        }
+    }
+
+    /**
+     * Accepts channels on selector threads, the event loops decode packets
+     * and call handlePacket of each user
+     */
+    private void runNioServer()
+    {
+        try
+        {
+            nioServer = new NioServer(
+                new InetSocketAddress(InetAddress.getLocalHost(), SERVER_PORT),
+                BACKLOG, config.getNioLoops(), config.isBinaryCodec(),
+                outboundSettings, connection ->
+                {
+                    acceptUser(connection.getRemoteAddress());
+                    return new HandleAUser(connection);
+                });
+
+            // open the channel and start event loops
+            nioServer.open();
+
+            threadPool.execute(() -> dbHandler.connectDB());
+
+            printEvent(LogEvent.SERVER_STARTED_NIO,
+                nioServer.getLocalAddress().toString(), null);
+
+            // accept until the channel is closed
+            nioServer.run();
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+        finally
+        {
+            if (nioServer != null)
+                nioServer.close();
+
+            closeServices();
+        }
+    }
+
+    /**
+     * Stops the pools and closes what the server opened, after the
+     * listening socket is closed by either server
+     */
+    private void closeServices()
+    {
+        threadPool.shutdownNow();
+        timerWheel.close();
+        authExecutor.shutdown();
+        dbHandler.close();
+        eventBus.close();
+        chatLog.close();
+
+        if (roomShards != null)
+            roomShards.shutdown();
+    }
+
+    /**
+     * Creates the pool for users, the user list updater and the server.
+     * Virtual threads make an idle blocking connection cost a few KB
+     * instead of a platform thread.
+     *
+     * @return executor service
+     */
+    private ExecutorService createThreadPool()
+    {
+        if (config.getThreads() == ServerConfig.ThreadMode.VIRTUAL)
+        {
+            if (VirtualThreads.isSupported())
+            {
+                VirtualThreads.tracePinnedThreads(config.getPinningTrace());
+
+                pinningMonitor.start(
+                    Duration.ofMillis(config.getPinningThreshold()));
+
+                return VirtualThreads.newExecutor();
+            }
+
+            System.err.println("Virtual threads are not supported by " +
+                "this JVM, using platform threads");
+        }
+
+        return Executors.newCachedThreadPool();
+    }
+
+    // a new connection is accepted
+    private void acceptUser(String address)
+    {
+        printEvent(LogEvent.CONNECTED, address, null);
+
+        numConnect.incrementAndGet();
+    }
+
+    /**
+     * @return thread pool, room and queue statistics
+     */
+    public String getStatus()
+    {
+        StringBuilder status = new StringBuilder(String.format("ThreadPool info: [%s%nRooms: %d, " +
+            "userInfoMap size: %d, connectionMap size: %d%nRooms Info: %s%n" +
+            "Pinned virtual threads: %d (%d ms)%n" +
+            "Outbound dropped: %d, spilled: %d, slow users closed: %d%n" +
+            "Room status changes: %d, sent: %d%n" +
+            "Auth queue: %d, done: %d (avg %d ms), busy rejects: %d%n" +
+            "Sessions: %d, issued: %d, resumed: %d, rejected: %d%n" +
+            "Login admission: %d/%d hashing, admitted %d, " +
+            "rejected ip %d, user %d, busy %d%n" +
+            "Log: queued %d, written %d, syncs %d%n" +
+            "Events: published %d%s%nEvent counts: %s%n" +
+            "Timers: %d waiting, %d queued, expired %d, cancelled %d, " +
+            "overflowed %d%n%s",
+            (threadPool.toString().split("\\["))[1], roomRegistry.size(),
+            userInfoMap.size(), connectionMap.size(), roomRegistry.getRooms(),
+            pinningMonitor.getPinnedCount(), pinningMonitor.getPinnedMillis(),
+            outboundSettings.getDropped(), outboundSettings.getSpilled(),
+            outboundSettings.getDisconnected(),
+            roomStatusPublisher.getMarked(), roomStatusPublisher.getPublished(),
+            authExecutor.getQueueDepth(), authExecutor.getCompleted(),
+            TimeUnit.NANOSECONDS.toMillis(authExecutor.getAverageTime()),
+            authExecutor.getRejected(), sessionTokens.size(),
+            sessionTokens.getIssued(), sessionTokens.getResumed(),
+            sessionTokens.getRejected(), admission.getConcurrent(),
+            admission.getMaxConcurrent(), admission.getAdmitted(),
+            admission.getIpRejected(), admission.getUserRejected(),
+            admission.getBusyRejected(),
+            chatLog.getLogWriter().getQueued(), chatLog.getLogWriter().getWritten(),
+            chatLog.getLogWriter().getSyncs(), eventBus.getPublished(),
+            getConsumerStatus(), eventMetrics, timerWheel.getPending(),
+            timerWheel.getQueued(), timerWheel.getExpired(),
+            timerWheel.getCancelled(), timerWheel.getOverflowed(),
+            dbHandler.getStatus()));
+
+        for (int i = 0; roomShards != null && i < roomShards.getNumShards(); i++)
+        {
+            status.append(String.format("Room shard %d: queue %d, " +
+                "tasks %d, latency avg %d us, max %d us%n", i,
+                roomShards.getQueueDepth(i), roomShards.getCompleted(i),
+                roomShards.getAverageLatency(i) / 1000,
+                roomShards.getMaxLatency(i) / 1000));
+        }
+
+        return status.toString();
+    }
+
+    // ", name behind N lost N" of each consumer of the event bus
+    private String getConsumerStatus()
+    {
+        StringBuilder status = new StringBuilder();
+
+        for (EventBus.Cursor cursor: eventBus.getCursors())
+            status.append(String.format(", %s behind %d lost %d",
+                cursor.getName(), cursor.getBehind(), cursor.getLost()));
+
+        return status.toString();
+    }
+
+    /**
+     * Publishes an event to the log, the event messages and the metrics.
+     * Called on connection threads, it only fills a slot of the event bus.
+     */
+    private void printEvent(LogEvent event, String ip, @Nullable String userId)
+    {
+        eventBus.publish(event, ip, userId);
+    }
+
+    /**
+     * @return the event message of an event, made by the display consumer
+     */
+    private static String formatEvent(EventBus.Event event)
+    {
+        if (event.getUserId() == null)
+            return String.format("[%s] IP: %s, Time: %tF_%<tT",
+                event.getEvent().getLabel(), event.getAddress(), event.getTime());
+
+        return String.format("[%s] ID: %s, IP: %s, Time: %tF_%<tT",
+            event.getEvent().getLabel(), event.getUserId(), event.getAddress(),
+            event.getTime());
+    }
+
+
+
+    /**
+     * this thread for each User connected to the server.
+     * The nio transport doesn't run it, its event loop calls handlePacket.
+     */
+    private class HandleAUser implements Runnable, NioServer.Handler
+    {
+        // socket connected
+        private Socket socket;
+
+        // remote socket address
+        private String address;
+
+        // IP address without the port, logins are limited by it
+        private String host;
+
+        // sends packets to the user
+        private UserConnection connection;
+
+        // User Id, set by an auth thread when the login is verified
+        private volatile String userId = "NoLogin";
+
+        // true while a login or sign up waits for an auth thread
+        final private AtomicBoolean authPending = new AtomicBoolean();
+
+        // orders a login verified with the connection closing
+        final private ReentrantLock loginLock = new ReentrantLock();
+
+        private boolean closed;
+
+        public HandleAUser(Socket socket)
+        {
+            this.socket = socket;
+            address = socket.getRemoteSocketAddress().toString();
+            host = UserInfo.hostOf(address);
+        }
+
+        public HandleAUser(UserConnection connection)
+        {
+            this.connection = connection;
+            socket = connection.getSocket();
+            address = connection.getRemoteAddress();
+            host = UserInfo.hostOf(address);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                // open streams on this thread, it waits for the client
+                StreamConnection streamConnection = new StreamConnection(
+                    socket, config.isBinaryCodec(), outboundSettings, threadPool);
+                connection = streamConnection;
+
+                while (!socket.isClosed())
+                {
+                    // get the packet from User
+                    Packet packet = streamConnection.readPacket();
+
+                    if (packet != null)
+                        handlePacket(packet);
+                }
+            } catch (Exception ex)
+            {
+                ex.printStackTrace();
+            }
+            // when socket is closed , remove User in the UserMap
+            // and update userList
+            finally
+            {
+                connectionClosed();
+            }
+        }
+
+        @Override
+        public void connectionClosed()
+        {
+            // discard packets still queued for the user
+            if (connection != null)
+                connection.close();
+
+            String user;
+
+            loginLock.lock();
+
+            try
+            {
+                // a login verified from now on is logged out right away
+                closed = true;
+                user = userId;
+            }
+            finally
+            {
+                loginLock.unlock();
+            }
+
+            // the session stays for RESUME
+            if (!user.equals("NoLogin"))
+                logoutUser(user, address, connection, true);
+
+            disconnectUser(user, socket, address);
+        }
+
+        @Override
+        public void handlePacket(Packet packet) throws IOException
+        {
+            // get a sender and receiver ids
+            String sender = packet.getSender();
+
+            Packet.Builder pBuilder = new Packet.Builder();
+            
+            switch (packet.getType())
+            {
+                case Packet.SIGN_UP:
+                {
+                    if (!authPending.compareAndSet(false, true))
+                        break;
+
+                    // the id isn't anyone's yet, only the address is limited
+                    if (!admit(Packet.REJECT_SIGN_UP, sender, null))
+                    {
+                        authPending.set(false);
+                        break;
+                    }
+
+                    // hashing the password takes long, run it on an auth thread
+                    if (!authExecutor.submit(() -> signUp(packet)))
+                    {
+                        admission.release();
+                        authPending.set(false);
+                        sendBusy(Packet.REJECT_SIGN_UP, sender);
+                    }
+                }
+                break;
+
+                case Packet.LOGIN:
+                {
+                    // a login is verified already or being verified
+                    if (!userId.equals("NoLogin")
+                        || !authPending.compareAndSet(false, true))
+                        break;
+
+                    if (userInfoMap.get(sender) != null)
+                    {
+                        authPending.set(false);
+                        rejectLogin(sender, sender + " is being used");
+                        break;
+                    }
+
+                    // limit guessing from one address and against one id
+                    if (!admit(Packet.REJECT_LOGIN, sender, sender))
+                    {
+                        authPending.set(false);
+                        break;
+                    }
+
+                    // verifying the password takes long, run it on an auth thread
+                    if (!authExecutor.submit(() -> login(packet)))
+                    {
+                        admission.release();
+                        authPending.set(false);
+                        sendBusy(Packet.REJECT_LOGIN, sender);
+                    }
+                }
+                break;
+                
+                case Packet.LOGOUT:
+                {
+                    String user;
+
+                    loginLock.lock();
+
+                    try
+                    {
+                        user = userId;
+                        userId = "NoLogin";
+                    }
+                    finally
+                    {
+                        loginLock.unlock();
+                    }
+
+                    logoutUser(user, address, connection, false);
+                }
+                break;
+
+                // reconnected with the token from ACCEPT_LOGIN
+                case Packet.RESUME:
+                {
+                    if (!userId.equals("NoLogin")
+                        || !authPending.compareAndSet(false, true))
+                        break;
+
+                    // no password to hash, resume on this thread
+                    try
+                    {
+                        resume(packet);
+                    }
+                    finally
+                    {
+                        authPending.set(false);
+                    }
+                }
+                break;
+
+                // the user missed a presence delta
+                case Packet.REQUEST_LIST:
+                {
+                    sendUserList(userId, connection);
+                }
+                break;
+                
+                // request for a new room
+                case Packet.REQUEST_ROOM:
+                {
+                    String roomId = packet.getRoomId();
+                    UserInfo userInfo = userInfoMap.get(userId);
+
+                    if (userInfo == null)
+                        break;
+
+                    // create the room unless the id exists, atomically
+                    Room room = roomRegistry.create(roomId, userId);
+
+                    // room id already exists
+                    if (room == null)
+                    {
+                        // send a reject packet to the user
+                        sendPacket(pBuilder
+                            .setType(Packet.REJECT_ROOM)
+                            .setSender(Packet.SERVER).setReceiver(userId)
+                            .setRoomId(roomId).setMessage(roomId + " exists")
+                            .build());
+                    } else
+                    {
+                        // add the room id to sender's info
+                        userInfo.addRoom(roomId);
+
+                        // send a accept packet to the user
+                        sendPacket(pBuilder
+                            .setType(Packet.ACCEPT_ROOM)
+                            .setSender(Packet.SERVER).setReceiver(userId)
+                            .setRoomId(roomId).build());
+
+                        // send invite packet to all user in the list
+                        invite(sender, roomId, packet.getUserList());
+                    }
+                }
+                break;
+                // the sender invites other users in the user list
+                case Packet.INVITE:
+                {
+                    invite(sender, packet.getRoomId(), packet.getUserList());
+                }
+                break;
+                
+                // a user who got the invite packet answer
+                case Packet.ACCEPT_INVITE:
+                {
+                    String user = userId;
+                    String roomId = packet.getRoomId();
+
+                    runInRoom(roomId, () -> joinRoom(roomId, user, false));
+                }
+                break;
+                case Packet.REJECT_INVITE:
+                {
+
+                }
+                break;
+                case Packet.LEAVE_ROOM:
+                {
+                    String user = userId;
+                    String roomId = packet.getRoomId();
+
+                    runInRoom(roomId, () ->
+                    {
+                        UserInfo userInfo = userInfoMap.get(user);
+
+                        if (userInfo != null)
+                        {
+                            // remove the roomId in the userInfoMap
+                            userInfo.removeRoom(roomId);
+
+                            leaveRoom(roomId, user);
+                        }
+                    });
+                }
+                break;
+                case Packet.MESSAGE:
+                {
+                    String user = userId;
+
+                    runInRoom(packet.getRoomId(),
+                        () -> sendMessage(user, packet));
+                }
+                break;
+            }
+        }
+
+        private void sendPacket(Packet packet)
+        {
+            connection.sendPacket(packet);
+        }
+
+        /**
+         * Verifies the password and logs the user in, run by an auth thread
+         *
+         * @param packet LOGIN packet
+         */
+        private void login(Packet packet)
+        {
+            String sender = packet.getSender();
+
+            try
+            {
+                if (!dbHandler.login(sender, packet.getPassword()))
+                {
+                    rejectLogin(sender, "Invalid user id or password");
+                    return;
+                }
+
+                if (enter(sender))
+                    printEvent(LogEvent.LOGIN, address, sender);
+            }
+            finally
+            {
+                admission.release();
+                authPending.set(false);
+            }
+        }
+
+        /**
+         * Logs the user in with a resumption token and joins the rooms it
+         * was in. It checks an HMAC, no password is hashed.
+         *
+         * @param packet RESUME packet, the token is in the password
+         */
+        private void resume(Packet packet)
+        {
+            String sender = packet.getSender();
+
+            SessionTokens.Session session =
+                sessionTokens.resume(sender, packet.getPassword());
+
+            if (session == null)
+            {
+                rejectLogin(sender, "The session expired, login again");
+                return;
+            }
+
+            Set<String> roomIds = session.getRoomIds();
+
+            // after a network failure the old connection may not be closed
+            UserConnection old = connectionMap.get(sender);
+
+            if (old != null)
+            {
+                UserInfo oldInfo =
+                    logoutUser(sender, old.getRemoteAddress(), old, false);
+                old.close();
+
+                if (oldInfo != null)
+                    roomIds = oldInfo.getRoomIdSet();
+            }
+
+            if (!enter(sender))
+                return;
+
+            printEvent(LogEvent.RESUMED, address, sender);
+
+            for (String roomId: roomIds)
+                runInRoom(roomId, () -> joinRoom(roomId, sender, true));
+        }
+
+        /**
+         * Logs a verified user in unless the connection closed meanwhile
+         *
+         * @param sender user id verified
+         * @return true if the user is logged in
+         */
+        private boolean enter(String sender)
+        {
+            UserInfo userInfo = new UserInfo(sender, socket);
+
+            loginLock.lock();
+
+            try
+            {
+                // the connection closed while the user was verified
+                if (closed)
+                    return false;
+
+                // ACCEPT_LOGIN has the user list, others get a delta
+                if (!joinUser(userInfo, connection))
+                {
+                    rejectLogin(sender, sender + " is being used");
+                    return false;
+                }
+
+                userId = sender;
+            }
+            finally
+            {
+                loginLock.unlock();
+            }
+
+            countLogin.incrementAndGet();
+
+            return true;
+        }
+
+        private void rejectLogin(String sender, String message)
+        {
+            sendPacket(new Packet.Builder(Packet.REJECT_LOGIN)
+                .setSender(Packet.SERVER).setReceiver(sender)
+                .setMessage(message).build());
+
+            printEvent(LogEvent.LOGIN_FAILED, address, null);
+        }
+
+        /**
+         * Creates the user id unless it exists, run by an auth thread
+         *
+         * @param packet SIGN_UP packet
+         */
+        private void signUp(Packet packet)
+        {
+            String sender = packet.getSender();
+
+            Packet.Builder pBuilder = new Packet.Builder();
+
+            try
+            {
+                // check if the id already exists
+                if (dbHandler.exists(sender))
+                {
+                    pBuilder.setType(Packet.REJECT_SIGN_UP)
+                        .setSender(Packet.SERVER)
+                        .setMessage(sender + " already exists");
+
+                    printEvent(LogEvent.SIGN_UP_DUPLICATED, address, sender);
+                }
+                // create the id in the database and get the result
+                else if (dbHandler.signUp(sender, packet.getPassword()))
+                {
+                    pBuilder.setType(Packet.ACCEPT_SIGN_UP)
+                        .setSender(Packet.SERVER)
+                        .setReceiver(sender)
+                        .setMessage("Created user id: " + sender);
+
+                    printEvent(LogEvent.SIGNED_UP, address, sender);
+                }
+                // in case the database failed to insert id
+                else
+                {
+                    pBuilder.setType(Packet.REJECT_SIGN_UP)
+                        .setSender(Packet.SERVER)
+                        .setMessage(sender + " Failed to sign up");
+
+                    printEvent(LogEvent.SIGN_UP_FAILED, address, sender);
+                }
+
+                sendPacket(pBuilder.build());
+            }
+            finally
+            {
+                admission.release();
+                authPending.set(false);
+            }
+        }
+
+        /**
+         * Asks admission control to let a login or sign up be hashed and
+         * refuses it if not. An admitted attempt releases its slot when done.
+         *
+         * @param type REJECT_LOGIN or REJECT_SIGN_UP
+         * @param sender user id of the request
+         * @param limitedId user id whose attempts are limited, or null
+         * @return true if the attempt may be queued
+         */
+        private boolean admit(short type, String sender, String limitedId)
+        {
+            long verdict = admission.admit(host, limitedId);
+
+            if (verdict == AdmissionControl.ADMITTED)
+                return true;
+
+            if (verdict == AdmissionControl.BUSY)
+            {
+                sendBusy(type, sender);
+                return false;
+            }
+
+            sendPacket(new Packet.Builder(type)
+                .setSender(Packet.SERVER).setReceiver(sender)
+                .setMessage(String.format("Too many attempts, try again in %d s",
+                    TimeUnit.MILLISECONDS.toSeconds(verdict + 999)))
+                .setRetryAfter(verdict).build());
+
+            printEvent(LogEvent.AUTH_THROTTLED, address, null);
+
+            return false;
+        }
+
+        /**
+         * Refuses a login or sign up because the auth queue is full
+         *
+         * @param type REJECT_LOGIN or REJECT_SIGN_UP
+         * @param sender user id of the request
+         */
+        private void sendBusy(short type, String sender)
+        {
+            long retryAfter = authExecutor.getRetryAfter();
+
+            sendPacket(new Packet.Builder(type)
+                .setSender(Packet.SERVER).setReceiver(sender)
+                .setMessage(String.format("Server is busy, try again in %d s",
+                    TimeUnit.MILLISECONDS.toSeconds(retryAfter + 999)))
+                .setRetryAfter(retryAfter).build());
+
+            printEvent(LogEvent.AUTH_BUSY, address, null);
+        }
+
+        /**
+         * Sends the packet to each user for invite. It must have the room it
+         *
+         * @param sender sender id
+         * @param roomId room id
+         * @param userList user list to send
+         */
+        private void invite(String sender, String roomId,
+                            HashSet<String> userList)
+        {
+            Set<String> members = roomRegistry.snapshot(roomId);
+
+            if (members == null || userList == null)
+                return;
+
+            EncodedPacket packet = new EncodedPacket(
+                new Packet.Builder(Packet.INVITE)
+                .setSender(sender).setRoomId(roomId).build());
+
+            // spread invite packet to users in the list
+            for (String user : userList)
+            {
+                // check the user is already a member of this room
+                if (members.contains(user))
+                    continue;
+
+                UserConnection toUser = connectionMap.get(user);
+
+                if (toUser != null)
+                    toUser.sendPacket(packet);
+            }
+        }
+    }
+
+    private void disconnectUser(String userId, Socket socket, String address)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+        finally
+        {
+            numConnect.decrementAndGet();
+
+            printEvent(LogEvent.DISCONNECTED, address, userId);
+        }
+    }
+
+    /**
+     * Adds a logged in user and sends a USER_JOINED delta to the others.
+     * The user gets ACCEPT_LOGIN with the full list and the version it
+     * reflects, so it applies only the deltas after that version, and a
+     * resumption token if tokens are enabled.
+     *
+     * @param userInfo user logged in
+     * @param connection connection to the user
+     * @return false if the user id is logged in on another connection
+     */
+    private boolean joinUser(UserInfo userInfo, UserConnection connection)
+    {
+        String userId = userInfo.getId();
+
+        presenceLock.lock();
+
+        try
+        {
+            // logins of the same id can be verified at the same time
+            if (userInfoMap.containsKey(userId))
+                return false;
+
+            long version = ++presenceVersion;
+
+            // the new user isn't in the connection map yet
+            publishPresence(Packet.USER_JOINED, userId, version);
+
+            userInfoMap.put(userId, userInfo);
+            connectionMap.put(userId, connection);
+
+            connection.sendPacket(new Packet.Builder(Packet.ACCEPT_LOGIN)
+                .setSender(Packet.SERVER).setReceiver(userId)
+                .setUserList(new HashSet<>(userInfoMap.keySet()))
+                .setVersion(version)
+                .setMessage(sessionTokens.issue(userId)).build());
+
+            return true;
+        }
+        finally
+        {
+            presenceLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a presence delta to every logged in user, it is called under
+     * presenceLock so the versions are queued in order
+     *
+     * @param type USER_JOINED or USER_LEFT
+     * @param userId user joined or left
+     * @param version presence version after the change
+     */
+    private void publishPresence(short type, String userId, long version)
+    {
+        HashSet<String> users = new HashSet<>();
+        users.add(userId);
+
+        EncodedPacket packet = new EncodedPacket(
+            new Packet.Builder(type).setSender(Packet.SERVER)
+            .setUserList(users).setVersion(version).build());
+
+        for (UserConnection toUser: connectionMap.values())
+            toUser.sendPacket(packet);
+    }
+
+    /**
+     * Sends the full user list with its presence version
+     *
+     * @param userId receiver
+     * @param connection connection to the receiver
+     */
+    private void sendUserList(String userId, UserConnection connection)
+    {
+        presenceLock.lock();
+
+        try
+        {
+            if (!connectionMap.containsKey(userId))
+                return;
+
+            connection.sendPacket(new Packet.Builder(Packet.UPDATE_LIST)
+                .setSender(Packet.SERVER).setReceiver(userId)
+                .setUserList(new HashSet<>(userInfoMap.keySet()))
+                .setVersion(presenceVersion).build());
+        }
+        finally
+        {
+            presenceLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a user logged in on the connection and sends a USER_LEFT
+     * delta to the others
+     *
+     * @param userId user logging out
+     * @param address remote address of the connection
+     * @param connection connection the user logged in on
+     * @param keepSession true keeps the session and its rooms for RESUME,
+     *                    false revokes the token
+     * @return the user removed or null if it isn't logged in on the connection
+     */
+    private UserInfo logoutUser(String userId, String address,
+                                UserConnection connection, boolean keepSession)
+    {
+        UserInfo userInfo = null;
+
+        presenceLock.lock();
+
+        try
+        {
+            // the user may have resumed on another connection
+            if (connectionMap.remove(userId, connection))
+            {
+                userInfo = userInfoMap.remove(userId);
+
+                // the user was logged in, tell the others
+                publishPresence(Packet.USER_LEFT, userId, ++presenceVersion);
+            }
+        }
+        finally
+        {
+            presenceLock.unlock();
+        }
+
+        // if the user has userInfo (logged in)
+        if (userInfo != null)
+        {
+            if (keepSession)
+                sessionTokens.suspend(userId, userInfo.getRoomIdSet());
+            else
+                sessionTokens.revoke(userId);
+
+            // update the number of login
+            countLogin.decrementAndGet();
+
+            // remove this user in the room
+            for (String roomId: userInfo.getRoomIdSet())
+                runInRoom(roomId, () -> leaveRoom(roomId, userId));
+        }
+
+        printEvent(LogEvent.LOGOUT, address, userId);
+
+        return userInfo;
+    }
+
+    /**
+     * Keeps an event message for pollEvent(), it can be called by any thread
+     *
+     * @param message event message without a line separator
+     */
+    public void displayMessage(String message)
+    {
+        events.add(message);
+
+        // drop the oldest, an observer may not be polling at all
+        if (numEvents.incrementAndGet() > MAX_EVENTS && events.poll() != null)
+            numEvents.decrementAndGet();
+
+        if (echoEvents)
+            System.out.println(message);
+    }
+
+    /**
+     * Takes the oldest event message kept
+     *
+     * @return event message or null if there is none
+     */
+    public String pollEvent()
+    {
+        String message = events.poll();
+
+        if (message != null)
+            numEvents.decrementAndGet();
+
+        return message;
+    }
+
+    /**
+     * @param echoEvents true prints event messages to the standard output
+     */
+    public void setEchoEvents(boolean echoEvents)
+    {
+        this.echoEvents = echoEvents;
+    }
+
+    public int getNumConnect()
+    {
+        return numConnect.get();
+    }
+
+    public int getCountLogin()
+    {
+        return countLogin.get();
+    }
+
+    /**
+     * @return users logged in, a live view
+     */
+    public Collection<UserInfo> getUsers()
+    {
+        return Collections.unmodifiableCollection(userInfoMap.values());
+    }
+
+    public RoomRegistry getRoomRegistry()
+    {
+        return roomRegistry;
+    }
+
+    public ChatLog getChatLog()
+    {
+        return chatLog;
+    }
+
+    /**
+     * @return the timers shared by the server, the log schedules and rooms
+     */
+    public TimerWheel getTimerWheel()
+    {
+        return timerWheel;
+    }
+
+    /**
+     * @return the login limits, they can be changed while the server runs
+     */
+    public AdmissionControl getAdmission()
+    {
+        return admission;
+    }
+
+    public String getCurrentTime()
+    {
+        Calendar time = Calendar.getInstance();
+        return String.format("%tF_%tT", time, time);
+    }
+
+    /**
+     * Runs work of a room. Sharded execution queues it on the room's shard
+     * so the room's work runs in order without contention, otherwise it
+     * runs on the calling thread.
+     *
+     * @param roomId room the task works on
+     * @param task task to run
+     */
+    private void runInRoom(String roomId, Runnable task)
+    {
+        if (roomId == null)
+            return;
+
+        if (roomShards != null)
+            roomShards.execute(roomId, task);
+        else
+            task.run();
+    }
+
+    /**
+     * Spreads a message to the other members of its room
+     *
+     * @param userId sender
+     * @param packet message from the sender
+     */
+    private void sendMessage(String userId, Packet packet)
+    {
+        Room room = roomRegistry.get(packet.getRoomId());
+
+        if (room == null)
+            return;
+
+        // encoded once, every member gets the same bytes
+        EncodedPacket message = new EncodedPacket(
+            new Packet.Builder(Packet.MESSAGE).setSender(packet.getSender())
+            .setRoomId(packet.getRoomId())
+            .setMessage(packet.getMessage()).build());
+
+        // spread the message to a snapshot of the members
+        for (String member: room.getMembers())
+        {
+            // skip sender
+            if (member.equals(userId))
+                continue;
+
+            UserConnection toUser = connectionMap.get(member);
+
+            if (toUser != null)
+                toUser.sendPacket(message);
+        }
+    }
+
+    /**
+     * Adds a logged in user to a room, the members get ROOM_STATUS
+     *
+     * @param roomId room id
+     * @param userId user joining
+     * @param create true makes the room again if it was removed with its
+     *               last member, for a user resuming
+     */
+    private void joinRoom(String roomId, String userId, boolean create)
+    {
+        UserInfo userInfo = userInfoMap.get(userId);
+
+        if (userInfo == null)
+            return;
+
+        // add the user unless the room is gone or has the user
+        Room room = roomRegistry.join(roomId, userId);
+
+        if (room == null && create)
+            room = roomRegistry.create(roomId, userId);
+
+        if (room == null)
+            return;
+
+        userInfo.addRoom(roomId);
+
+        // logged out on another thread before the room was added,
+        // logoutUser may not have seen it
+        if (userInfoMap.get(userId) != userInfo)
+        {
+            userInfo.removeRoom(roomId);
+            leaveRoom(roomId, userId);
+            return;
+        }
+
+        roomStatusPublisher.markDirty(room);
+    }
+
+    /**
+     * Removes the user from the room, the others get ROOM_STATUS
+     *
+     * @param roomId room id
+     * @param userId user leaving
+     */
+    private void leaveRoom(String roomId, String userId)
+    {
+        Room room = roomRegistry.leave(roomId, userId);
+
+        // the room is removed with its last member
+        if (room != null && !room.getMembers().isEmpty())
+            roomStatusPublisher.markDirty(room);
+    }
+
+    /**
+     * Sends the members to every member, called by roomStatusPublisher
+     * at most once per window however many members joined or left
+     *
+     * @param room room changed
+     */
+    private void sendRoomStatus(Room room)
+    {
+        // members can't change while they are sent
+        Set<String> members = room.getMembers();
+
+        // send the member list to all member belonging to this room
+        EncodedPacket packet = new EncodedPacket(
+            new Packet.Builder(Packet.ROOM_STATUS)
+            .setUserList(new HashSet<>(members)).setSender(Packet.SERVER)
+            .setRoomId(room.getRoomId()).build());
+
+        // send user list to all user in this room
+        for (String member: members)
+        {
+            UserConnection toUser = connectionMap.get(member);
+
+            if (toUser == null)
+                continue;
+
+            toUser.sendPacket(packet);
+        }
+    }
+
+    /**
+     * Runs the server without a window. Arguments like --transport=nio
+     * override the server settings.
+     *
+     * @param args named parameters
+     */
+    public static void main(String... args)
+    {
+        Map<String, String> named = new HashMap<>();
+
+        for (String arg: args)
+        {
+            int split = arg.indexOf('=');
+
+            if (arg.startsWith("--") && split > 2)
+                named.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+
+        ServerConfig config = new ServerConfig();
+        config.override(named);
+
+        ChatServerCore server = new ChatServerCore(config);
+        server.setEchoEvents(true);
+        server.run();
+    }
+}
@@ -0,0 +1,89 @@
+package com.kwanii.chat.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Publishes the state of changed objects at most once per window.
+ *
+ * The first change marks an object dirty and schedules a publish after the
+ * window. Changes before it runs only find the object dirty already, so a
+ * burst of changes is published once with the state at the end of it.
+ *
+ * @param <K> objects published, compared with equals()
+ */
+public class CoalescingPublisher<K>
+{
+    // objects marked and not published yet
+    final private Set<K> dirty = ConcurrentHashMap.newKeySet();
+
+    // runs publishes after the window
+    final private TimerWheel timers;
+
+    final private long windowMillis;
+
+    final private Consumer<K> publisher;
+
+    // changes marked
+    final private AtomicLong marked = new AtomicLong();
+
+    // publishes run
+    final private AtomicLong published = new AtomicLong();
+
+    /**
+     * @param timers timer wheel shared with other timers
+     * @param windowMillis the least time between publishes of an object
+     * @param publisher publishes the current state of an object
+     */
+    public CoalescingPublisher(TimerWheel timers, long windowMillis,
+                               Consumer<K> publisher)
+    {
+        this.timers = timers;
+        this.windowMillis = Math.max(0, windowMillis);
+        this.publisher = publisher;
+    }
+
+    /**
+     * Marks the object changed, it can be called by any thread
+     *
+     * @param key object changed
+     */
+    public void markDirty(K key)
+    {
+        marked.incrementAndGet();
+
+        if (dirty.add(key))
+            timers.schedule(() -> publish(key),
+                windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void publish(K key)
+    {
+        // changes from now on schedule the next publish
+        dirty.remove(key);
+        published.incrementAndGet();
+
+        try
+        {
+            publisher.accept(key);
+        }
+        catch (RuntimeException ex)
+        {
+            // the timer threads must keep running other publishes
+            ex.printStackTrace();
+        }
+    }
+
+    public long getMarked()
+    {
+        return marked.get();
+    }
+
+    public long getPublished()
+    {
+        return published.get();
+    }
+}
@@ -0,0 +1,403 @@
+package com.kwanii.chat.server;
+
+import com.kwanii.chat.server.ChatLog.ConnectionInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A closed log segment compressed with java.util.zip, the file ".logz".
+ *
+ * The records are deflated in blocks of BLOCK_RECORDS, a block table gives
+ * the offset, length and CRC32 of each block. Record N is read by inflating
+ * its block only, so searches still seek to the records their index gives.
+ * A block whose CRC32 doesn't match is refused, the table has a CRC32 in
+ * the header too.
+ *
+ * Layout: header, block table (offset, length, CRC32 of the records),
+ * deflated blocks.
+ */
+public class CompressedSegment implements LogRecords
+{
+    final public static int MAGIC = 0x434C475A;
+
+    final public static short VERSION = 1;
+
+    // suffix of a compressed segment
+    final public static String SUFFIX = ".logz";
+
+    // records deflated together, the time blocks of LogIndex
+    final public static int BLOCK_RECORDS = LogIndex.BLOCK_SIZE;
+
+    final private static int HEADER_SIZE = 64;
+
+    // bytes of a block in the table
+    final private static int ENTRY_SIZE = 16;
+
+    // header fields
+    final private static int VERSION_POS = 4;
+
+    final private static int WIDTH_POS = 6;
+
+    final private static int BLOCK_RECORDS_POS = 8;
+
+    final private static int BLOCKS_POS = 12;
+
+    final private static int COUNT_POS = 16;
+
+    final private static int CREATED_POS = 24;
+
+    final private static int TABLE_CRC_POS = 32;
+
+    // inflates the blocks read by a thread
+    final private static ThreadLocal<Inflater> INFLATER =
+        ThreadLocal.withInitial(Inflater::new);
+
+    final private File file;
+
+    final private FileChannel channel;
+
+    final private MappedByteBuffer buffer;
+
+    final private long count;
+
+    final private int blockRecords;
+
+    final private long created;
+
+    // the block read last, most reads of a search are in one block
+    private volatile Block cached;
+
+    /**
+     * Opens a compressed segment
+     *
+     * @param file compressed segment
+     * @throws IOException if the file can't be read or its table is damaged
+     */
+    public CompressedSegment(File file) throws IOException
+    {
+        this.file = file;
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try
+        {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.capacity() < HEADER_SIZE
+                || buffer.getInt(0) != MAGIC
+                || buffer.getShort(VERSION_POS) != VERSION
+                || buffer.getShort(WIDTH_POS) != ConnectionInfo.SIZE)
+                throw new IOException(
+                    "Not a compressed log segment of this version: " + file);
+
+            blockRecords = buffer.getInt(BLOCK_RECORDS_POS);
+            count = buffer.getLong(COUNT_POS);
+            created = buffer.getLong(CREATED_POS);
+
+            int blocks = buffer.getInt(BLOCKS_POS);
+
+            if (blockRecords <= 0 || blocks != blocks(count, blockRecords)
+                || HEADER_SIZE + (long) blocks * ENTRY_SIZE > buffer.capacity())
+                throw new IOException("Compressed log segment is cut: " + file);
+
+            if (crc(buffer, HEADER_SIZE, blocks * ENTRY_SIZE)
+                != buffer.getInt(TABLE_CRC_POS))
+                throw new IOException("Compressed log segment is damaged: " + file);
+        }
+        catch (IOException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @param file a log file
+     * @return true if it is a compressed segment by its name
+     */
+    public static boolean isCompressed(File file)
+    {
+        return file.getName().endsWith(SUFFIX);
+    }
+
+    /**
+     * @param segment a ".log" file
+     * @return the name of its compressed copy
+     */
+    public static File compressedFile(File segment)
+    {
+        String path = segment.getPath();
+
+        if (path.endsWith(".log"))
+            path = path.substring(0, path.length() - ".log".length());
+
+        return new File(path + SUFFIX);
+    }
+
+    private static int blocks(long count, int blockRecords)
+    {
+        return (int) ((count + blockRecords - 1) / blockRecords);
+    }
+
+    private static int crc(ByteBuffer buffer, int pos, int length)
+    {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(pos + length).position(pos);
+
+        CRC32 crc = new CRC32();
+        crc.update(slice);
+
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes a compressed copy of a closed segment and checks every block
+     * of it can be read back. The copy is written to a temporary file and
+     * renamed, a reader never sees a part of it.
+     *
+     * @param segment closed segment
+     * @return the compressed file
+     * @throws IOException if the segment can't be read or the copy written
+     */
+    public static File compress(LogSegment segment) throws IOException
+    {
+        long count = segment.size();
+        int blocks = blocks(count, BLOCK_RECORDS);
+
+        File target = compressedFile(segment.getFile());
+        File temp = new File(target.getPath() + ".tmp");
+
+        ByteBuffer table = ByteBuffer.allocate(blocks * ENTRY_SIZE);
+        ByteBuffer records = ByteBuffer.allocate(BLOCK_RECORDS * ConnectionInfo.SIZE);
+        byte[] deflated = new byte[records.capacity() + 64];
+        Deflater deflater = new Deflater();
+        CRC32 crc = new CRC32();
+
+        try (FileChannel channel = FileChannel.open(temp.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            long offset = HEADER_SIZE + table.capacity();
+
+            for (int block = 0; block < blocks; block++)
+            {
+                long first = (long) block * BLOCK_RECORDS;
+                int n = (int) Math.min(BLOCK_RECORDS, count - first);
+
+                for (int i = 0; i < n; i++)
+                    segment.read(first + i).write(records, i * ConnectionInfo.SIZE);
+
+                int length = n * ConnectionInfo.SIZE;
+
+                crc.reset();
+                crc.update(records.array(), 0, length);
+
+                deflater.reset();
+                deflater.setInput(records.array(), 0, length);
+                deflater.finish();
+
+                int size = 0;
+
+                while (!deflater.finished())
+                {
+                    if (size == deflated.length)
+                        deflated = Arrays.copyOf(deflated, size * 2);
+
+                    size += deflater.deflate(deflated, size, deflated.length - size);
+                }
+
+                table.putLong(offset);
+                table.putInt(size);
+                table.putInt((int) crc.getValue());
+
+                ByteBuffer out = ByteBuffer.wrap(deflated, 0, size);
+
+                while (out.hasRemaining())
+                    offset += channel.write(out, offset);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(0, MAGIC);
+            header.putShort(VERSION_POS, VERSION);
+            header.putShort(WIDTH_POS, (short) ConnectionInfo.SIZE);
+            header.putInt(BLOCK_RECORDS_POS, BLOCK_RECORDS);
+            header.putInt(BLOCKS_POS, blocks);
+            header.putLong(COUNT_POS, count);
+            header.putLong(CREATED_POS, segment.getCreated());
+            header.putInt(TABLE_CRC_POS, crc(table, 0, table.capacity()));
+
+            table.flip();
+
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+
+            while (table.hasRemaining())
+                channel.write(table, HEADER_SIZE + table.position());
+
+            channel.force(false);
+        }
+        finally
+        {
+            deflater.end();
+        }
+
+        try (CompressedSegment compressed = new CompressedSegment(temp))
+        {
+            compressed.verify();
+        }
+
+        Files.move(temp.toPath(), target.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return target;
+    }
+
+    /**
+     * Inflates every block and checks its CRC32
+     *
+     * @throws IOException if a block is damaged
+     */
+    public void verify() throws IOException
+    {
+        for (int block = 0; block < blocks(count, blockRecords); block++)
+            inflate(block);
+    }
+
+    /**
+     * @return the records of the block, inflated and checked
+     */
+    private byte[] inflate(int block) throws IOException
+    {
+        int entry = HEADER_SIZE + block * ENTRY_SIZE;
+        long offset = buffer.getLong(entry);
+        int size = buffer.getInt(entry + 8);
+        int expected = buffer.getInt(entry + 12);
+
+        long first = (long) block * blockRecords;
+        byte[] records = new byte[
+            (int) Math.min(blockRecords, count - first) * ConnectionInfo.SIZE];
+
+        if (offset < 0 || size < 0 || offset + size > buffer.capacity())
+            throw new IOException("Block " + block + " is cut: " + file);
+
+        byte[] deflated = new byte[size];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) offset);
+        slice.get(deflated);
+
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(deflated);
+
+        try
+        {
+            int length = 0;
+
+            while (length < records.length && !inflater.finished())
+            {
+                int n = inflater.inflate(records, length, records.length - length);
+
+                if (n == 0 && inflater.needsInput())
+                    break;
+
+                length += n;
+            }
+
+            if (length != records.length)
+                throw new IOException("Block " + block + " is cut: " + file);
+        }
+        catch (DataFormatException ex)
+        {
+            throw new IOException("Block " + block + " is damaged: " + file, ex);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(records);
+
+        if ((int) crc.getValue() != expected)
+            throw new IOException("Block " + block + " is damaged: " + file);
+
+        return records;
+    }
+
+    @Override
+    public ConnectionInfo read(long index) throws IOException
+    {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Record " + index);
+
+        int block = (int) (index / blockRecords);
+        Block last = cached;
+
+        if (last == null || last.index != block)
+        {
+            last = new Block(block, inflate(block));
+            cached = last;
+        }
+
+        return ConnectionInfo.read(ByteBuffer.wrap(last.records),
+            (int) (index % blockRecords) * ConnectionInfo.SIZE);
+    }
+
+    @Override
+    public long size()
+    {
+        return count;
+    }
+
+    /**
+     * @return time the segment was created (epoch ms)
+     */
+    public long getCreated()
+    {
+        return created;
+    }
+
+    /**
+     * @return bytes of the compressed file
+     */
+    public long length()
+    {
+        return buffer.capacity();
+    }
+
+    @Override
+    public File getFile()
+    {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * An inflated block, replaced as a whole so readers need no lock
+     */
+    private static class Block
+    {
+        final int index;
+
+        final byte[] records;
+
+        Block(int index, byte[] records)
+        {
+            this.index = index;
+            this.records = records;
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package com.kwanii.chat.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Small pool of JDBC connections. Each connection keeps the statements it
+ * prepared, so a statement is prepared once per connection.
+ *
+ * A caller waiting for a connection doesn't hold a thread with
+ * acquireAsync(): a released connection is handed to the oldest waiter,
+ * and a waiter gets SQLTimeoutException when the acquire timeout passes.
+ * Connections are opened by a factory, so the pool runs on any JDBC
+ * driver or a stand-in without a database.
+ *
+ * Each acquisition gets its own PooledConnection, closing it twice
+ * returns the connection once. After close() acquisitions fail and the
+ * connections returned are closed.
+ */
+public class ConnectionPool
+{
+    /**
+     * Opens a new connection to the database
+     */
+    @FunctionalInterface
+    public interface ConnectionFactory
+    {
+        Connection open() throws SQLException;
+    }
+
+    final private ConnectionFactory factory;
+
+    // the most connections open at once
+    final private int maxSize;
+
+    // the longest time a caller waits for a connection (ms)
+    final private long acquireTimeout;
+
+    // guards the idle connections, the waiters and the pool size
+    final private ReentrantLock lock = new ReentrantLock();
+
+    // connections not in use, the most recently used first
+    final private ArrayDeque<Entry> idle = new ArrayDeque<>();
+
+    // callers waiting for a connection, the oldest first
+    final private ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+    // connections open or being opened
+    private int size;
+
+    private int active;
+
+    // true after close(), guarded by lock
+    private boolean closed;
+
+    // fails waiters when their timeout passes
+    final private ScheduledThreadPoolExecutor timer;
+
+    // acquisitions, the time they waited and the longest wait
+    final private AtomicLong acquired = new AtomicLong();
+
+    final private AtomicLong totalWaitNanos = new AtomicLong();
+
+    final private AtomicLong maxWaitNanos = new AtomicLong();
+
+    final private AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param factory opens connections when the pool needs one
+     * @param maxSize the most connections open at once
+     * @param acquireTimeout the longest time a caller waits (ms)
+     */
+    public ConnectionPool(ConnectionFactory factory, int maxSize,
+                          long acquireTimeout)
+    {
+        this.factory = factory;
+        this.maxSize = Math.max(1, maxSize);
+        this.acquireTimeout = acquireTimeout;
+
+        timer = new ScheduledThreadPoolExecutor(1, task ->
+        {
+            Thread thread = new Thread(task, "db-pool-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Blocks until a connection is free or the acquire timeout passes.
+     * The caller closes the connection to return it to the pool.
+     *
+     * @return connection
+     * @throws SQLException if no connection could be opened in time
+     */
+    public PooledConnection acquire() throws SQLException
+    {
+        try
+        {
+            return acquireAsync().get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection", ex);
+        }
+        catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof SQLException)
+                throw (SQLException) ex.getCause();
+
+            throw new SQLException(ex.getCause());
+        }
+    }
+
+    /**
+     * Gets a connection without blocking the caller. The future fails with
+     * SQLTimeoutException if no connection is free in time, and with
+     * SQLException if the pool is closed.
+     *
+     * @return future completed with a connection
+     */
+    public CompletableFuture<PooledConnection> acquireAsync()
+    {
+        Waiter waiter = new Waiter();
+        boolean open = false;
+
+        lock.lock();
+
+        try
+        {
+            if (closed)
+            {
+                waiter.future.completeExceptionally(
+                    new SQLException("Connection pool is closed"));
+                return waiter.future;
+            }
+
+            Entry connection = idle.poll();
+
+            if (connection != null)
+            {
+                active++;
+                waiter.complete(connection);
+                return waiter.future;
+            }
+
+            // reserve a place for a new connection
+            if (size < maxSize)
+            {
+                size++;
+                active++;
+                open = true;
+            }
+            else
+            {
+                waiters.add(waiter);
+                waiter.timeout = timer.schedule(() -> expire(waiter),
+                    acquireTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        // connecting is slow, other callers don't wait for it
+        if (open)
+            openFor(waiter);
+
+        return waiter.future;
+    }
+
+    // open a connection reserved in the pool size for the waiter
+    private void openFor(Waiter waiter)
+    {
+        try
+        {
+            Entry entry = new Entry(factory.open());
+
+            if (!waiter.complete(entry))
+                release(entry);
+        }
+        catch (SQLException | RuntimeException ex)
+        {
+            lock.lock();
+
+            try
+            {
+                size--;
+                active--;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            waiter.future.completeExceptionally(ex);
+        }
+    }
+
+    // the waiter's timeout passed before a connection was free
+    private void expire(Waiter waiter)
+    {
+        lock.lock();
+
+        try
+        {
+            if (!waiters.remove(waiter))
+                return;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        timeouts.incrementAndGet();
+        waiter.future.completeExceptionally(new SQLTimeoutException(
+            "No connection free in " + acquireTimeout + " ms"));
+    }
+
+    /**
+     * Returns a connection, it goes to the oldest waiter or the idle list.
+     * A broken connection is closed and a new one is opened for a waiter,
+     * after close() every connection returned is closed.
+     */
+    private void release(Entry connection)
+    {
+        boolean broken = connection.broken || isClosed(connection);
+        Waiter waiter;
+
+        lock.lock();
+
+        try
+        {
+            broken |= closed;
+            waiter = closed ? null : waiters.poll();
+
+            if (broken)
+            {
+                size--;
+                active--;
+
+                // the waiter takes the place of the broken connection
+                if (waiter != null)
+                {
+                    size++;
+                    active++;
+                }
+            }
+            else if (waiter == null)
+            {
+                active--;
+                idle.push(connection);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (broken)
+            connection.closeAll();
+
+        if (waiter == null)
+            return;
+
+        waiter.timeout.cancel(false);
+
+        if (broken)
+            openFor(waiter);
+        else if (!waiter.complete(connection))
+            release(connection);
+    }
+
+    private static boolean isClosed(Entry connection)
+    {
+        try
+        {
+            return connection.connection.isClosed();
+        }
+        catch (SQLException ex)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Closes idle connections, fails the waiters and stops the timer,
+     * connections in use are closed when they are returned
+     */
+    public void close()
+    {
+        ArrayDeque<Waiter> failed;
+
+        lock.lock();
+
+        try
+        {
+            if (closed)
+                return;
+
+            closed = true;
+
+            for (Entry connection: idle)
+            {
+                connection.broken = true;
+                connection.closeAll();
+            }
+
+            size -= idle.size();
+            idle.clear();
+
+            failed = new ArrayDeque<>(waiters);
+            waiters.clear();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        timer.shutdownNow();
+
+        for (Waiter waiter: failed)
+            waiter.future.completeExceptionally(
+                new SQLException("Connection pool is closed"));
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @return connections in use
+     */
+    public int getActive()
+    {
+        lock.lock();
+
+        try
+        {
+            return active;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return connections open and not in use
+     */
+    public int getIdle()
+    {
+        lock.lock();
+
+        try
+        {
+            return idle.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return callers waiting for a connection
+     */
+    public int getWaiting()
+    {
+        lock.lock();
+
+        try
+        {
+            return waiters.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getAcquired()
+    {
+        return acquired.get();
+    }
+
+    /**
+     * @return average time from acquiring to getting a connection (ns)
+     */
+    public long getAverageWait()
+    {
+        long count = acquired.get();
+
+        return (count == 0) ? 0 : totalWaitNanos.get() / count;
+    }
+
+    /**
+     * @return the longest time from acquiring to getting a connection (ns)
+     */
+    public long getMaxWait()
+    {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * @return acquisitions failed because no connection was free in time
+     */
+    public long getTimeouts()
+    {
+        return timeouts.get();
+    }
+
+    /**
+     * Caller waiting for a connection
+     */
+    private class Waiter
+    {
+        final private CompletableFuture<PooledConnection> future =
+            new CompletableFuture<>();
+
+        final private long start = System.nanoTime();
+
+        private ScheduledFuture<?> timeout;
+
+        // hand the connection over, false if the waiter timed out
+        private boolean complete(Entry connection)
+        {
+            if (!future.complete(new PooledConnection(connection)))
+                return false;
+
+            long waited = System.nanoTime() - start;
+
+            acquired.incrementAndGet();
+            totalWaitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+            return true;
+        }
+    }
+
+    /**
+     * Connection of the pool with the statements it prepared
+     */
+    private static class Entry
+    {
+        final private Connection connection;
+
+        // statements prepared on this connection by their sql
+        final private HashMap<String, PreparedStatement> statements =
+            new HashMap<>();
+
+        // true closes the connection when it is returned
+        private volatile boolean broken;
+
+        private Entry(Connection connection)
+        {
+            this.connection = connection;
+        }
+
+        // close the statements and the connection
+        private void closeAll()
+        {
+            try
+            {
+                for (PreparedStatement statement: statements.values())
+                    statement.close();
+
+                connection.close();
+            }
+            catch (SQLException ex)
+            {
+                ex.printStackTrace();
+            }
+
+            statements.clear();
+        }
+    }
+
+    /**
+     * Connection lent by the pool to one acquisition with the statements
+     * it prepared. Closing it returns it to the pool once, the statements
+     * stay open.
+     */
+    public class PooledConnection implements AutoCloseable
+    {
+        final private Entry entry;
+
+        // true once returned, the connection may be lent again
+        final private AtomicBoolean returned = new AtomicBoolean();
+
+        private PooledConnection(Entry entry)
+        {
+            this.entry = entry;
+        }
+
+        /**
+         * Prepares the sql once per connection
+         *
+         * @param sql sql with parameters
+         * @return statement prepared on this connection
+         * @throws SQLException if the statement can't be prepared or the
+         *         connection was returned
+         */
+        public PreparedStatement prepare(String sql) throws SQLException
+        {
+            if (returned.get())
+                throw new SQLException("Connection returned to the pool");
+
+            PreparedStatement statement = entry.statements.get(sql);
+
+            if (statement == null)
+            {
+                statement = entry.connection.prepareStatement(sql);
+                entry.statements.put(sql, statement);
+            }
+
+            return statement;
+        }
+
+        /**
+         * Closes the connection instead of reusing it, called after an error
+         */
+        public void invalidate()
+        {
+            if (!returned.get())
+                entry.broken = true;
+        }
+
+        @Override
+        public void close()
+        {
+            if (returned.compareAndSet(false, true))
+                release(entry);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.kwanii.chat.server;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+/**
+ * A cron expression compiled into a bitset per field, the times of a
+ * Schedule.
+ *
+ * "second minute hour day-of-month month day-of-week", the second can be
+ * left out for 0. A field is a list of "*", "N", "N-M", "* /S", "N/S" or
+ * "N-M/S" (without the space). Months and days of week take their first
+ * three letters too, a day of week is 0 (Sunday) to 7 (Sunday again) and
+ * "L" is the last day of the month, in a list of the day of month but
+ * not in a range or with a step. When the day of month and the day of
+ * week are both restricted a day matching either fires, as in cron.
+ *
+ * next() finds the next fire with a bit scan per field on the local time
+ * of the zone, so months of any length and daylight saving are counted
+ * as the calendar is: a time skipped by a daylight saving gap fires when
+ * the gap ends, a time repeated fires once.
+ */
+public class CronExpression
+{
+    final private static String[] MONTHS = {"JAN", "FEB", "MAR", "APR",
+        "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"};
+
+    final private static String[] DAYS = {"SUN", "MON", "TUE", "WED", "THU",
+        "FRI", "SAT"};
+
+    // years searched before a time that never comes, Feb 29 on a Monday
+    // comes within 28 years
+    final private static int MAX_YEARS = 30;
+
+    final private String expression;
+
+    // allowed values of each field, bit N is value N
+    final private long seconds;
+
+    final private long minutes;
+
+    final private long hours;
+
+    final private long days;
+
+    final private long months;
+
+    final private long daysOfWeek;
+
+    // "L" in the day of month
+    final private boolean lastDay;
+
+    // days of a month matching the days of week, by the day of week of
+    // the 1st: bit N is day N
+    final private long[] weekDays = new long[7];
+
+    // true when the day field isn't "*", they match either
+    final private boolean dayRestricted;
+
+    final private boolean weekRestricted;
+
+    /**
+     * Compiles an expression
+     *
+     * @param expression 5 or 6 fields separated by spaces
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public CronExpression(String expression)
+    {
+        this.expression = expression.trim();
+
+        String[] fields = this.expression.split("\\s+");
+
+        if (fields.length != 5 && fields.length != 6)
+            throw new IllegalArgumentException(
+                "5 or 6 fields expected: " + expression);
+
+        int i = fields.length - 5;
+
+        seconds = i == 0 ? 1L : parse(fields[0], 0, 59, null, false);
+        minutes = parse(fields[i], 0, 59, null, false);
+        hours = parse(fields[i + 1], 0, 23, null, false);
+
+        String day = fields[i + 2];
+        long dayBits = parse(day, 1, 31, null, true);
+
+        // bit 0 is "L", below the days
+        lastDay = (dayBits & 1L) != 0;
+        days = dayBits & ~1L;
+
+        months = parse(fields[i + 3], 1, 12, MONTHS, false);
+
+        long week = parse(fields[i + 4], 0, 7, DAYS, false);
+
+        // 7 is Sunday too
+        daysOfWeek = (week | week >>> 7) & 0x7F;
+
+        dayRestricted = !isAny(day);
+        weekRestricted = !isAny(fields[i + 4]);
+
+        for (int first = 0; first < 7; first++)
+        {
+            for (int d = 1; d <= 31; d++)
+            {
+                if ((daysOfWeek & 1L << (first + d - 1) % 7) != 0)
+                    weekDays[first] |= 1L << d;
+            }
+        }
+    }
+
+    private static boolean isAny(String field)
+    {
+        return field.equals("*") || field.equals("?");
+    }
+
+    /**
+     * Parses a field into a bitset
+     *
+     * @param field list of values, ranges and steps
+     * @param min the least value
+     * @param max the greatest value
+     * @param names names of the values from min, null if none
+     * @param last true if "L" is the last day, it sets bit 0
+     * @return bit N set for each value N
+     * @throws IllegalArgumentException if the field is invalid
+     */
+    private static long parse(String field, int min, int max, String[] names,
+                              boolean last)
+    {
+        long bits = 0;
+
+        for (String part: field.split(","))
+        {
+            if (last && part.toUpperCase().indexOf('L') >= 0)
+            {
+                // "L-2", "1-L" or "L/2" would need the month's length
+                if (!part.equalsIgnoreCase("L"))
+                    throw new IllegalArgumentException(
+                        "L is the last day alone, not in a range or step: "
+                        + field);
+
+                bits |= 1L;
+                continue;
+            }
+
+            int step = 1;
+            int slash = part.indexOf('/');
+
+            if (slash >= 0)
+            {
+                step = Integer.parseInt(part.substring(slash + 1));
+                part = part.substring(0, slash);
+
+                if (step < 1)
+                    throw new IllegalArgumentException("Bad step: " + field);
+            }
+
+            int from;
+            int to;
+
+            if (isAny(part))
+            {
+                from = min;
+                to = max;
+            }
+            else
+            {
+                int dash = part.indexOf('-');
+
+                from = value(dash < 0 ? part : part.substring(0, dash), min, names);
+                to = dash >= 0 ? value(part.substring(dash + 1), min, names)
+                    : slash >= 0 ? max : from;
+            }
+
+            if (from < min || to > max || from > to)
+                throw new IllegalArgumentException(
+                    "Out of range " + min + "-" + max + ": " + field);
+
+            for (int value = from; value <= to; value += step)
+                bits |= 1L << value;
+        }
+
+        return bits;
+    }
+
+    private static int value(String text, int min, String[] names)
+    {
+        for (int i = 0; names != null && i < names.length; i++)
+        {
+            if (names[i].equalsIgnoreCase(text))
+                return min + i;
+        }
+
+        try
+        {
+            return Integer.parseInt(text);
+        }
+        catch (NumberFormatException ex)
+        {
+            throw new IllegalArgumentException("Bad value: " + text);
+        }
+    }
+
+    /**
+     * @return the least value >= from in the bitset, -1 if none
+     */
+    private static int next(long bits, int from)
+    {
+        long left = from > 63 ? 0 : bits & -1L << from;
+
+        return left == 0 ? -1 : Long.numberOfTrailingZeros(left);
+    }
+
+    /**
+     * Finds the next fire
+     *
+     * @param after time after which the fire comes
+     * @return the first fire after the time, in its zone, or null if the
+     *         expression never fires
+     */
+    public ZonedDateTime next(ZonedDateTime after)
+    {
+        ZoneId zone = after.getZone();
+        LocalDateTime time = after.toLocalDateTime().withNano(0).plusSeconds(1);
+        int lastYear = time.getYear() + MAX_YEARS;
+
+        while (time.getYear() <= lastYear)
+        {
+            int month = next(months, time.getMonthValue());
+
+            if (month < 0)
+            {
+                time = LocalDateTime.of(time.getYear() + 1, 1, 1, 0, 0);
+                continue;
+            }
+
+            if (month != time.getMonthValue())
+                time = LocalDateTime.of(time.getYear(), month, 1, 0, 0);
+
+            int day = next(getDays(time.toLocalDate()), time.getDayOfMonth());
+
+            if (day < 0)
+            {
+                time = time.toLocalDate().withDayOfMonth(1).plusMonths(1)
+                    .atStartOfDay();
+                continue;
+            }
+
+            if (day != time.getDayOfMonth())
+                time = time.toLocalDate().withDayOfMonth(day).atStartOfDay();
+
+            int hour = next(hours, time.getHour());
+
+            if (hour < 0)
+            {
+                time = time.toLocalDate().plusDays(1).atStartOfDay();
+                continue;
+            }
+
+            if (hour != time.getHour())
+                time = time.withHour(hour).withMinute(0).withSecond(0);
+
+            int minute = next(minutes, time.getMinute());
+
+            if (minute < 0)
+            {
+                time = time.withMinute(0).withSecond(0).plusHours(1);
+                continue;
+            }
+
+            if (minute != time.getMinute())
+                time = time.withMinute(minute).withSecond(0);
+
+            int second = next(seconds, time.getSecond());
+
+            if (second < 0)
+            {
+                time = time.withSecond(0).plusMinutes(1);
+                continue;
+            }
+
+            time = time.withSecond(second);
+
+            // a gap moves the time forward, a repeated time is the earlier
+            ZonedDateTime fire = ZonedDateTime.ofLocal(time, zone, null);
+
+            if (fire.isAfter(after))
+                return fire;
+
+            time = time.plusSeconds(1);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return days of the date's month that fire, bit N is day N
+     */
+    private long getDays(LocalDate date)
+    {
+        int length = date.lengthOfMonth();
+        long inMonth = (1L << length + 1) - 2;
+
+        long byDay = days | (lastDay ? 1L << length : 0);
+        long byWeek = weekDays[date.withDayOfMonth(1).getDayOfWeek().getValue() % 7];
+
+        if (dayRestricted && weekRestricted)
+            return (byDay | byWeek) & inMonth;
+
+        return (weekRestricted ? byWeek : byDay) & inMonth;
+    }
+
+    /**
+     * Maps a routine of the first schedules onto an expression
+     *
+     * @param routine "Monthly", "Weekly", "Daily" or "Hourly"
+     * @param eventTime time (ms) from the start of the routine's period
+     * @param dayOfWeek 1 (Sunday) ~ 7 (Saturday) for Weekly
+     * @return the expression, null for an unknown routine
+     */
+    public static String ofRoutine(String routine, long eventTime, int dayOfWeek)
+    {
+        long time = Math.max(0, eventTime / 1000);
+
+        long second = time % 60;
+        long minute = time / 60 % 60;
+        long hour = time / 3600 % 24;
+        long day = time / 86400;
+
+        switch (routine)
+        {
+            // the 31st is the last day of each month, the 29th and 30th
+            // skip the months without them as in cron
+            case "Monthly":
+                return String.format("%d %d %d %s * *", second, minute, hour,
+                    day >= 30 ? "L" : Long.toString(day + 1));
+            case "Weekly":
+                return String.format("%d %d %d * * %d", second, minute, hour,
+                    (Math.max(1, dayOfWeek) - 1 + day) % 7);
+            case "Daily":
+                return String.format("%d %d %d * * *", second, minute, hour);
+            case "Hourly":
+                return String.format("%d %d * * * *", second, minute);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return expression;
+    }
+}
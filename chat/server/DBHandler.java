@@ -2,90 +2,153 @@ package com.kwanii.chat.server;
 
 import com.kwanii.chat.HashHandler;
 
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
-import java.sql.*;
-import java.util.stream.Stream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Database handler for login service
- * users (
- *   id varchar2(20),
- *   password BLOB,
- *   salt BLOB
- * );
+ * Login service: hashes and verifies passwords, the users are kept by a
+ * UserStore chosen in the server settings.
+ *
+ * Auth threads call it at the same time. Passwords are hashed outside the
+ * store, so a store is busy only for the lookup.
+ *
+ * A Bloom filter of the user ids answers most checks for a new id without
+ * the store. It is filled by a scan of the store when it connects and
+ * gets each id signed up after that.
+ *
+ * A stored hash starts with its function and iteration count. A user
+ * whose hash is weaker than the settings is hashed again when it logs in.
+ * Hashes stored before that have neither and are 20 bytes of PBKDF2 with
+ * HMAC-SHA1 and 90000 iterations.
  */
 
 public class DBHandler implements HashHandler
 {
-    // Database server ip
-    final private static String DB_SERVER_URL = "jdbc:oracle:thin:@//localhost:1521";
+    // the iteration count of the hashes stored without one
+    final private static int LEGACY_ITERATIONS = 90000;
 
-    // Database name
-    final private static String DB_NAME = "XE";
+    // size of the hashes stored without a function and iteration count
+    final private static int LEGACY_SIZE = 20;
 
-    // Administrator id
-    final private static String ADMIN_ID = "chat";
+    // first byte of a hash stored with its function and iteration count
+    final private static byte HASH_MARKER = '$';
 
-    // Administrator password
-    final private static String ADMIN_PASS = "1234";
-
-    // the iteration count for hashing
-    final private static int ITERATIONS = 90000;
+    // marker, function id and iteration count
+    final private static int HASH_HEADER_SIZE = 2 + Integer.BYTES;
 
     // 20 bytes for salt
     final private static int SALT_SIZE = 20;
 
-    // The number of bits to generate key 20 bytes
-    final private static int KEY_SIZE = SALT_SIZE * 8;
+    // iterations of the hash timed by calibrate()
+    final private static int CALIBRATION_ITERATIONS = 20000;
+
+    // hashes timed by calibrate(), the fastest is used
+    final private static int CALIBRATION_ROUNDS = 5;
+
+    // function and iteration count new hashes are made with
+    private volatile Pbkdf2HashHandler policy =
+        new Pbkdf2HashHandler(KdfAlgorithm.PBKDF2_SHA256, LEGACY_ITERATIONS);
+
+    // verify time (ms) connectDB() calibrates the iterations for, 0 doesn't
+    private long calibrateTarget;
 
-    // Sql login format
-    final private static String LOGIN_FORMAT =
-        "SELECT password, salt FROM users WHERE id = ?";
+    // true if the iterations are calibrated
+    private volatile boolean calibrated;
 
-    // Sql sign up format
-    final private static String SIGN_UP_FORMAT =
-        "INSERT INTO users (id, password, salt) VALUES (?, ?, ?)";
+    // hashes replaced by a stronger one on login
+    final private AtomicLong rehashed = new AtomicLong();
 
-    // Database server connection
-    private Connection connection;
+    // users and their password hashes
+    final private UserStore store;
 
-    // to prepare sql login
-    private PreparedStatement loginStmt;
+    // user ids in the store, null if the filter is off
+    final private BloomFilter userFilter;
 
-    // to prepare sql sign up
-    private PreparedStatement signUpStmt;
+    // true once the filter has every id of the store
+    private volatile boolean filterLoaded;
+
+    // checks answered by the filter without the store
+    final private AtomicLong filterSkipped = new AtomicLong();
+
+    // checks the filter passed to the store for an id not in it
+    final private AtomicLong falsePositives = new AtomicLong();
 
     /**
-     * Connect to mysql database server
+     * Opens the user store selected in the settings
      *
-     * @return true if connection succeeds
+     * @param config server settings
+     * @throws UncheckedIOException if the user file can't be opened
      */
+    public DBHandler(ServerConfig config)
+    {
+        this(createStore(config),
+            config.getUserFilterSize(), config.getUserFilterFpr());
 
-    public boolean connectDB()
+        policy = new Pbkdf2HashHandler(
+            config.getKdfAlgorithm(), config.getKdfIterations());
+        calibrateTarget = config.getKdfCalibrate();
+    }
+
+    /**
+     * @param store users and their password hashes
+     */
+    public DBHandler(UserStore store)
     {
-        try
-        {
-            connection = DriverManager.getConnection(
-                DB_SERVER_URL + "/" + DB_NAME, ADMIN_ID, ADMIN_PASS);
+        this(store, 0, 0);
+    }
+
+    /**
+     * @param store users and their password hashes
+     * @param filterSize user ids the filter is sized for, 0 for no filter
+     * @param filterFpr false positive rate of the filter at that size
+     */
+    public DBHandler(UserStore store, int filterSize, double filterFpr)
+    {
+        this.store = store;
+        this.userFilter =
+            (filterSize > 0) ? new BloomFilter(filterSize, filterFpr) : null;
+    }
 
-            loginStmt = connection.prepareStatement(LOGIN_FORMAT);
-            signUpStmt = connection.prepareStatement(SIGN_UP_FORMAT);
+    private static UserStore createStore(ServerConfig config)
+    {
+        if (config.getUserStore() == ServerConfig.UserStoreType.ORACLE)
+            return new OracleUserStore(config);
 
-            return true;
+        try
+        {
+            return new FileUserStore(config);
         }
-        catch (SQLException ex)
+        catch (IOException ex)
         {
-            ex.printStackTrace();
-            return false;
+            throw new UncheckedIOException(ex);
         }
     }
 
+    /**
+     * Calibrates the hash cost if set, prepares the user store, e.g. opens
+     * the first database connection, then fills the filter with the user ids
+     *
+     * @return true if connection succeeds
+     */
+
+    public boolean connectDB()
+    {
+        if (calibrateTarget > 0)
+            calibrate(calibrateTarget);
+
+        if (!store.connect())
+            return false;
+
+        // the store answers every check until the scan ends
+        if (userFilter != null)
+            filterLoaded = store.forEachId(userFilter::add);
+
+        return true;
+    }
+
     /**
      * Checks the user id exists
      *
@@ -95,22 +158,26 @@ public class DBHandler implements HashHandler
 
     public boolean exists(String id)
     {
-        try
-        {
-            loginStmt.setString(1, id);
+        if (!filterLoaded)
+            return store.exists(id);
 
-            return loginStmt.executeQuery().next();
-        }
-        catch (SQLException ex)
+        if (!userFilter.mightContain(id))
         {
-            ex.printStackTrace();
+            filterSkipped.incrementAndGet();
+            return false;
         }
 
-        return false;
+        boolean exists = store.exists(id);
+
+        if (!exists)
+            falsePositives.incrementAndGet();
+
+        return exists;
     }
 
     /**
-     * Check the user id and password are valid
+     * Check the user id and password are valid. A hash weaker than the
+     * settings is replaced while the password is known.
      *
      * @param id the user id
      * @param password the password
@@ -118,29 +185,23 @@ public class DBHandler implements HashHandler
      */
     public boolean login(String id, String password)
     {
-        try
-        {
-            loginStmt.setString(1, id);
+        UserStore.Credentials credentials = store.fetchCredentials(id);
 
-            ResultSet result = loginStmt.executeQuery();
-
-            // check the result and verify the password with salt and the hash
-            if (result.next())
-            {
-                byte[] hash = result.getBytes("password");
-                byte[] salt = result.getBytes("salt");
+        // verify the password with salt and the hash
+        if (credentials == null || !verify(
+            password, credentials.getHash(), credentials.getSalt()))
+            return false;
 
-                return verify(password, hash, salt);
-            }
-            else
-                return false;
-        }
-        catch (SQLException ex)
+        if (isOutdated(credentials.getHash()))
         {
-            ex.printStackTrace();
+            byte[] salt = getSalt(SALT_SIZE);
+            byte[] hash = hash(password, salt);
+
+            if (hash != null && store.update(id, hash, salt))
+                rehashed.incrementAndGet();
         }
 
-        return false;
+        return true;
     }
 
     /**
@@ -153,34 +214,90 @@ public class DBHandler implements HashHandler
      */
     public boolean signUp(String id, String password)
     {
+        // create the salt and hash outside the store
+        byte[] salt = getSalt(SALT_SIZE);
+        byte[] hash = hash(password, salt);
 
-        try
-        {
-            loginStmt.setString(1, id);
-
-            // check the id exists
-            if (loginStmt.executeQuery().next())
-                return false;
-            else
-            {
-                // create the salt and hash
-                byte[] salt = getSalt(SALT_SIZE);
-                byte[] hash = hash(password, salt);
-
-                // send the id, hash and salt to the database
-                signUpStmt.setString(1, id);
-                signUpStmt.setBinaryStream(2, new ByteArrayInputStream(hash));
-                signUpStmt.setBinaryStream(3, new ByteArrayInputStream(salt));
-
-                signUpStmt.execute();
-                return true;
-            }
-        }
-        catch (SQLException ex)
-        {
-            ex.printStackTrace();
+        // the store checks the id exists as it adds the user
+        if (!store.create(id, hash, salt))
             return false;
+
+        if (userFilter != null)
+            userFilter.add(id);
+
+        return true;
+    }
+
+    public UserStore getStore()
+    {
+        return store;
+    }
+
+    /**
+     * @return statistics of the filter and the store
+     */
+    public String getStatus()
+    {
+        Pbkdf2HashHandler policy = this.policy;
+
+        String hashStatus = String.format(
+            "Password hash: %s, %d iterations%s, rehashed %d%n",
+            policy.getAlgorithm(), policy.getIterations(),
+            calibrated ? " (calibrated)" : "", rehashed.get());
+
+        if (userFilter == null)
+            return hashStatus + store.getStatus();
+
+        return hashStatus + String.format("User filter: %s, %d ids, %d KB, " +
+            "%d hashes, fpr %.4f%%, skipped %d, false positives %d%n%s",
+            filterLoaded ? "loaded" : "loading", userFilter.getCount(),
+            userFilter.getSize() >>> 13, userFilter.getHashes(),
+            userFilter.getFalsePositiveRate() * 100, filterSkipped.get(),
+            falsePositives.get(), store.getStatus());
+    }
+
+    public void close()
+    {
+        store.close();
+    }
+
+    /**
+     * Times a hash and sets the iterations so a verify takes about the
+     * target on this CPU, never fewer than the iterations set
+     *
+     * @param targetMillis verify time wanted (ms)
+     * @return the iteration count used from now on
+     */
+    public int calibrate(long targetMillis)
+    {
+        Pbkdf2HashHandler current = policy;
+        Pbkdf2HashHandler probe = new Pbkdf2HashHandler(
+            current.getAlgorithm(), CALIBRATION_ITERATIONS);
+
+        byte[] salt = probe.getSalt(SALT_SIZE);
+        long fastest = Long.MAX_VALUE;
+
+        // the first rounds warm up the JIT
+        for (int i = 0; i < CALIBRATION_ROUNDS; i++)
+        {
+            long start = System.nanoTime();
+            probe.hash("calibration", salt);
+            fastest = Math.min(fastest, System.nanoTime() - start);
         }
+
+        long iterations = CALIBRATION_ITERATIONS
+            * (targetMillis * 1000000L) / Math.max(1, fastest);
+
+        // round to a thousand
+        iterations = Math.min(Integer.MAX_VALUE, (iterations + 500) / 1000 * 1000);
+
+        if (iterations > current.getIterations())
+            policy = new Pbkdf2HashHandler(
+                current.getAlgorithm(), (int) iterations);
+
+        calibrated = true;
+
+        return policy.getIterations();
     }
 
     /**
@@ -191,42 +308,33 @@ public class DBHandler implements HashHandler
      */
     public byte[] getSalt(int numByte)
     {
-        return SecureRandom.getSeed(numByte);
+        return policy.getSalt(numByte);
     }
 
     /**
-     * Create the hash from the password with the salt using PBKDF2 algorithm
+     * Create the hash from the password with the salt using the function
+     * and iterations set, stored with the hash
      *
      * @param password a password to be hashed
      * @param salt a salt to use hashing the password
-     * @return a hashed password
+     * @return a hashed password or null if the function isn't supported
      */
     public byte[] hash(String password, byte[] salt)
     {
-        char[] passwordChars = password.toCharArray();
+        Pbkdf2HashHandler policy = this.policy;
+        byte[] key = policy.hash(password, salt);
 
-        // setup the key spec
-        PBEKeySpec spec =
-            new PBEKeySpec(passwordChars, salt, ITERATIONS, KEY_SIZE);
-
-        try
-        {
-            SecretKeyFactory key =
-                SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        if (key == null)
+            return null;
 
-            return key.generateSecret(spec).getEncoded();
-        }
-        catch (NoSuchAlgorithmException|InvalidKeySpecException ex)
-        {
-            ex.printStackTrace();
-        }
-
-        return null;
+        return ByteBuffer.allocate(HASH_HEADER_SIZE + key.length)
+            .put(HASH_MARKER).put((byte) policy.getAlgorithm().getId())
+            .putInt(policy.getIterations()).put(key).array();
     }
 
     /**
-     * Verify the user password.
-     * hash the password with the salt and compare each byte
+     * Verify the user password with the function and iterations stored
+     * with the hash
      *
      * @param password To be verified
      * @param hash To be compared with the password
@@ -235,16 +343,64 @@ public class DBHandler implements HashHandler
      */
     public boolean verify(String password, byte[] hash, byte[] salt)
     {
-        // get a hash for password to verify
-        byte[] hash2 = hash(password, salt);
+        Pbkdf2HashHandler handler = handlerOf(hash);
+
+        if (handler == null)
+            return false;
+
+        byte[] key = (hash.length == LEGACY_SIZE)
+            ? hash : Arrays.copyOfRange(hash, HASH_HEADER_SIZE, hash.length);
 
-        // check the both length
-        int diff = hash.length ^ hash2.length;
+        return key.length == handler.getAlgorithm().getKeySize()
+            && handler.verify(password, key, salt);
+    }
 
-        // check each byte matches
-        for (int i = 0; i < hash.length; i++)
-            diff |= hash[i] ^ hash2[i];
+    /**
+     * A hash of a stronger function than the one set is kept, a setting
+     * moved back doesn't weaken it.
+     *
+     * @param hash stored hash
+     * @return true if the hash is weaker than the one set
+     */
+    private boolean isOutdated(byte[] hash)
+    {
+        Pbkdf2HashHandler handler = handlerOf(hash);
+        Pbkdf2HashHandler policy = this.policy;
+
+        if (handler == null)
+            return false;
 
-        return diff == 0;
+        KdfAlgorithm stored = handler.getAlgorithm();
+
+        return stored.isWeakerThan(policy.getAlgorithm())
+            || (!policy.getAlgorithm().isWeakerThan(stored)
+                && handler.getIterations() < policy.getIterations());
+    }
+
+    // the function and iterations a stored hash was made with
+    private static Pbkdf2HashHandler handlerOf(byte[] hash)
+    {
+        if (hash.length == LEGACY_SIZE)
+            return new Pbkdf2HashHandler(
+                KdfAlgorithm.PBKDF2_SHA1, LEGACY_ITERATIONS);
+
+        if (hash.length <= HASH_HEADER_SIZE || hash[0] != HASH_MARKER)
+            return null;
+
+        KdfAlgorithm algorithm = KdfAlgorithm.fromId(hash[1]);
+        int iterations = ByteBuffer.wrap(hash, 2, Integer.BYTES).getInt();
+
+        if (algorithm == null || iterations <= 0)
+            return null;
+
+        return new Pbkdf2HashHandler(algorithm, iterations);
+    }
+
+    /**
+     * @return the function and iterations new hashes are made with
+     */
+    public Pbkdf2HashHandler getPolicy()
+    {
+        return policy;
     }
 }
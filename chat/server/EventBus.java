@@ -0,0 +1,489 @@
+package com.kwanii.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Carries server events from the connection threads to the consumers that
+ * log, show and count them.
+ *
+ * The events are kept in a ring of slots allocated once. A publisher takes
+ * the next sequence with one atomic increment and writes the event code,
+ * time and the address and id strings it already holds into the slot of
+ * that sequence: nothing is allocated or formatted and a publisher never
+ * blocks, not on other publishers nor on the consumers.
+ *
+ * Publishing is lock-free, not wait-free: the slot is taken with a
+ * compare-and-set, retried when another publisher of the same slot, a
+ * whole ring away, changed it meanwhile. Some publisher always completes,
+ * and a retry needs one stalled for a whole ring of events, so it is rare.
+ *
+ * Each consumer has its own cursor and reads the slots in sequence at its
+ * own pace, copying a slot before it handles it. A consumer thread with
+ * nothing to read parks, the publisher that makes its next slot readable
+ * unparks it. A consumer that falls a whole ring behind finds its slots
+ * written again, it skips the events lost and counts them.
+ *
+ * A slot is stamped with its sequence and a state: written, published or
+ * skipped. A reader checks the stamp before and after copying so it never
+ * takes a slot half written. Stamps only grow: a publisher that finds a
+ * later sequence in its slot drops its event, one that finds an earlier
+ * sequence still written (a whole ring published meanwhile) marks its own
+ * skipped rather than mix the two. Readers count both as lost.
+ */
+public class EventBus
+{
+    // longest time (ns) a parked consumer thread sleeps if no publisher
+    // wakes it, it is woken by the next event
+    final private static long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // events a consumer thread handles before it looks at running again
+    final private static int BATCH = 256;
+
+    // states of a slot, in the low bits of its stamp: sequence * 4 + state
+    final private static int PUBLISHED = 0;
+
+    final private static int WRITING = 1;
+
+    final private static int SKIPPED = 2;
+
+    final private static AtomicLongFieldUpdater<Slot> STAMP =
+        AtomicLongFieldUpdater.newUpdater(Slot.class, "stamp");
+
+    final private Slot[] slots;
+
+    final private int mask;
+
+    // the next sequence to publish
+    final private AtomicLong next = new AtomicLong();
+
+    // events a publisher couldn't write, see the class comment
+    final private AtomicLong dropped = new AtomicLong();
+
+    // consumers created, their threads stop with close()
+    final private List<Cursor> cursors = new ArrayList<>();
+
+    // consumers run by their own thread, woken by publishers
+    private volatile Cursor[] started = new Cursor[0];
+
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity slots of the ring, rounded up to a power of 2
+     */
+    public EventBus(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+        slots = new Slot[size];
+        mask = size - 1;
+
+        for (int i = 0; i < size; i++)
+            slots[i] = new Slot(stamp(i - size, PUBLISHED));
+    }
+
+    private static long stamp(long sequence, int state)
+    {
+        return sequence << 2 | state;
+    }
+
+    /**
+     * Publishes an event, called by any thread. It doesn't allocate and
+     * doesn't block, see the class comment.
+     *
+     * @param event event code
+     * @param address address of the connection as the transport gives it
+     * @param userId user id, null if no user
+     */
+    public void publish(LogEvent event, String address, String userId)
+    {
+        long sequence = next.getAndIncrement();
+        Slot slot = slots[(int) sequence & mask];
+
+        // take the slot, retried only if another publisher changed it
+        while (true)
+        {
+            long stamp = slot.stamp;
+
+            if (stamp >> 2 >= sequence)
+            {
+                dropped.incrementAndGet();
+                wake();
+                return;
+            }
+
+            if ((stamp & 3) == WRITING)
+            {
+                if (STAMP.compareAndSet(slot, stamp, stamp(sequence, SKIPPED)))
+                {
+                    dropped.incrementAndGet();
+                    wake();
+                    return;
+                }
+            }
+            else if (STAMP.compareAndSet(slot, stamp, stamp(sequence, WRITING)))
+                break;
+        }
+
+        slot.time = System.currentTimeMillis();
+        slot.event = event;
+        slot.address = address;
+        slot.userId = userId;
+
+        // fails if a later publisher marked the slot skipped meanwhile
+        if (!STAMP.compareAndSet(slot, stamp(sequence, WRITING),
+            stamp(sequence, PUBLISHED)))
+            dropped.incrementAndGet();
+
+        wake();
+    }
+
+    // unpark the consumer threads parked, after a slot is made readable
+    private void wake()
+    {
+        for (Cursor cursor: started)
+        {
+            if (cursor.parked.get() && cursor.parked.compareAndSet(true, false))
+                LockSupport.unpark(cursor.thread);
+        }
+    }
+
+    /**
+     * Adds a consumer polled by its caller, it sees the events published
+     * from now on
+     *
+     * @param name name of the consumer for the status
+     * @return the consumer's cursor
+     */
+    public Cursor subscribe(String name)
+    {
+        Cursor cursor = new Cursor(name, next.get());
+
+        synchronized (cursors)
+        {
+            cursors.add(cursor);
+        }
+
+        return cursor;
+    }
+
+    /**
+     * Adds a consumer run by its own thread "event-<name>", it sees the
+     * events published from now on
+     *
+     * @param name name of the consumer and of its thread
+     * @param handler handles the events in sequence
+     * @return the consumer's cursor
+     */
+    public Cursor start(String name, Handler handler)
+    {
+        Cursor cursor = subscribe(name);
+
+        Thread thread = new Thread(() ->
+        {
+            // handle the events published before close() too
+            while (running || cursor.position < next.get())
+            {
+                if (cursor.poll(handler, BATCH) > 0 || !running)
+                    continue;
+
+                // a publisher after this sees parked, or this sees its slot
+                cursor.parked.set(true);
+
+                if (!cursor.isReadable() && running)
+                    LockSupport.parkNanos(this, IDLE_PARK);
+
+                cursor.parked.set(false);
+            }
+        }, "event-" + name);
+
+        cursor.thread = thread;
+        thread.setDaemon(true);
+
+        synchronized (cursors)
+        {
+            Cursor[] added = Arrays.copyOf(started, started.length + 1);
+            added[started.length] = cursor;
+            started = added;
+        }
+
+        thread.start();
+
+        return cursor;
+    }
+
+    /**
+     * Stops the consumer threads after they handle the events published
+     */
+    public void close()
+    {
+        running = false;
+
+        for (Cursor cursor: getCursors())
+        {
+            if (cursor.thread == null)
+                continue;
+
+            LockSupport.unpark(cursor.thread);
+
+            try
+            {
+                cursor.thread.join(1000);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of events published
+     */
+    public long getPublished()
+    {
+        return next.get();
+    }
+
+    /**
+     * @return events a publisher couldn't write into its slot
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    public int getCapacity()
+    {
+        return slots.length;
+    }
+
+    /**
+     * @return a copy of the consumers
+     */
+    public List<Cursor> getCursors()
+    {
+        synchronized (cursors)
+        {
+            return new ArrayList<>(cursors);
+        }
+    }
+
+    /**
+     * Handles an event read by a consumer
+     */
+    public interface Handler
+    {
+        /**
+         * @param event the consumer's copy of the event, reused for the
+         *              next one
+         */
+        void onEvent(Event event);
+    }
+
+    /**
+     * A slot of the ring, written by publishers in place. Every field is
+     * volatile so a reader that finds the same stamp before and after its
+     * copy read the fields of that sequence.
+     */
+    private static class Slot
+    {
+        // sequence * 4 + state of the slot
+        volatile long stamp;
+
+        volatile long time;
+
+        volatile LogEvent event;
+
+        volatile String address;
+
+        volatile String userId;
+
+        Slot(long stamp)
+        {
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * An event copied from a slot, owned by one consumer
+     */
+    public static class Event
+    {
+        private long sequence;
+
+        private long time;
+
+        private LogEvent event;
+
+        private String address;
+
+        private String userId;
+
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        /**
+         * @return time the event was published (epoch ms)
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        public LogEvent getEvent()
+        {
+            return event;
+        }
+
+        /**
+         * @return address of the connection as the transport gave it
+         */
+        public String getAddress()
+        {
+            return address;
+        }
+
+        /**
+         * @return user id, null if no user
+         */
+        public String getUserId()
+        {
+            return userId;
+        }
+    }
+
+    /**
+     * Position of a consumer in the ring. poll() is called by one thread.
+     */
+    public class Cursor
+    {
+        final private String name;
+
+        // the next sequence to read
+        private volatile long position;
+
+        // events written again before they were read
+        private volatile long lost;
+
+        // copy handed to the handler
+        final private Event event = new Event();
+
+        // runs the consumer started, null if it is polled
+        private Thread thread;
+
+        // true while its thread parks for an event
+        final private AtomicBoolean parked = new AtomicBoolean();
+
+        Cursor(String name, long position)
+        {
+            this.name = name;
+            this.position = position;
+        }
+
+        /**
+         * Handles the events published since the last poll
+         *
+         * @param handler handles each event
+         * @param max most events handled
+         * @return the number of events handled
+         */
+        public int poll(Handler handler, int max)
+        {
+            int count = 0;
+            long sequence = position;
+
+            while (count < max)
+            {
+                Slot slot = slots[(int) sequence & mask];
+                long stamp = slot.stamp;
+                long written = stamp >> 2;
+
+                // not published yet or still written
+                if (written < sequence
+                    || (written == sequence && (stamp & 3) == WRITING))
+                    break;
+
+                if (stamp == stamp(sequence, PUBLISHED))
+                {
+                    event.sequence = sequence;
+                    event.time = slot.time;
+                    event.event = slot.event;
+                    event.address = slot.address;
+                    event.userId = slot.userId;
+
+                    if (slot.stamp == stamp)
+                    {
+                        sequence++;
+                        position = sequence;
+                        count++;
+
+                        handler.onEvent(event);
+                        continue;
+                    }
+                }
+
+                if (stamp == stamp(sequence, SKIPPED))
+                {
+                    lost++;
+                    sequence++;
+                    position = sequence;
+                    continue;
+                }
+
+                // written again by a later sequence: skip to the oldest
+                // event still in the ring
+                long oldest = Math.max(sequence + 1, next.get() - slots.length);
+
+                lost += oldest - sequence;
+                sequence = oldest;
+                position = sequence;
+            }
+
+            event.address = null;
+            event.userId = null;
+
+            return count;
+        }
+
+        /**
+         * @return true if the slot of the next sequence is published,
+         *         skipped or written again, poll() moves on from it
+         */
+        private boolean isReadable()
+        {
+            long sequence = position;
+            long stamp = slots[(int) sequence & mask].stamp;
+            long written = stamp >> 2;
+
+            return written > sequence
+                || (written == sequence && (stamp & 3) != WRITING);
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return events published and not read yet
+         */
+        public long getBehind()
+        {
+            return Math.max(0, next.get() - position);
+        }
+
+        public long getLost()
+        {
+            return lost;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.kwanii.chat.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the server events by type, a consumer of the EventBus: the events
+ * since the start and the events of the last minute.
+ *
+ * One consumer thread counts, any thread reads. The last minute is kept as
+ * a count per second, a second is cleared when it comes round again.
+ */
+public class EventMetrics implements EventBus.Handler
+{
+    // seconds of the window
+    final private static int SECONDS = 60;
+
+    final private static LogEvent[] EVENTS = LogEvent.values();
+
+    // events since the start, by ordinal
+    final private AtomicLongArray totals = new AtomicLongArray(EVENTS.length);
+
+    // events of each second of the window, [second * EVENTS + ordinal]
+    final private AtomicLongArray perSecond =
+        new AtomicLongArray(SECONDS * EVENTS.length);
+
+    // the second (epoch) each slot of the window counts
+    final private AtomicLongArray seconds = new AtomicLongArray(SECONDS);
+
+    @Override
+    public void onEvent(EventBus.Event event)
+    {
+        LogEvent type = event.getEvent();
+
+        if (type == null)
+            return;
+
+        long second = TimeUnit.MILLISECONDS.toSeconds(event.getTime());
+        int slot = (int) (second % SECONDS);
+
+        // the slot counted a second a minute ago or more
+        if (seconds.get(slot) != second)
+        {
+            for (int i = 0; i < EVENTS.length; i++)
+                perSecond.lazySet(slot * EVENTS.length + i, 0);
+
+            seconds.set(slot, second);
+        }
+
+        // only this thread writes, no atomic increment is needed
+        int ordinal = type.ordinal();
+        int i = slot * EVENTS.length + ordinal;
+
+        perSecond.lazySet(i, perSecond.get(i) + 1);
+        totals.lazySet(ordinal, totals.get(ordinal) + 1);
+    }
+
+    /**
+     * @param event type of events
+     * @return events of the type since the start
+     */
+    public long getTotal(LogEvent event)
+    {
+        return totals.get(event.ordinal());
+    }
+
+    /**
+     * @param event type of events
+     * @return events of the type in the last minute
+     */
+    public long getLastMinute(LogEvent event)
+    {
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        long count = 0;
+
+        for (int slot = 0; slot < SECONDS; slot++)
+        {
+            if (now - seconds.get(slot) < SECONDS)
+                count += perSecond.get(slot * EVENTS.length + event.ordinal());
+        }
+
+        return count;
+    }
+
+    /**
+     * @return "label total (last minute)" of each type seen
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+
+        for (LogEvent event: EVENTS)
+        {
+            long total = getTotal(event);
+
+            if (total == 0)
+                continue;
+
+            if (builder.length() > 0)
+                builder.append(", ");
+
+            builder.append(String.format("%s %d (%d/min)",
+                event.getLabel(), total, getLastMinute(event)));
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,369 @@
+package com.kwanii.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Users in a memory mapped file on the server, no database is needed.
+ *
+ * Users are appended to the file and never changed, a new password hash
+ * is appended as another record of the user. An index in memory maps
+ * each id to its latest record, so a lookup reads the mapped file without
+ * a system call or a lock. The index is built from the file when the
+ * store opens, a record cut off by a crash is dropped then.
+ *
+ * File: magic, version, then records of
+ * length, id length, id, hash length, hash, salt length, salt, crc32
+ */
+public class FileUserStore implements UserStore
+{
+    final private static int MAGIC = 0x43555352;
+
+    final private static int VERSION = 1;
+
+    // magic, version and a reserved long
+    final private static int HEADER_SIZE = 16;
+
+    // mapped size of a new file, doubled when it is full
+    final private static int INITIAL_CAPACITY = 1 << 20;
+
+    // MappedByteBuffer.force(index, length) on Java 13 or later, or null
+    final private static Method FORCE_RANGE = findForceRange();
+
+    final private File file;
+
+    final private FileChannel channel;
+
+    // the mapped file, replaced by a larger mapping when it is full
+    private volatile MappedByteBuffer buffer;
+
+    // id to the position of its record
+    final private ConcurrentHashMap<String, Integer> index =
+        new ConcurrentHashMap<>();
+
+    // one writer at a time, readers don't lock
+    final private ReentrantLock writeLock = new ReentrantLock();
+
+    // the end of the records, guarded by writeLock
+    private int writePos;
+
+    /**
+     * Opens or creates the file and builds the index from its records
+     *
+     * @param file file of the users
+     * @throws IOException if the file can't be opened or isn't a user file
+     */
+    public FileUserStore(File file) throws IOException
+    {
+        this.file = file;
+
+        File parent = file.getAbsoluteFile().getParentFile();
+
+        if (parent != null)
+            parent.mkdirs();
+
+        channel = new RandomAccessFile(file, "rw").getChannel();
+
+        long length = channel.size();
+
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("User file is too large: " + file);
+
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+            Math.max(length, INITIAL_CAPACITY));
+
+        if (length < HEADER_SIZE)
+        {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(Integer.BYTES, VERSION);
+            writePos = HEADER_SIZE;
+            buffer.force();
+        }
+        else
+        {
+            if (buffer.getInt(0) != MAGIC)
+                throw new IOException("Not a user file: " + file);
+
+            if (buffer.getInt(Integer.BYTES) != VERSION)
+                throw new IOException("Unknown user file version: " + file);
+
+            load();
+        }
+    }
+
+    public FileUserStore(ServerConfig config) throws IOException
+    {
+        this(config.getUserStoreFile());
+    }
+
+    // index the records and find the end of the last whole record
+    private void load()
+    {
+        ByteBuffer records = buffer;
+        int pos = HEADER_SIZE;
+
+        while (pos + Integer.BYTES <= records.capacity())
+        {
+            int length = records.getInt(pos);
+
+            // the end of the records or a record cut off
+            if (length <= 0
+                || length > records.capacity() - pos - 2 * Integer.BYTES)
+                break;
+
+            int body = pos + Integer.BYTES;
+
+            if (checksum(records, body, length)
+                != records.getInt(body + length))
+                break;
+
+            int idLength = records.getShort(body) & 0xffff;
+            byte[] id = new byte[idLength];
+
+            for (int i = 0; i < idLength; i++)
+                id[i] = records.get(body + Short.BYTES + i);
+
+            // a later record of the user replaces the earlier
+            index.put(new String(id, StandardCharsets.UTF_8), pos);
+
+            pos = body + length + Integer.BYTES;
+        }
+
+        writePos = pos;
+
+        // forget a record cut off, the next record is written over it.
+        // Bytes left after that fail the checksum when the file is loaded.
+        if (pos + Integer.BYTES <= records.capacity())
+            records.putInt(pos, 0);
+    }
+
+    private static int checksum(ByteBuffer records, int pos, int length)
+    {
+        ByteBuffer body = records.duplicate();
+        body.position(pos).limit(pos + length);
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public boolean exists(String id)
+    {
+        return index.containsKey(id);
+    }
+
+    @Override
+    public Credentials fetchCredentials(String id)
+    {
+        Integer pos = index.get(id);
+
+        if (pos == null)
+            return null;
+
+        // read after the index, so the mapping has the record
+        ByteBuffer records = buffer;
+
+        int hashPos = pos + Integer.BYTES + Short.BYTES
+            + (records.getShort(pos + Integer.BYTES) & 0xffff);
+        byte[] hash = read(records, hashPos);
+        byte[] salt = read(records, hashPos + 1 + hash.length);
+
+        return new Credentials(hash, salt);
+    }
+
+    // read bytes after their length byte
+    private static byte[] read(ByteBuffer records, int pos)
+    {
+        byte[] bytes = new byte[records.get(pos) & 0xff];
+
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = records.get(pos + 1 + i);
+
+        return bytes;
+    }
+
+    @Override
+    public boolean create(String id, byte[] hash, byte[] salt)
+    {
+        return append(id, hash, salt, false);
+    }
+
+    @Override
+    public boolean update(String id, byte[] hash, byte[] salt)
+    {
+        return append(id, hash, salt, true);
+    }
+
+    /**
+     * Appends a record of a user
+     *
+     * @param id user id
+     * @param hash password hash
+     * @param salt salt the password was hashed with
+     * @param replace true if the user must exist, false if it must not
+     * @return true if the record is appended
+     */
+    private boolean append(String id, byte[] hash, byte[] salt, boolean replace)
+    {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+
+        if (idBytes.length > 0xffff
+            || hash.length > 0xff || salt.length > 0xff)
+            return false;
+
+        int length = Short.BYTES + idBytes.length
+            + 1 + hash.length + 1 + salt.length;
+
+        writeLock.lock();
+
+        try
+        {
+            if (index.containsKey(id) != replace)
+                return false;
+
+            int size = Integer.BYTES + length + Integer.BYTES;
+            MappedByteBuffer mapped = ensureCapacity(writePos + size);
+            ByteBuffer records = mapped.duplicate();
+
+            records.position(writePos);
+            records.putInt(length)
+                .putShort((short) idBytes.length).put(idBytes)
+                .put((byte) hash.length).put(hash)
+                .put((byte) salt.length).put(salt);
+            records.putInt(checksum(records, writePos + Integer.BYTES, length));
+
+            // the user survives a crash once it is told it signed up
+            force(mapped, writePos, size);
+
+            index.put(id, writePos);
+            writePos += size;
+
+            return true;
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+            return false;
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean forEachId(Consumer<String> action)
+    {
+        index.keySet().forEach(action);
+        return true;
+    }
+
+    private static Method findForceRange()
+    {
+        try
+        {
+            return MappedByteBuffer.class.getMethod("force", int.class, int.class);
+        }
+        catch (NoSuchMethodException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Forces a record to the disk. Only its pages are written where the JVM
+     * forces a range of a mapping, else the file is synced once, rather
+     * than every page of the mapping checked as force() does.
+     *
+     * @param mapped mapping the record was written to
+     * @param pos position of the record
+     * @param size bytes of the record
+     */
+    private void force(MappedByteBuffer mapped, int pos, int size)
+        throws IOException
+    {
+        if (FORCE_RANGE != null)
+        {
+            try
+            {
+                FORCE_RANGE.invoke(mapped, pos, size);
+                return;
+            }
+            catch (ReflectiveOperationException ex)
+            {
+                // synced through the channel
+            }
+        }
+
+        channel.force(false);
+    }
+
+    // map a larger part of the file if the records don't fit
+    private MappedByteBuffer ensureCapacity(long capacity) throws IOException
+    {
+        MappedByteBuffer records = buffer;
+
+        if (capacity <= records.capacity())
+            return records;
+
+        long newCapacity = records.capacity();
+
+        while (newCapacity < capacity)
+            newCapacity <<= 1;
+
+        if (newCapacity > Integer.MAX_VALUE)
+            throw new IOException("User file is full: " + file);
+
+        // readers still holding the old mapping see the same file
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+
+        return buffer;
+    }
+
+    /**
+     * @return the number of users
+     */
+    public int size()
+    {
+        return index.size();
+    }
+
+    @Override
+    public String getStatus()
+    {
+        return String.format("User store: %d users, %d KB in %s%n",
+            index.size(), writePos >>> 10, file.getPath());
+    }
+
+    @Override
+    public void close()
+    {
+        writeLock.lock();
+
+        try
+        {
+            buffer.force();
+            channel.close();
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.kwanii.chat.server;
+
+import javax.crypto.SecretKeyFactory;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Key derivation functions passwords are hashed with. The id is kept with
+ * each stored hash, so users hashed with an older function still log in.
+ * The rank orders them by strength, a hash is never made again with a
+ * function of a lower rank.
+ */
+public enum KdfAlgorithm
+{
+    // the function of the hashes stored before ids were kept
+    PBKDF2_SHA1(1, 1, "PBKDF2WithHmacSHA1", 20),
+
+    PBKDF2_SHA256(2, 2, "PBKDF2WithHmacSHA256", 32),
+
+    PBKDF2_SHA512(3, 3, "PBKDF2WithHmacSHA512", 64);
+
+    // stored with the hash, never reused
+    final private int id;
+
+    // strength, higher is stronger
+    final private int rank;
+
+    // name of the SecretKeyFactory
+    final private String jcaName;
+
+    // bytes of the hash, the output size of the HMAC
+    final private int keySize;
+
+    // a factory is looked up once per thread, not for each hash
+    final private ThreadLocal<SecretKeyFactory> factory =
+        ThreadLocal.withInitial(this::newFactory);
+
+    KdfAlgorithm(int id, int rank, String jcaName, int keySize)
+    {
+        this.id = id;
+        this.rank = rank;
+        this.jcaName = jcaName;
+        this.keySize = keySize;
+    }
+
+    private SecretKeyFactory newFactory()
+    {
+        try
+        {
+            return SecretKeyFactory.getInstance(jcaName);
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param id id stored with a hash
+     * @return the algorithm or null if the id is unknown
+     */
+    public static KdfAlgorithm fromId(int id)
+    {
+        for (KdfAlgorithm algorithm: values())
+        {
+            if (algorithm.id == id)
+                return algorithm;
+        }
+
+        return null;
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    public int getRank()
+    {
+        return rank;
+    }
+
+    /**
+     * @param other another function
+     * @return true if this function ranks lower than the other
+     */
+    public boolean isWeakerThan(KdfAlgorithm other)
+    {
+        return rank < other.rank;
+    }
+
+    public String getJcaName()
+    {
+        return jcaName;
+    }
+
+    public int getKeySize()
+    {
+        return keySize;
+    }
+
+    /**
+     * @return the factory of the calling thread
+     */
+    public SecretKeyFactory getFactory()
+    {
+        return factory.get();
+    }
+}
@@ -0,0 +1,71 @@
+package com.kwanii.chat.server;
+
+/**
+ * Events of the connection log. The code is written in each log record,
+ * a code is never reused for another event.
+ */
+public enum LogEvent
+{
+    SERVER_STARTED(1, "Server Started"),
+
+    SERVER_STARTED_NIO(2, "Server Started (nio)"),
+
+    CONNECTED(3, "Connected"),
+
+    DISCONNECTED(4, "Disconnected"),
+
+    LOGIN(5, "Login"),
+
+    LOGIN_FAILED(6, "Login failed"),
+
+    LOGOUT(7, "Logout"),
+
+    RESUMED(8, "Resumed"),
+
+    SIGNED_UP(9, "Created user id"),
+
+    SIGN_UP_DUPLICATED(10, "SignUp failed: Duplicated user id"),
+
+    SIGN_UP_FAILED(11, "SignUp failed in the database"),
+
+    AUTH_BUSY(12, "Auth busy"),
+
+    AUTH_THROTTLED(13, "Auth throttled");
+
+    // written in the log records
+    final private short code;
+
+    // shown in the server window
+    final private String label;
+
+    LogEvent(int code, String label)
+    {
+        this.code = (short) code;
+        this.label = label;
+    }
+
+    /**
+     * @param code code read from a log record
+     * @return the event or null if the code is unknown
+     */
+    public static LogEvent fromCode(int code)
+    {
+        for (LogEvent event: values())
+        {
+            if (event.code == code)
+                return event;
+        }
+
+        return null;
+    }
+
+    public short getCode()
+    {
+        return code;
+    }
+
+    public String getLabel()
+    {
+        return label;
+    }
+}
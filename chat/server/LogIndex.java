@@ -0,0 +1,378 @@
+package com.kwanii.chat.server;
+
+import com.kwanii.chat.server.ChatLog.ConnectionInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Sidecar index of a closed log segment, the file "<segment>.idx" without
+ * the ".log" or ".logz" of the segment. Its compressed copy has the same
+ * records, the index serves both.
+ *
+ * Time: the records are cut into blocks of BLOCK_SIZE, the index keeps the
+ * first and last time of each block. Records are written in time order
+ * mostly, a block whose range misses the query is never read.
+ *
+ * User id and IP: hash tables whose buckets list the record numbers with
+ * that hash. The buckets are stored one after another with a table of
+ * where each starts, so the records of an id are one slice of the file.
+ * A bucket can hold records of other ids with the same hash, the caller
+ * compares the records it reads.
+ *
+ * Layout: header, block times (min, max), id starts int[buckets + 1],
+ * id records int[count], IP starts int[buckets + 1], IP records int[count].
+ */
+public class LogIndex implements AutoCloseable
+{
+    final public static int MAGIC = 0x434C4958;
+
+    final public static short VERSION = 1;
+
+    // suffix of the index file after the segment name
+    final public static String SUFFIX = ".idx";
+
+    // records of a time block
+    final public static int BLOCK_SIZE = 256;
+
+    final private static int HEADER_SIZE = 64;
+
+    // header fields
+    final private static int VERSION_POS = 4;
+
+    final private static int BLOCK_SIZE_POS = 8;
+
+    final private static int BUCKETS_POS = 12;
+
+    final private static int COUNT_POS = 16;
+
+    final private static int MIN_TIME_POS = 24;
+
+    final private static int MAX_TIME_POS = 32;
+
+    final private FileChannel channel;
+
+    final private MappedByteBuffer buffer;
+
+    // records of the segment indexed
+    final private int count;
+
+    final private int buckets;
+
+    final private int blockSize;
+
+    final private long minTime;
+
+    final private long maxTime;
+
+    // where the parts start in the file
+    final private int blocksPos;
+
+    final private int idStartsPos;
+
+    final private int idRecordsPos;
+
+    final private int ipStartsPos;
+
+    final private int ipRecordsPos;
+
+    /**
+     * Opens an index written by build()
+     *
+     * @param file index file
+     * @throws IOException if the file can't be read or isn't an index
+     */
+    public LogIndex(File file) throws IOException
+    {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try
+        {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.capacity() < HEADER_SIZE
+                || buffer.getInt(0) != MAGIC
+                || buffer.getShort(VERSION_POS) != VERSION)
+                throw new IOException("Not a log index of this version: " + file);
+
+            blockSize = buffer.getInt(BLOCK_SIZE_POS);
+            buckets = buffer.getInt(BUCKETS_POS);
+            count = (int) buffer.getLong(COUNT_POS);
+            minTime = buffer.getLong(MIN_TIME_POS);
+            maxTime = buffer.getLong(MAX_TIME_POS);
+
+            blocksPos = HEADER_SIZE;
+            idStartsPos = blocksPos + blocks(count, blockSize) * 16;
+            idRecordsPos = idStartsPos + (buckets + 1) * 4;
+            ipStartsPos = idRecordsPos + count * 4;
+            ipRecordsPos = ipStartsPos + (buckets + 1) * 4;
+
+            if (buffer.capacity() != ipRecordsPos + count * 4)
+                throw new IOException("Log index is cut: " + file);
+        }
+        catch (IOException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @param segment a log segment file, compressed or not
+     * @return its index file
+     */
+    public static File indexFile(File segment)
+    {
+        String path = segment.getPath();
+        int dot = path.lastIndexOf('.');
+
+        if (dot > path.lastIndexOf(File.separatorChar))
+            path = path.substring(0, dot);
+
+        return new File(path + SUFFIX);
+    }
+
+    private static int blocks(int count, int blockSize)
+    {
+        return (count + blockSize - 1) / blockSize;
+    }
+
+    /**
+     * Writes the index of a closed segment next to it. The index is
+     * written to a temporary file and renamed, a reader never sees a
+     * part of it.
+     *
+     * @param segment records of a closed segment
+     * @return the index file
+     * @throws IOException if the segment can't be read or the index written
+     */
+    public static File build(LogRecords segment) throws IOException
+    {
+        if (segment.size() > Integer.MAX_VALUE / 8)
+            throw new IOException("Log segment too large to index: "
+                + segment.getFile());
+
+        int count = (int) segment.size();
+
+        // a power of 2 near the number of records, a few per bucket
+        int buckets = Integer.highestOneBit(Math.max(count, 64));
+
+        int[] idHash = new int[count];
+        int[] ipHash = new int[count];
+        long[] blockTimes = new long[blocks(count, BLOCK_SIZE) * 2];
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+
+        for (int i = 0; i < count; i++)
+        {
+            ConnectionInfo info = segment.read(i);
+            long time = info.getTime();
+            int block = (i / BLOCK_SIZE) * 2;
+
+            if (i % BLOCK_SIZE == 0)
+            {
+                blockTimes[block] = time;
+                blockTimes[block + 1] = time;
+            }
+            else
+            {
+                blockTimes[block] = Math.min(blockTimes[block], time);
+                blockTimes[block + 1] = Math.max(blockTimes[block + 1], time);
+            }
+
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+
+            idHash[i] = bucketOf(info.getId(), buckets);
+            ipHash[i] = bucketOf(info.getAddress(), buckets);
+        }
+
+        int size = HEADER_SIZE + blockTimes.length * 8
+            + (buckets + 1) * 8 + count * 8;
+        ByteBuffer out = ByteBuffer.allocate(size);
+
+        out.putInt(MAGIC);
+        out.putShort(VERSION);
+        out.putShort((short) 0);
+        out.putInt(BLOCK_SIZE);
+        out.putInt(buckets);
+        out.putLong(count);
+        out.putLong(count == 0 ? 0 : minTime);
+        out.putLong(count == 0 ? 0 : maxTime);
+        out.position(HEADER_SIZE);
+
+        for (long time: blockTimes)
+            out.putLong(time);
+
+        putTable(out, idHash, buckets);
+        putTable(out, ipHash, buckets);
+        out.flip();
+
+        File index = indexFile(segment.getFile());
+        File temp = new File(index.getPath() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temp.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            while (out.hasRemaining())
+                channel.write(out);
+
+            channel.force(false);
+        }
+
+        Files.move(temp.toPath(), index.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return index;
+    }
+
+    /**
+     * Writes the bucket starts then the record numbers of each bucket,
+     * a counting sort of the records by bucket
+     */
+    private static void putTable(ByteBuffer out, int[] hashes, int buckets)
+    {
+        int[] starts = new int[buckets + 1];
+
+        for (int hash: hashes)
+            starts[hash + 1]++;
+
+        for (int i = 0; i < buckets; i++)
+            starts[i + 1] += starts[i];
+
+        int[] records = new int[hashes.length];
+        int[] next = Arrays.copyOf(starts, buckets);
+
+        for (int i = 0; i < hashes.length; i++)
+            records[next[hashes[i]]++] = i;
+
+        for (int start: starts)
+            out.putInt(start);
+
+        for (int record: records)
+            out.putInt(record);
+    }
+
+    /**
+     * FNV-1a of the bytes, spread so the low bits used pick a bucket evenly.
+     * Arrays.hashCode() gives few values for addresses that differ in
+     * their last bytes only.
+     */
+    private static int bucketOf(byte[] bytes, int buckets)
+    {
+        int hash = 0x811C9DC5;
+
+        for (byte b: bytes)
+            hash = (hash ^ (b & 0xff)) * 0x01000193;
+
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+
+        return hash & (buckets - 1);
+    }
+
+    private static int bucketOf(String id, int buckets)
+    {
+        return bucketOf(id.getBytes(StandardCharsets.UTF_8), buckets);
+    }
+
+    /**
+     * Gives the records that can have the user id, in record order
+     *
+     * @param id user id as it is logged, see ConnectionInfo.cut()
+     * @param action called with each record number
+     */
+    public void forEachId(String id, IntConsumer action)
+    {
+        forEachInBucket(idStartsPos, idRecordsPos, bucketOf(id, buckets), action);
+    }
+
+    /**
+     * Gives the records that can have the address, in record order
+     *
+     * @param address 16 address bytes, see ConnectionInfo.parseAddress()
+     * @param action called with each record number
+     */
+    public void forEachAddress(byte[] address, IntConsumer action)
+    {
+        forEachInBucket(ipStartsPos, ipRecordsPos,
+            bucketOf(address, buckets), action);
+    }
+
+    private void forEachInBucket(int startsPos, int recordsPos, int bucket,
+                                 IntConsumer action)
+    {
+        int from = buffer.getInt(startsPos + bucket * 4);
+        int to = buffer.getInt(startsPos + (bucket + 1) * 4);
+
+        for (int i = from; i < to; i++)
+            action.accept(buffer.getInt(recordsPos + i * 4));
+    }
+
+    /**
+     * @return the number of time blocks, block N has the records from
+     *         N * getBlockSize()
+     */
+    public int getBlocks()
+    {
+        return blocks(count, blockSize);
+    }
+
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    /**
+     * @param block block number
+     * @return the first time of the block (epoch ms)
+     */
+    public long getBlockMinTime(int block)
+    {
+        return buffer.getLong(blocksPos + block * 16);
+    }
+
+    /**
+     * @param block block number
+     * @return the last time of the block (epoch ms)
+     */
+    public long getBlockMaxTime(int block)
+    {
+        return buffer.getLong(blocksPos + block * 16 + 8);
+    }
+
+    /**
+     * @return the number of records indexed
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    public long getMinTime()
+    {
+        return minTime;
+    }
+
+    public long getMaxTime()
+    {
+        return maxTime;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
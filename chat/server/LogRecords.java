@@ -0,0 +1,46 @@
+package com.kwanii.chat.server;
+
+import com.kwanii.chat.server.ChatLog.ConnectionInfo;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Records of a connection log file read by their number, from a mapped
+ * LogSegment or a CompressedSegment.
+ */
+public interface LogRecords extends AutoCloseable
+{
+    /**
+     * Opens a closed log file read only
+     *
+     * @param file a ".log" or a compressed ".logz" file
+     * @return its records
+     * @throws IOException if the file can't be read
+     */
+    static LogRecords open(File file) throws IOException
+    {
+        return CompressedSegment.isCompressed(file)
+            ? new CompressedSegment(file)
+            : new LogSegment(file, true);
+    }
+
+    /**
+     * Reads record N
+     *
+     * @param index record number from 0
+     * @return the record
+     * @throws IndexOutOfBoundsException if there is no such record
+     */
+    ConnectionInfo read(long index) throws IOException;
+
+    /**
+     * @return the number of records
+     */
+    long size();
+
+    File getFile();
+
+    @Override
+    void close() throws IOException;
+}
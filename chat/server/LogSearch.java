@@ -0,0 +1,396 @@
+package com.kwanii.chat.server;
+
+import com.kwanii.chat.server.ChatLog.ConnectionInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Finds connection records by time range, user id and IP address in the
+ * log segments of a directory and in the segment being written.
+ *
+ * A closed segment with an index is read only at the records its index
+ * gives: the id or IP bucket when one is asked, the time blocks that
+ * overlap the range otherwise. A segment whose time range misses the
+ * query isn't read at all. A segment without an index yet is scanned.
+ * A compressed segment is read the same way, a block at a time, and its
+ * copy that isn't compressed is read instead until it is removed.
+ *
+ * Closed segments don't change, they stay open between searches until
+ * their file is gone. Any thread can search.
+ */
+public class LogSearch
+{
+    // directory of the closed segments
+    final private File directory;
+
+    // writes the segment not closed yet
+    final private LogWriter logWriter;
+
+    // closed segments opened by a search, by file
+    final private ConcurrentHashMap<File, Segment> segments =
+        new ConcurrentHashMap<>();
+
+    /**
+     * @param directory directory of the closed segments
+     * @param logWriter writer of the open segment
+     */
+    public LogSearch(File directory, LogWriter logWriter)
+    {
+        this.directory = directory;
+        this.logWriter = logWriter;
+    }
+
+    /**
+     * Finds the records that match all the criteria given
+     *
+     * @param from first time (epoch ms)
+     * @param to last time (epoch ms)
+     * @param userId user id, null for any user
+     * @param ip IPv4 or IPv6 text, null for any address
+     * @param limit most records returned, the earliest ones
+     * @return the records found in time order
+     */
+    public Result find(long from, long to, String userId, String ip, int limit)
+    {
+        long start = System.nanoTime();
+
+        LogSegment live = logWriter.getSegment();
+        Query query = new Query(from, to, limit,
+            (userId == null) ? null : ConnectionInfo.cut(userId),
+            (ip == null) ? null : ConnectionInfo.parseAddress(ip));
+
+        File[] files = directory.listFiles((dir, name) ->
+            (name.endsWith(".log") && !name.equals(live.getFile().getName()))
+                || (name.endsWith(CompressedSegment.SUFFIX)
+                    && !new File(dir, name.substring(0,
+                        name.length() - CompressedSegment.SUFFIX.length())
+                        + ".log").exists()));
+
+        if (files == null)
+            files = new File[0];
+
+        // segment names start with their rotation time
+        Arrays.sort(files, Comparator.comparing(file ->
+            LogIndex.indexFile(file).getName()));
+        closeRemoved(files);
+
+        Result result = new Result();
+
+        for (File file: files)
+        {
+            // the earliest records are found, a later segment can't have them
+            if (result.records.size() >= limit)
+                break;
+
+            Segment segment = open(file);
+
+            if (segment != null)
+                segment.find(query, result);
+        }
+
+        if (result.records.size() < limit)
+            scan(live, query, result);
+
+        result.records.sort(Comparator.comparingLong(ConnectionInfo::getTime));
+
+        if (result.records.size() > limit)
+        {
+            result.records.subList(limit, result.records.size()).clear();
+            result.truncated = true;
+        }
+
+        result.elapsed = System.nanoTime() - start;
+
+        return result;
+    }
+
+    /**
+     * @return the segment and its index, null if the file can't be read
+     */
+    private Segment open(File file)
+    {
+        Segment segment = segments.get(file);
+
+        // a segment opened before its index was built is opened again
+        if (segment != null && segment.index == null
+            && LogIndex.indexFile(file).exists())
+        {
+            segments.remove(file, segment);
+            segment.close();
+            segment = null;
+        }
+
+        if (segment != null)
+            return segment;
+
+        try
+        {
+            segment = new Segment(file);
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+            return null;
+        }
+
+        Segment other = segments.putIfAbsent(file, segment);
+
+        if (other != null)
+        {
+            segment.close();
+            return other;
+        }
+
+        return segment;
+    }
+
+    // close the segments whose files were removed
+    private void closeRemoved(File[] files)
+    {
+        List<File> listed = Arrays.asList(files);
+
+        for (Map.Entry<File, Segment> entry: segments.entrySet())
+        {
+            if (!listed.contains(entry.getKey())
+                && segments.remove(entry.getKey(), entry.getValue()))
+                entry.getValue().close();
+        }
+    }
+
+    // reads every record of a segment
+    private static void scan(LogRecords segment, Query query, Result result)
+    {
+        result.segments++;
+
+        long size = segment.size();
+
+        try
+        {
+            for (long i = 0; i < size; i++)
+                query.match(segment.read(i), result);
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes the segments opened
+     */
+    public void close()
+    {
+        for (File file: segments.keySet())
+        {
+            Segment segment = segments.remove(file);
+
+            if (segment != null)
+                segment.close();
+        }
+    }
+
+    /**
+     * Criteria of a search, in the form they are logged
+     */
+    private static class Query
+    {
+        final long from;
+
+        final long to;
+
+        final int limit;
+
+        // null for any
+        final String id;
+
+        final byte[] address;
+
+        // records matched and the latest time of them
+        int matched;
+
+        long latest = Long.MIN_VALUE;
+
+        Query(long from, long to, int limit, String id, byte[] address)
+        {
+            this.from = from;
+            this.to = to;
+            this.limit = limit;
+            this.id = id;
+            this.address = address;
+        }
+
+        void match(ConnectionInfo info, Result result)
+        {
+            result.read++;
+
+            if (info.getTime() >= from && info.getTime() <= to
+                && (id == null || id.equals(info.getId()))
+                && (address == null || Arrays.equals(address, info.getAddress())))
+            {
+                result.records.add(info);
+                matched++;
+                latest = Math.max(latest, info.getTime());
+            }
+        }
+
+        /**
+         * @return true if no record of the times can be returned: the
+         *         limit is reached with records all earlier
+         */
+        boolean isPast(long minTime)
+        {
+            return minTime > to || (matched >= limit && minTime > latest);
+        }
+    }
+
+    /**
+     * A closed segment and its index, null if it isn't built yet
+     */
+    private static class Segment
+    {
+        final LogRecords segment;
+
+        final LogIndex index;
+
+        Segment(File file) throws IOException
+        {
+            segment = LogRecords.open(file);
+
+            File indexFile = LogIndex.indexFile(file);
+            LogIndex opened = null;
+
+            try
+            {
+                if (indexFile.exists())
+                    opened = new LogIndex(indexFile);
+            }
+            catch (IOException ex)
+            {
+                // scanned until the index is built again
+                ex.printStackTrace();
+            }
+
+            index = opened;
+        }
+
+        void find(Query query, Result result)
+        {
+            if (index == null)
+            {
+                scan(segment, query, result);
+                return;
+            }
+
+            if (index.getCount() == 0 || index.getMaxTime() < query.from
+                || query.isPast(index.getMinTime()))
+                return;
+
+            result.segments++;
+
+            IntConsumer read = i ->
+            {
+                try
+                {
+                    query.match(segment.read(i), result);
+                }
+                catch (IOException ex)
+                {
+                    ex.printStackTrace();
+                }
+            };
+
+            if (query.id != null)
+                index.forEachId(query.id, read);
+            else if (query.address != null)
+                index.forEachAddress(query.address, read);
+            else
+            {
+                int size = index.getBlockSize();
+
+                // the blocks that overlap the range
+                for (int block = 0; block < index.getBlocks(); block++)
+                {
+                    if (index.getBlockMaxTime(block) < query.from
+                        || query.isPast(index.getBlockMinTime(block)))
+                        continue;
+
+                    int last = Math.min(index.getCount(), (block + 1) * size);
+
+                    for (int i = block * size; i < last; i++)
+                        read.accept(i);
+                }
+            }
+        }
+
+        void close()
+        {
+            try
+            {
+                segment.close();
+
+                if (index != null)
+                    index.close();
+            }
+            catch (IOException ex)
+            {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Records found and what the search read
+     */
+    public static class Result
+    {
+        final private List<ConnectionInfo> records = new ArrayList<>();
+
+        // segments read, skipped ones aren't counted
+        private int segments;
+
+        // records read and compared
+        private long read;
+
+        // true if more records matched than the limit
+        private boolean truncated;
+
+        // time of the search (ns)
+        private long elapsed;
+
+        /**
+         * @return the records found in time order
+         */
+        public List<ConnectionInfo> getRecords()
+        {
+            return records;
+        }
+
+        public int getSegments()
+        {
+            return segments;
+        }
+
+        public long getRead()
+        {
+            return read;
+        }
+
+        public boolean isTruncated()
+        {
+            return truncated;
+        }
+
+        public long getElapsed()
+        {
+            return elapsed;
+        }
+    }
+}
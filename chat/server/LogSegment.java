@@ -0,0 +1,390 @@
+package com.kwanii.chat.server;
+
+import com.kwanii.chat.server.ChatLog.ConnectionInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection log file of fixed width records, memory mapped.
+ *
+ * The file is mapped a chunk at a time, a new chunk is mapped when the
+ * records reach the end of the last. Record N starts at
+ * HEADER_SIZE + N * RECORD_SIZE, so it is read without reading the
+ * records before it.
+ *
+ * Header: magic, version, record width, header size, record count,
+ * creation time. The count is updated when the records are forced, the
+ * records after it are counted again when a file is opened after a crash.
+ *
+ * One thread appends, any thread reads the records counted. A segment
+ * opened read only maps the file as it is and can't be appended.
+ *
+ * A chunk mapped for writing grows the file to its end, close() unmaps the
+ * chunks and cuts the file to its records, so it can be moved or removed
+ * and a read after close() fails rather than touching an unmapped chunk.
+ */
+public class LogSegment implements LogRecords
+{
+    final public static int MAGIC = 0x434C4F47;
+
+    final public static short VERSION = 1;
+
+    final public static int HEADER_SIZE = ConnectionInfo.SIZE;
+
+    // bytes mapped at once, a multiple of the record width
+    final private static int CHUNK_SIZE = 1 << 20;
+
+    // header fields
+    final private static int VERSION_POS = 4;
+
+    final private static int WIDTH_POS = 6;
+
+    final private static int HEADER_SIZE_POS = 8;
+
+    final private static int COUNT_POS = 16;
+
+    final private static int CREATED_POS = 24;
+
+    final private File file;
+
+    final private FileChannel channel;
+
+    final private boolean readOnly;
+
+    // mapped chunks of the file, chunk i maps [i * CHUNK_SIZE, +CHUNK_SIZE)
+    final private List<MappedByteBuffer> chunks = new ArrayList<>();
+
+    // readers and the writer map chunks one at a time, readers read under
+    // it so close() doesn't unmap a chunk being read
+    final private ReentrantLock mapLock = new ReentrantLock();
+
+    // true once the chunks are unmapped, guarded by mapLock
+    private boolean closed;
+
+    // records written, read by other threads
+    private volatile long count;
+
+    // the first chunk written since the last force
+    private int dirtyChunk = Integer.MAX_VALUE;
+
+    /**
+     * Opens a segment or creates it with a header
+     *
+     * @param file segment file
+     * @throws IOException if the file can't be opened or isn't a segment
+     */
+    public LogSegment(File file) throws IOException
+    {
+        this(file, false);
+    }
+
+    /**
+     * Opens a segment
+     *
+     * @param file segment file
+     * @param readOnly true maps the file read only, it must be a segment
+     * @throws IOException if the file can't be opened or isn't a segment
+     */
+    public LogSegment(File file, boolean readOnly) throws IOException
+    {
+        this.file = file;
+        this.readOnly = readOnly;
+
+        channel = readOnly
+            ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+            : new RandomAccessFile(file, "rw").getChannel();
+
+        long length = channel.size();
+
+        if (readOnly && length < HEADER_SIZE)
+        {
+            channel.close();
+            throw new IOException("Not a log segment: " + file);
+        }
+
+        // the header chunk of another file must not grow it
+        if (!readOnly && length >= HEADER_SIZE && !isSegment(channel))
+        {
+            channel.close();
+            throw new IOException("Not a log segment of this version: " + file);
+        }
+
+        ByteBuffer header = chunk(0);
+
+        if (length < HEADER_SIZE)
+        {
+            header.putInt(0, MAGIC);
+            header.putShort(VERSION_POS, VERSION);
+            header.putShort(WIDTH_POS, (short) ConnectionInfo.SIZE);
+            header.putInt(HEADER_SIZE_POS, HEADER_SIZE);
+            header.putLong(CREATED_POS, System.currentTimeMillis());
+            dirtyChunk = 0;
+            force();
+            return;
+        }
+
+        if (header.getInt(0) != MAGIC
+            || header.getShort(VERSION_POS) != VERSION
+            || header.getShort(WIDTH_POS) != ConnectionInfo.SIZE)
+        {
+            close();
+            throw new IOException("Not a log segment of this version: " + file);
+        }
+
+        // records written after the count was last forced
+        long counted = header.getLong(COUNT_POS);
+
+        while (offset(counted) + ConnectionInfo.SIZE <= length
+            && ConnectionInfo.isWritten(chunk(chunkOf(counted)), position(counted)))
+            counted++;
+
+        count = counted;
+    }
+
+    // read the header fields checked without mapping the file
+    private static boolean isSegment(FileChannel channel) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(8);
+
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0)
+            ;
+
+        return header.getInt(0) == MAGIC
+            && header.getShort(VERSION_POS) == VERSION
+            && header.getShort(WIDTH_POS) == ConnectionInfo.SIZE;
+    }
+
+    private static long offset(long index)
+    {
+        return HEADER_SIZE + index * ConnectionInfo.SIZE;
+    }
+
+    private static int chunkOf(long index)
+    {
+        return (int) (offset(index) / CHUNK_SIZE);
+    }
+
+    private static int position(long index)
+    {
+        return (int) (offset(index) % CHUNK_SIZE);
+    }
+
+    // the chunk, mapped the first time it is used
+    private MappedByteBuffer chunk(int i) throws IOException
+    {
+        mapLock.lock();
+
+        try
+        {
+            if (closed)
+                throw new IOException("Log segment is closed: " + file);
+
+            while (chunks.size() <= i)
+            {
+                long start = (long) chunks.size() * CHUNK_SIZE;
+
+                // a read only mapping can't grow the file
+                chunks.add(readOnly
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.max(0, Math.min(CHUNK_SIZE, channel.size() - start)))
+                    : channel.map(FileChannel.MapMode.READ_WRITE, start,
+                        CHUNK_SIZE));
+            }
+
+            return chunks.get(i);
+        }
+        finally
+        {
+            mapLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a record after the last, called by the writer thread
+     *
+     * @param info record to write
+     */
+    public void append(ConnectionInfo info) throws IOException
+    {
+        if (readOnly)
+            throw new IOException("Log segment is read only: " + file);
+
+        int i = chunkOf(count);
+
+        info.write(chunk(i), position(count));
+        dirtyChunk = Math.min(dirtyChunk, i);
+
+        count++;
+    }
+
+    /**
+     * Forces the records written and their count to the disk
+     */
+    public void force() throws IOException
+    {
+        if (dirtyChunk == Integer.MAX_VALUE)
+            return;
+
+        int last = chunkOf(Math.max(0, count - 1));
+
+        for (int i = dirtyChunk; i <= last; i++)
+            chunk(i).force();
+
+        // the count is forced after the records it counts
+        MappedByteBuffer header = chunk(0);
+        header.putLong(COUNT_POS, count);
+        header.force();
+
+        dirtyChunk = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Reads record N, one offset computation and no read before it
+     *
+     * @param index record number from 0
+     * @return the record
+     * @throws IndexOutOfBoundsException if the record isn't written
+     */
+    @Override
+    public ConnectionInfo read(long index) throws IOException
+    {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Record " + index);
+
+        mapLock.lock();
+
+        try
+        {
+            return ConnectionInfo.read(chunk(chunkOf(index)), position(index));
+        }
+        finally
+        {
+            mapLock.unlock();
+        }
+    }
+
+    @Override
+    public long size()
+    {
+        return count;
+    }
+
+    /**
+     * @return bytes of the header and the records
+     */
+    public long length()
+    {
+        return offset(count);
+    }
+
+    /**
+     * @return time the segment was created (epoch ms)
+     */
+    public long getCreated() throws IOException
+    {
+        mapLock.lock();
+
+        try
+        {
+            return chunk(0).getLong(CREATED_POS);
+        }
+        finally
+        {
+            mapLock.unlock();
+        }
+    }
+
+    @Override
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Forces the records, unmaps the chunks and closes the file cut to the
+     * header and the records
+     */
+    @Override
+    public void close() throws IOException
+    {
+        mapLock.lock();
+
+        try
+        {
+            if (closed)
+                return;
+
+            force();
+            closed = true;
+
+            boolean unmapped = true;
+
+            for (MappedByteBuffer chunk: chunks)
+                unmapped &= unmap(chunk);
+
+            chunks.clear();
+
+            // a file still mapped can't be cut on every system
+            if (!readOnly && unmapped)
+                channel.truncate(length());
+        }
+        finally
+        {
+            mapLock.unlock();
+            channel.close();
+        }
+    }
+
+    /**
+     * Unmaps a chunk now rather than when it is collected
+     *
+     * @return false if this JVM can't unmap it
+     */
+    private static boolean unmap(MappedByteBuffer chunk)
+    {
+        try
+        {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field unsafe = unsafeClass.getDeclaredField("theUnsafe");
+            unsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class)
+                .invoke(unsafe.get(null), chunk);
+
+            return true;
+        }
+        catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            // Java 8, the cleaner of the direct buffer
+        }
+
+        try
+        {
+            Method cleanerMethod =
+                chunk.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(chunk);
+
+            if (cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+
+            return true;
+        }
+        catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package com.kwanii.chat.server;
+
+import com.kwanii.chat.server.ChatLog.ConnectionInfo;
+import javafx.application.Platform;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Scene;
+import javafx.scene.control.*;
+import javafx.scene.control.cell.PropertyValueFactory;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Text;
+import javafx.stage.FileChooser;
+import javafx.stage.Modality;
+import javafx.stage.Stage;
+
+import java.io.File;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Window editing the schedules of the connection log and searching its
+ * records
+ */
+public class LogSettingsWindow
+{
+    final private static Double DEFAULT_WIDTH = 640.0;
+
+    final private static Double DEFAULT_HEIGHT = 480.0;
+
+    // time typed in the search fields
+    final private static String TIME_FORMAT = "yyyy-MM-dd HH:mm";
+
+    // most records shown by a search
+    final private static int SEARCH_LIMIT = 1000;
+
+    // log whose schedules are edited
+    final private ChatLog chatLog;
+
+    public LogSettingsWindow(ChatLog chatLog)
+    {
+        this.chatLog = chatLog;
+    }
+
+    /**
+     * Create new Stage for Setting
+     *
+     * @return stage for log setting
+     */
+
+    public Stage getSettingStage()
+    {
+        // stage to return
+        Stage settingStage = new Stage();
+        settingStage.setTitle("Log Settings");
+
+
+        /**
+         * Setting items to input date and time
+         */
+
+        ComboBox<String> cbRoutine = new ComboBox<>();
+        cbRoutine.getItems().setAll("Monthly", "Weekly", "Daily", "Hourly",
+            Schedule.CRON);
+        cbRoutine.getSelectionModel().select(0);
+
+        Label lbRoutine = new Label("Schedule Task", cbRoutine);
+        lbRoutine.setContentDisplay(ContentDisplay.BOTTOM);
+
+        ComboBox<String> cbWeek = new ComboBox<>();
+        cbWeek.getItems()
+            .setAll("Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat");
+        cbWeek.getSelectionModel().select(0);
+        cbWeek.setDisable(true);
+
+        Spinner<Integer> spinDay = new Spinner<>(1, 31, 1);
+        spinDay.setPrefWidth(80);
+
+        Spinner<Integer> spinHour = new Spinner<>(0, 24, 0);
+        spinHour.setPrefWidth(80);
+
+        Spinner<Integer> spinMin = new Spinner<>(0, 60, 0, 5);
+        spinMin.setPrefWidth(80);
+
+        // "second minute hour day month day-of-week" for the Cron routine
+        TextField tfCron = new TextField("0 0 0 * * *");
+        tfCron.setPrefWidth(140);
+        tfCron.setDisable(true);
+
+        Label lbWeek = new Label("Day of week", cbWeek);
+        Label lbDay = new Label("day(s)", spinDay);
+        Label lbHour = new Label("hour(s)", spinHour);
+        Label lbMin = new Label("min(s)", spinMin);
+        Label lbCron = new Label("Cron expression", tfCron);
+
+        lbWeek.setContentDisplay(ContentDisplay.BOTTOM);
+        lbDay.setContentDisplay(ContentDisplay.BOTTOM);
+        lbHour.setContentDisplay(ContentDisplay.BOTTOM);
+        lbMin.setContentDisplay(ContentDisplay.BOTTOM);
+        lbCron.setContentDisplay(ContentDisplay.BOTTOM);
+
+        HBox timeBox =
+            new HBox(5, lbRoutine, lbWeek, lbDay, lbHour, lbMin, lbCron);
+        timeBox.setAlignment(Pos.CENTER);
+
+        /**
+         *  Buttons to add and remove a schedule and Comment Text Field
+         */
+
+        Button btAdd = new Button("Add");
+        btAdd.setPrefWidth(100);
+        Button btRemove = new Button("Remove");
+        btRemove.setPrefWidth(100);
+        TextField tfComment = new TextField();
+        tfComment.setPrefWidth(350);
+        Label lbComment = new Label("Comment", tfComment);
+        lbComment.setContentDisplay(ContentDisplay.RIGHT);
+
+        HBox btBox = new HBox(10 , lbComment, btAdd, btRemove);
+        btBox.setAlignment(Pos.CENTER);
+
+
+        /**
+         * Table view interface to show registered schedules
+         */
+
+        TableView<Schedule> scheduleTableView = new TableView<>();
+
+        TableColumn<Schedule, String> scheduleCol = new TableColumn<>("Schedule");
+        scheduleCol.setCellValueFactory(new PropertyValueFactory<>("name"));
+        scheduleCol.setPrefWidth(DEFAULT_WIDTH * 0.4);
+
+        TableColumn<Schedule, String> commentCol = new TableColumn<>("Comment");
+        commentCol.setCellValueFactory(new PropertyValueFactory<>("comment"));
+        commentCol.setPrefWidth(DEFAULT_WIDTH * 0.6);
+
+        scheduleTableView.getColumns().setAll(scheduleCol, commentCol);
+        scheduleTableView.getItems().setAll(chatLog.getSchedules());
+
+
+        /**
+         * File chooser interface
+         */
+
+        Text txtFilePath = new Text(chatLog.getScheduleFile().getAbsolutePath());
+        Label lbFilePath = new Label("Schedule file", txtFilePath);
+        lbFilePath.setContentDisplay(ContentDisplay.BOTTOM);
+
+        Button btLoad = new Button("Load a file");
+        btLoad.setPrefWidth(100);
+        Button btSaveAs = new Button("Save as");
+        btSaveAs.setPrefWidth(100);
+
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Choose a file to save log files");
+        chooser.setInitialDirectory(chatLog.getScheduleDirectory());
+        chooser.getExtensionFilters().add(
+            new FileChooser.ExtensionFilter("Schedule data files", "*.dat"));
+
+        HBox fileBox = new HBox(10, lbFilePath, btLoad, btSaveAs);
+        fileBox.setAlignment(Pos.CENTER);
+
+
+        /**
+         * Buttons for apply and cancel
+         */
+
+        Button btApply = new Button("Apply");
+        btApply.setPrefWidth(100);
+        Button btCancel = new Button("Cancel");
+        btCancel.setPrefWidth(100);
+
+        HBox applyBox = new HBox(10, btApply, btCancel);
+        applyBox.setAlignment(Pos.CENTER_RIGHT);
+
+
+        // set input controls options following the routine value
+        cbRoutine.setOnAction(ev ->
+        {
+            cbWeek.setDisable(true);
+            spinDay.setDisable(true);
+            spinHour.setDisable(true);
+            spinMin.setDisable(false);
+            tfCron.setDisable(true);
+
+            switch(cbRoutine.getValue())
+            {
+                case Schedule.CRON:
+                    spinMin.setDisable(true);
+                    tfCron.setDisable(false);
+                    break;
+                case "Weekly":
+                    cbWeek.setDisable(false);
+                    spinHour.setDisable(false);
+                    break;
+                case "Monthly":
+                    spinDay.setDisable(false);
+                case "Daily":
+                    spinHour.setDisable(false);
+            }
+        });
+
+        // button load action: load a file and refresh the schedules
+        btLoad.setOnAction( ev->
+        {
+            File selectedFile = chooser.showOpenDialog(settingStage);
+
+            if (selectedFile!= null)
+            {
+                chatLog.loadSchedule(
+                    selectedFile, scheduleTableView.getItems(), true);
+
+                txtFilePath.setText(selectedFile.getAbsolutePath());
+            }
+        });
+
+        // save current data to a new file
+        btSaveAs.setOnAction(ev ->
+        {
+            File selectedFile = chooser.showSaveDialog(settingStage);
+
+            if (selectedFile!= null)
+                chatLog.saveSchedule(
+                    selectedFile, scheduleTableView.getItems());
+        });
+
+        // create new schedule object and add it to the tableView
+        btAdd.setOnAction(ev ->
+        {
+            // get selected routine
+            String routine = cbRoutine.getSelectionModel().getSelectedItem();
+
+            // get current time
+            LocalDateTime eventTime = LocalDateTime.now().withNano(0);
+
+            // when routine is weekly get a day of week
+            int dayOfWeek = cbWeek.isDisable() ? -1
+                : cbWeek.getSelectionModel().getSelectedIndex() + 1;
+
+            // get comment
+            String comment = tfComment.getText().trim();
+
+            if (routine.equals(Schedule.CRON))
+            {
+                try
+                {
+                    scheduleTableView.getItems().add(
+                        new Schedule(tfCron.getText(), comment));
+                }
+                catch (IllegalArgumentException ex)
+                {
+                    new Alert(Alert.AlertType.ERROR, ex.getMessage()).show();
+                }
+
+                return;
+            }
+
+            // set event time from the user inputs
+            // added to the start of the period, 24h and 60m roll over
+            switch (routine)
+            {
+                case "Monthly":
+                    // January has every day of month the spinner offers
+                    eventTime = eventTime.toLocalDate().withDayOfYear(1)
+                        .atStartOfDay().plusDays(spinDay.getValue() - 1)
+                        .plusHours(spinHour.getValue())
+                        .plusMinutes(spinMin.getValue());
+                    break;
+                case "Weekly":
+                case "Daily":
+                    eventTime = eventTime.toLocalDate().atStartOfDay()
+                        .plusHours(spinHour.getValue())
+                        .plusMinutes(spinMin.getValue());
+                    break;
+                case "Hourly":
+                    eventTime = eventTime.truncatedTo(ChronoUnit.HOURS)
+                        .plusMinutes(spinMin.getValue());
+                    break;
+            }
+
+            // create a new schedule and add it to the table view
+            Schedule schedule = new Schedule(routine, eventTime, comment, dayOfWeek);
+            scheduleTableView.getItems().add(schedule);
+        });
+
+        // Button remove: remove schedule item from the table view
+        btRemove.setOnAction(ev ->
+        {
+            scheduleTableView.getItems().remove(
+                scheduleTableView.getSelectionModel().getSelectedItem());
+        });
+
+        // Button apply setting
+        btApply.setOnAction(ev ->
+        {
+            // restart the log schedules and save them in the file selected
+            chatLog.applySchedules(scheduleTableView.getItems(),
+                new File(txtFilePath.getText()));
+
+            // close this stage
+            settingStage.close();
+        });
+
+        // cancel button action
+        btCancel.setOnAction(ev -> settingStage.close());
+
+        // put all nodes into the root pane
+        VBox rootPane =
+            new VBox(10, timeBox, btBox, scheduleTableView, fileBox, applyBox);
+        rootPane.setAlignment(Pos.CENTER);
+        rootPane.setPadding(new Insets(5));
+
+        Tab scheduleTab = new Tab("Schedules", rootPane);
+        Tab searchTab = new Tab("Search", getSearchPane());
+
+        TabPane tabPane = new TabPane(scheduleTab, searchTab);
+        tabPane.setTabClosingPolicy(TabPane.TabClosingPolicy.UNAVAILABLE);
+
+
+        Scene scene = new Scene(tabPane, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+        settingStage.setScene(scene);
+        settingStage.initModality(Modality.APPLICATION_MODAL);
+        settingStage.setResizable(false);
+        return settingStage;
+    }
+
+    /**
+     * Create the pane searching the connection records by time range,
+     * user id and IP address
+     *
+     * @return search pane
+     */
+    private VBox getSearchPane()
+    {
+        SimpleDateFormat format = new SimpleDateFormat(TIME_FORMAT);
+        long now = System.currentTimeMillis();
+
+        // the last day by default
+        TextField tfFrom = new TextField(format.format(now - 24 * 3600 * 1000L));
+        tfFrom.setPrefWidth(130);
+        TextField tfTo = new TextField(format.format(now + 60 * 1000L));
+        tfTo.setPrefWidth(130);
+        TextField tfUserId = new TextField();
+        tfUserId.setPrefWidth(130);
+        TextField tfIp = new TextField();
+        tfIp.setPrefWidth(110);
+
+        Label lbFrom = new Label("From", tfFrom);
+        Label lbTo = new Label("To", tfTo);
+        Label lbUserId = new Label("User ID", tfUserId);
+        Label lbIp = new Label("IP", tfIp);
+
+        lbFrom.setContentDisplay(ContentDisplay.BOTTOM);
+        lbTo.setContentDisplay(ContentDisplay.BOTTOM);
+        lbUserId.setContentDisplay(ContentDisplay.BOTTOM);
+        lbIp.setContentDisplay(ContentDisplay.BOTTOM);
+
+        Button btSearch = new Button("Search");
+        btSearch.setPrefWidth(80);
+
+        HBox queryBox = new HBox(5, lbFrom, lbTo, lbUserId, lbIp, btSearch);
+        queryBox.setAlignment(Pos.BOTTOM_CENTER);
+
+        ListView<ConnectionInfo> resultView = new ListView<>();
+        VBox.setVgrow(resultView, Priority.ALWAYS);
+
+        Text txtStatus = new Text();
+
+        // search on another thread, the window keeps responding
+        btSearch.setOnAction(ev ->
+        {
+            long from;
+            long to;
+
+            try
+            {
+                from = format.parse(tfFrom.getText().trim()).getTime();
+                to = format.parse(tfTo.getText().trim()).getTime();
+            }
+            catch (ParseException ex)
+            {
+                txtStatus.setText("Time must be " + TIME_FORMAT);
+                return;
+            }
+
+            String userId = tfUserId.getText().trim();
+            String ip = tfIp.getText().trim();
+
+            btSearch.setDisable(true);
+            txtStatus.setText("Searching...");
+
+            Thread thread = new Thread(() ->
+            {
+                LogSearch.Result result = chatLog.search(from, to,
+                    userId.isEmpty() ? null : userId,
+                    ip.isEmpty() ? null : ip, SEARCH_LIMIT);
+
+                Platform.runLater(() ->
+                {
+                    resultView.getItems().setAll(result.getRecords());
+                    txtStatus.setText(String.format(
+                        "%d record(s)%s, %d file(s), %d read, %.1f ms",
+                        result.getRecords().size(),
+                        result.isTruncated() ? " (first " + SEARCH_LIMIT + ")" : "",
+                        result.getSegments(), result.getRead(),
+                        result.getElapsed() / 1e6));
+                    btSearch.setDisable(false);
+                });
+            }, "log-search");
+
+            thread.setDaemon(true);
+            thread.start();
+        });
+
+        VBox searchPane = new VBox(10, queryBox, resultView, txtStatus);
+        searchPane.setPadding(new Insets(5));
+
+        return searchPane;
+    }
+}
@@ -0,0 +1,282 @@
+package com.kwanii.chat.server;
+
+import com.kwanii.chat.server.ChatLog.ConnectionInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Appends connection records to the log file on one background thread.
+ *
+ * Callers only add a record to a lock-free queue. The writer thread owns
+ * the open LogSegment, copies the records queued into its mapped file,
+ * then forces them to the disk when the sync interval passed or a batch
+ * of records is waiting (group commit): one sync covers every record
+ * written since the last one.
+ *
+ * Rotation runs on the writer thread too, after the records queued
+ * before it are written to the old file. It is asked by rotate() or done
+ * when the file reaches the size or the age set, whichever comes first.
+ * The file closed is handed to a listener, it must not block the writer.
+ */
+public class LogWriter
+{
+    // records waiting for the writer
+    final private ConcurrentLinkedQueue<ConnectionInfo> queue =
+        new ConcurrentLinkedQueue<>();
+
+    // records queued since the writer last woke, wakes it at syncBatch
+    final private AtomicInteger pending = new AtomicInteger();
+
+    // most time (ns) a record waits to be forced to the disk
+    final private long syncInterval;
+
+    // records that wake the writer before the interval
+    final private int syncBatch;
+
+    final private Thread writer;
+
+    // set by rotate(), read by the writer
+    private volatile boolean rotateAsked;
+
+    // bytes and age (ms) of the file that rotate it, 0 is no limit
+    final private long maxSize;
+
+    final private long maxAge;
+
+    // names of the files closed, called by the writer
+    final private Supplier<File> names;
+
+    private volatile boolean running = true;
+
+    // the log file written
+    final private File file;
+
+    // called with each file closed by a rotation
+    final private Consumer<File> rotated;
+
+    // segment of the file, replaced by the writer thread on rotation
+    private volatile LogSegment segment;
+
+    // records and syncs done, for the status
+    final private AtomicLong written = new AtomicLong();
+
+    final private AtomicLong syncs = new AtomicLong();
+
+    /**
+     * Opens the file for appending and starts the writer thread
+     *
+     * @param file log file
+     * @param syncInterval most time (ms) a record waits to be forced
+     * @param syncBatch records that are forced without waiting the interval
+     * @param maxSize bytes of the file that rotate it, 0 for no limit
+     * @param maxAge age (ms) of the file that rotates it, 0 for no limit
+     * @param names gives the name of each file closed, a name not taken
+     * @param rotated called on the writer thread with each file closed by
+     *                a rotation
+     * @throws IOException if the file can't be opened
+     */
+    public LogWriter(File file, long syncInterval, int syncBatch, long maxSize,
+                     long maxAge, Supplier<File> names, Consumer<File> rotated)
+        throws IOException
+    {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+        this.names = names;
+        this.rotated = rotated;
+        this.syncInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(1, syncInterval));
+        this.syncBatch = Math.max(1, syncBatch);
+
+        segment = new LogSegment(file);
+
+        writer = new Thread(this::run, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a record, called by any thread
+     *
+     * @param record record to write
+     */
+    public void append(ConnectionInfo record)
+    {
+        queue.offer(record);
+
+        // wake the writer once per batch, not for each record
+        if (pending.incrementAndGet() == syncBatch)
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * Renames the file to the next name and starts a new file with the
+     * name of the old one, after the records queued are written
+     */
+    public void rotate()
+    {
+        rotateAsked = true;
+        LockSupport.unpark(writer);
+    }
+
+    // the file reached the size or the age that rotate it
+    private boolean isFull() throws IOException
+    {
+        return segment.size() > 0
+            && ((maxSize > 0 && segment.length() >= maxSize)
+                || (maxAge > 0
+                    && System.currentTimeMillis() - segment.getCreated() >= maxAge));
+    }
+
+    private void run()
+    {
+        long lastSync = System.nanoTime();
+        int unsynced = 0;
+
+        // a file that failed to rotate isn't tried again before (ms)
+        long rotateAfter = 0;
+
+        while (running || !queue.isEmpty())
+        {
+            try
+            {
+                pending.set(0);
+                unsynced += drain();
+
+                long now = System.nanoTime();
+
+                if (unsynced > 0 && (unsynced >= syncBatch
+                    || now - lastSync >= syncInterval || !running))
+                {
+                    segment.force();
+                    syncs.incrementAndGet();
+                    unsynced = 0;
+                    lastSync = now;
+                }
+
+                if (rotateAsked
+                    || (System.currentTimeMillis() >= rotateAfter && isFull()))
+                {
+                    rotateAsked = false;
+
+                    // the records queued before go to the old file
+                    while (drain() > 0)
+                        continue;
+
+                    unsynced = 0;
+                    segment.close();
+
+                    // never replaces a file, a name taken fails the move
+                    File target = names.get();
+                    boolean renamed = false;
+
+                    try
+                    {
+                        Files.move(file.toPath(), target.toPath());
+                        renamed = true;
+                    }
+                    catch (IOException ex)
+                    {
+                        System.err.println("Log not rotated to " + target);
+                        ex.printStackTrace();
+                        rotateAfter = System.currentTimeMillis()
+                            + TimeUnit.MINUTES.toMillis(1);
+                    }
+
+                    segment = new LogSegment(file);
+
+                    if (renamed)
+                        rotated.accept(target);
+                }
+            }
+            catch (IOException ex)
+            {
+                ex.printStackTrace();
+            }
+
+            if (running && queue.isEmpty() && !rotateAsked)
+                LockSupport.parkNanos(this, syncInterval);
+        }
+
+        try
+        {
+            segment.close();
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes up to a batch of the records queued into the segment, so
+     * records keep being forced while callers add more
+     *
+     * @return the number of records written
+     */
+    private int drain() throws IOException
+    {
+        int count = 0;
+
+        for (ConnectionInfo record;
+             count < syncBatch && (record = queue.poll()) != null; count++)
+            segment.append(record);
+
+        written.addAndGet(count);
+
+        return count;
+    }
+
+    /**
+     * Writes and forces the records queued, then closes the file
+     */
+    public void close()
+    {
+        running = false;
+        LockSupport.unpark(writer);
+
+        try
+        {
+            writer.join(TimeUnit.NANOSECONDS.toMillis(syncInterval) + 1000);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return records queued and not written yet, counted by walking
+     *         the queue
+     */
+    public int getQueued()
+    {
+        return queue.size();
+    }
+
+    public long getWritten()
+    {
+        return written.get();
+    }
+
+    public long getSyncs()
+    {
+        return syncs.get();
+    }
+
+    /**
+     * @return the segment written, its records can be read by any thread
+     */
+    public LogSegment getSegment()
+    {
+        return segment;
+    }
+}
@@ -0,0 +1,347 @@
+package com.kwanii.chat.server;
+
+import com.kwanii.chat.Packet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+/**
+ * Non-blocking transport. An acceptor hands channels to a fixed set of
+ * event loops, each one a thread with its own selector that reads, decodes
+ * and dispatches packets for its connections.
+ */
+public class NioServer implements Runnable
+{
+    // bytes read from a socket at a time
+    final private static int READ_BUFFER_SIZE = 64 * 1024;
+
+    final private SocketAddress address;
+
+    final private int backlog;
+
+    // false makes every client use java serialization
+    final private boolean allowBinary;
+
+    // limits of the outbound queue of each connection
+    final private OutboundQueue.Settings outboundSettings;
+
+    final private EventLoop[] loops;
+
+    // creates a packet handler for a new connection
+    final private Function<ChannelConnection, Handler> handlerFactory;
+
+    private ServerSocketChannel serverChannel;
+
+    private Selector acceptSelector;
+
+    // the next loop to take a connection, round robin
+    private int nextLoop;
+
+    /**
+     * Handles packets of a connection, called on the connection's loop
+     */
+    public interface Handler
+    {
+        void handlePacket(Packet packet) throws IOException;
+
+        // called once after the connection is closed
+        void connectionClosed();
+    }
+
+    public NioServer(SocketAddress address, int backlog, int numLoops,
+                     boolean allowBinary,
+                     OutboundQueue.Settings outboundSettings,
+                     Function<ChannelConnection, Handler> handlerFactory)
+    {
+        this.address = address;
+        this.backlog = backlog;
+        this.allowBinary = allowBinary;
+        this.outboundSettings = outboundSettings;
+        this.handlerFactory = handlerFactory;
+
+        loops = new EventLoop[numLoops];
+
+        for (int i = 0; i < numLoops; i++)
+            loops[i] = new EventLoop(i);
+    }
+
+    /**
+     * Opens the server channel and starts event loop threads,
+     * it should be called before run()
+     *
+     * Loops get their own platform threads. A selector blocked in select()
+     * would pin the carrier of a virtual thread.
+     *
+     * @throws IOException if the address can't be bound
+     */
+    public void open() throws IOException
+    {
+        acceptSelector = Selector.open();
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, backlog);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        for (EventLoop loop: loops)
+        {
+            loop.open();
+
+            Thread thread = new Thread(loop, "nio-loop-" + loop.index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException
+    {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    // accept connections and register them to event loops
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (serverChannel.isOpen())
+            {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+
+                SocketChannel channel;
+
+                while ((channel = serverChannel.accept()) != null)
+                {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+
+                    EventLoop loop = loops[nextLoop];
+                    nextLoop = (nextLoop + 1) % loops.length;
+
+                    loop.register(channel);
+                }
+            }
+        }
+        catch (ClosedChannelException ex)
+        {
+            // closed by close()
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+        finally
+        {
+            close();
+
+            try
+            {
+                acceptSelector.close();
+            }
+            catch (IOException ex)
+            {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting and closes every connection, it can be called by
+     * any thread
+     */
+    public void close()
+    {
+        try
+        {
+            if (serverChannel != null)
+                serverChannel.close();
+
+            if (acceptSelector != null)
+                acceptSelector.wakeup();
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        for (EventLoop loop: loops)
+            loop.close();
+    }
+
+    /**
+     * A selector thread. Other threads pass work in through execute()
+     */
+    public class EventLoop implements Runnable
+    {
+        final private int index;
+
+        // tasks to run on this loop
+        final private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        // shared by the connections of this loop for socket reads
+        final private ByteBuffer readBuffer =
+            ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        private Selector selector;
+
+        private volatile Thread thread;
+
+        private volatile boolean running = true;
+
+        EventLoop(int index)
+        {
+            this.index = index;
+        }
+
+        void open() throws IOException
+        {
+            selector = Selector.open();
+        }
+
+        /**
+         * Runs the task on this loop's thread
+         *
+         * @param task task to run
+         */
+        public void execute(Runnable task)
+        {
+            tasks.add(task);
+
+            if (Thread.currentThread() != thread)
+                selector.wakeup();
+        }
+
+        public boolean inLoop()
+        {
+            return Thread.currentThread() == thread;
+        }
+
+        ByteBuffer getReadBuffer()
+        {
+            return readBuffer;
+        }
+
+        private void register(SocketChannel channel)
+        {
+            execute(() ->
+            {
+                try
+                {
+                    SelectionKey key =
+                        channel.register(selector, SelectionKey.OP_READ);
+
+                    ChannelConnection connection =
+                        new ChannelConnection(channel, key, this,
+                            allowBinary, outboundSettings);
+
+                    key.attach(connection);
+                    connection.setHandler(handlerFactory.apply(connection));
+                }
+                catch (IOException ex)
+                {
+                    ex.printStackTrace();
+
+                    try
+                    {
+                        channel.close();
+                    }
+                    catch (IOException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run()
+        {
+            thread = Thread.currentThread();
+
+            while (running)
+            {
+                try
+                {
+                    selector.select();
+
+                    Iterator<SelectionKey> keys =
+                        selector.selectedKeys().iterator();
+
+                    while (keys.hasNext())
+                    {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        ChannelConnection connection =
+                            (ChannelConnection) key.attachment();
+
+                        if (connection == null || !key.isValid())
+                            continue;
+
+                        if (key.isWritable())
+                            connection.flush();
+
+                        if (key.isValid() && key.isReadable())
+                            connection.read();
+                    }
+
+                    // tasks from other threads and from the handlers above
+                    Runnable task;
+
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+                }
+                catch (IOException ex)
+                {
+                    ex.printStackTrace();
+                }
+                catch (RuntimeException ex)
+                {
+                    // a handler failure must not stop the other connections
+                    ex.printStackTrace();
+                }
+            }
+
+            closeConnections();
+        }
+
+        void close()
+        {
+            running = false;
+
+            if (selector != null)
+                selector.wakeup();
+        }
+
+        // called by the loop thread after it stops
+        private void closeConnections()
+        {
+            for (SelectionKey key: selector.keys())
+            {
+                if (key.attachment() instanceof ChannelConnection)
+                    ((ChannelConnection) key.attachment()).close();
+            }
+
+            try
+            {
+                selector.close();
+            }
+            catch (IOException ex)
+            {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
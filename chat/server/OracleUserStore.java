@@ -0,0 +1,234 @@
+package com.kwanii.chat.server;
+
+import java.io.ByteArrayInputStream;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.Consumer;
+
+/**
+ * Users in a database table
+ * users (
+ *   id varchar2(20),
+ *   password BLOB,
+ *   salt BLOB
+ * );
+ *
+ * Each query borrows a connection from the pool and its statement
+ * prepared on that connection.
+ */
+public class OracleUserStore implements UserStore
+{
+    // Database server ip
+    final private static String DB_SERVER_URL = "jdbc:oracle:thin:@//localhost:1521";
+
+    // Database name
+    final private static String DB_NAME = "XE";
+
+    // Administrator id
+    final private static String ADMIN_ID = "chat";
+
+    // Administrator password
+    final private static String ADMIN_PASS = "1234";
+
+    // Sql login format
+    final private static String LOGIN_FORMAT =
+        "SELECT password, salt FROM users WHERE id = ?";
+
+    // Sql sign up format, inserts unless the id exists in one round trip
+    final private static String SIGN_UP_FORMAT =
+        "MERGE INTO users u USING (SELECT ? id FROM dual) n ON (u.id = n.id) " +
+        "WHEN NOT MATCHED THEN INSERT (id, password, salt) VALUES (n.id, ?, ?)";
+
+    // Sql to replace the password hash of a user
+    final private static String UPDATE_FORMAT =
+        "UPDATE users SET password = ?, salt = ? WHERE id = ?";
+
+    // Sql to read every user id
+    final private static String IDS_FORMAT = "SELECT id FROM users";
+
+    // rows fetched at a time when every user id is read
+    final private static int IDS_FETCH_SIZE = 1000;
+
+    // connections to the database
+    final private ConnectionPool pool;
+
+    /**
+     * Query run on a connection of the pool
+     */
+    @FunctionalInterface
+    private interface Query<T>
+    {
+        T run(ConnectionPool.PooledConnection connection) throws SQLException;
+    }
+
+    /**
+     * Connects to the oracle server with the pool settings
+     *
+     * @param config server settings
+     */
+    public OracleUserStore(ServerConfig config)
+    {
+        this(new ConnectionPool(() -> DriverManager.getConnection(
+            DB_SERVER_URL + "/" + DB_NAME, ADMIN_ID, ADMIN_PASS),
+            config.getDbPoolSize(), config.getDbPoolTimeout()));
+    }
+
+    /**
+     * @param pool connections to the database, any driver with a users table
+     */
+    public OracleUserStore(ConnectionPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Opens the first connection so the first login doesn't wait for it
+     *
+     * @return true if connection succeeds
+     */
+    @Override
+    public boolean connect()
+    {
+        return query(connection ->
+        {
+            connection.prepare(LOGIN_FORMAT);
+            connection.prepare(SIGN_UP_FORMAT);
+
+            return true;
+        }, false);
+    }
+
+    @Override
+    public boolean exists(String id)
+    {
+        return query(connection ->
+        {
+            PreparedStatement loginStmt = connection.prepare(LOGIN_FORMAT);
+            loginStmt.setString(1, id);
+
+            try (ResultSet result = loginStmt.executeQuery())
+            {
+                return result.next();
+            }
+        }, false);
+    }
+
+    @Override
+    public Credentials fetchCredentials(String id)
+    {
+        return query(connection ->
+        {
+            PreparedStatement loginStmt = connection.prepare(LOGIN_FORMAT);
+            loginStmt.setString(1, id);
+
+            try (ResultSet result = loginStmt.executeQuery())
+            {
+                if (!result.next())
+                    return null;
+
+                return new Credentials(
+                    result.getBytes("password"), result.getBytes("salt"));
+            }
+        }, null);
+    }
+
+    @Override
+    public boolean create(String id, byte[] hash, byte[] salt)
+    {
+        return query(connection ->
+        {
+            // send the id, hash and salt to the database
+            PreparedStatement signUpStmt = connection.prepare(SIGN_UP_FORMAT);
+            signUpStmt.setString(1, id);
+            signUpStmt.setBinaryStream(2, new ByteArrayInputStream(hash));
+            signUpStmt.setBinaryStream(3, new ByteArrayInputStream(salt));
+
+            // no row is merged if the id exists
+            return signUpStmt.executeUpdate() == 1;
+        }, false);
+    }
+
+    @Override
+    public boolean update(String id, byte[] hash, byte[] salt)
+    {
+        return query(connection ->
+        {
+            PreparedStatement updateStmt = connection.prepare(UPDATE_FORMAT);
+            updateStmt.setBinaryStream(1, new ByteArrayInputStream(hash));
+            updateStmt.setBinaryStream(2, new ByteArrayInputStream(salt));
+            updateStmt.setString(3, id);
+
+            return updateStmt.executeUpdate() == 1;
+        }, false);
+    }
+
+    @Override
+    public boolean forEachId(Consumer<String> action)
+    {
+        return query(connection ->
+        {
+            PreparedStatement idsStmt = connection.prepare(IDS_FORMAT);
+            idsStmt.setFetchSize(IDS_FETCH_SIZE);
+
+            try (ResultSet result = idsStmt.executeQuery())
+            {
+                while (result.next())
+                    action.accept(result.getString(1));
+            }
+
+            return true;
+        }, false);
+    }
+
+    /**
+     * Runs a query on a connection of the pool. A connection that failed
+     * is closed rather than returned.
+     *
+     * @param query query to run
+     * @param failed value returned if the query fails
+     * @return the result of the query or failed
+     */
+    private <T> T query(Query<T> query, T failed)
+    {
+        try (ConnectionPool.PooledConnection connection = pool.acquire())
+        {
+            try
+            {
+                return query.run(connection);
+            }
+            catch (SQLException ex)
+            {
+                connection.invalidate();
+                throw ex;
+            }
+        }
+        catch (SQLException ex)
+        {
+            ex.printStackTrace();
+            return failed;
+        }
+    }
+
+    public ConnectionPool getPool()
+    {
+        return pool;
+    }
+
+    @Override
+    public String getStatus()
+    {
+        return String.format("DB pool: active %d, idle %d, waiting %d, " +
+            "wait avg %d us, max %d us, timeouts %d%n",
+            pool.getActive(), pool.getIdle(), pool.getWaiting(),
+            pool.getAverageWait() / 1000, pool.getMaxWait() / 1000,
+            pool.getTimeouts());
+    }
+
+    @Override
+    public void close()
+    {
+        pool.close();
+    }
+}
@@ -0,0 +1,563 @@
+package com.kwanii.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded packets waiting to be written to one user.
+ * Any thread can offer, only the connection's writer polls, so senders
+ * never block on the socket of a slow user.
+ *
+ * When the queue is full the slow consumer policy decides what happens:
+ * the oldest packet is dropped, the connection is dropped, or packets
+ * spill to a file and are written after the ones in memory.
+ *
+ * The spill file is written and read outside the queue lock, so senders
+ * and the writer don't wait for the disk of another spill. A sender that
+ * spills queues the packet and writes the packets queued to the file,
+ * unless another thread holds the file, which then writes them.
+ */
+public class OutboundQueue
+{
+    // packets in memory, the oldest first
+    final private ArrayDeque<byte[]> frames;
+
+    // packets spilled but not written to the file yet, after those in it
+    final private ArrayDeque<byte[]> pending = new ArrayDeque<>();
+
+    final private Settings settings;
+
+    // a lock rather than synchronized so a virtual thread doesn't pin
+    final private ReentrantLock lock = new ReentrantLock();
+
+    // one thread at a time writes or reads the spill file, taken before
+    // lock and never while holding it
+    final private ReentrantLock spillLock = new ReentrantLock();
+
+    // packets spilled and not taken: pending, being written and in the file
+    private int spillCount;
+
+    // packets in the spill file not read yet
+    private int fileCount;
+
+    // bytes of the spill file and of the pending packets, up to the limit
+    private long spillBytes;
+
+    private boolean closed;
+
+    // created when the memory queue is full for the first time, guarded
+    // by spillLock
+    private File spillFile;
+
+    private RandomAccessFile spill;
+
+    // next packet to read and the end of the packets written to the file
+    private long spillReadPos;
+
+    private long spillWritePos;
+
+    public OutboundQueue(Settings settings)
+    {
+        this.settings = settings;
+        frames = new ArrayDeque<>(Math.min(settings.getCapacity(), 64));
+    }
+
+    /**
+     * Queues an encoded packet, it can be called by any thread
+     *
+     * @param frame encoded packet, it must not be modified afterwards
+     * @return false if the connection should be closed
+     */
+    public boolean offer(byte[] frame)
+    {
+        boolean rejected = false;
+
+        lock.lock();
+
+        try
+        {
+            if (closed)
+                return true;
+
+            // keep the order, nothing goes to memory while packets are spilled
+            if (spillCount == 0)
+            {
+                if (frames.size() < settings.getCapacity())
+                {
+                    frames.add(frame);
+                    return true;
+                }
+
+                switch (settings.getPolicy())
+                {
+                    case DROP_OLDEST:
+                        frames.poll();
+                        frames.add(frame);
+                        settings.dropped.incrementAndGet();
+                        return true;
+
+                    case SPILL:
+                        break;
+
+                    default:
+                        rejected = true;
+                }
+            }
+
+            if (spillBytes + Integer.BYTES + frame.length
+                > settings.getMaxSpillBytes())
+                rejected = true;
+
+            if (rejected)
+                reject();
+            else
+            {
+                pending.add(frame);
+                spillCount++;
+                spillBytes += Integer.BYTES + frame.length;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        // the file is closed out of the lock too
+        if (rejected)
+        {
+            closeSpill();
+            return false;
+        }
+
+        return writeSpill();
+    }
+
+    /**
+     * Takes the next packet to write, called by the writer only
+     *
+     * @return encoded packet or null if the queue is empty
+     */
+    public byte[] poll()
+    {
+        lock.lock();
+
+        try
+        {
+            byte[] frame = frames.poll();
+
+            if (frame != null || closed || spillCount == 0)
+                return frame;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        // waits for packets being written to the file
+        spillLock.lock();
+
+        try
+        {
+            return pollSpill();
+        }
+        finally
+        {
+            spillLock.unlock();
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        lock.lock();
+
+        try
+        {
+            return frames.isEmpty() && spillCount == 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of packets in memory
+     */
+    public int size()
+    {
+        lock.lock();
+
+        try
+        {
+            return frames.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards queued packets and deletes the spill file.
+     * Packets offered afterwards are ignored.
+     */
+    public void close()
+    {
+        lock.lock();
+
+        try
+        {
+            closed = true;
+            frames.clear();
+            clearSpill();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        closeSpill();
+    }
+
+    /**
+     * Writes the pending packets to the spill file. If another thread
+     * holds the file, it sees the packets once it is done and writes them.
+     *
+     * @return false if the file can't be written and the connection should
+     *         be closed
+     */
+    private boolean writeSpill()
+    {
+        while (spillLock.tryLock())
+        {
+            try
+            {
+                if (!writePending())
+                    return false;
+            }
+            finally
+            {
+                spillLock.unlock();
+            }
+
+            // a packet queued while this thread held the file, its sender
+            // couldn't take it
+            lock.lock();
+
+            try
+            {
+                if (closed || pending.isEmpty())
+                    return true;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        return true;
+    }
+
+    // append the pending packets with their lengths, called with spillLock
+    private boolean writePending()
+    {
+        while (true)
+        {
+            byte[][] batch;
+
+            lock.lock();
+
+            try
+            {
+                if (closed || pending.isEmpty())
+                    return true;
+
+                batch = pending.toArray(new byte[pending.size()][]);
+                pending.clear();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            try
+            {
+                if (spill == null)
+                {
+                    settings.getSpillDirectory().mkdirs();
+                    spillFile = File.createTempFile(
+                        "outbound-", ".spill", settings.getSpillDirectory());
+                    spillFile.deleteOnExit();
+                    spill = new RandomAccessFile(spillFile, "rw");
+                }
+
+                int length = 0;
+
+                for (byte[] frame: batch)
+                    length += Integer.BYTES + frame.length;
+
+                byte[] records = new byte[length];
+                int pos = 0;
+
+                for (byte[] frame: batch)
+                {
+                    records[pos] = (byte) (frame.length >>> 24);
+                    records[pos + 1] = (byte) (frame.length >>> 16);
+                    records[pos + 2] = (byte) (frame.length >>> 8);
+                    records[pos + 3] = (byte) frame.length;
+                    System.arraycopy(frame, 0, records, pos + Integer.BYTES,
+                        frame.length);
+                    pos += Integer.BYTES + frame.length;
+                }
+
+                spill.seek(spillWritePos);
+                spill.write(records);
+                spillWritePos += records.length;
+            }
+            catch (IOException ex)
+            {
+                ex.printStackTrace();
+
+                lock.lock();
+
+                try
+                {
+                    reject();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+
+                closeSpill();
+                return false;
+            }
+
+            lock.lock();
+
+            try
+            {
+                fileCount += batch.length;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            settings.spilled.addAndGet(batch.length);
+        }
+    }
+
+    // the connection is going to be closed, ignore packets until then,
+    // called with lock, the caller closes the file after
+    private void reject()
+    {
+        closed = true;
+        frames.clear();
+        clearSpill();
+
+        settings.disconnected.incrementAndGet();
+    }
+
+    // forget the packets spilled, called with lock
+    private void clearSpill()
+    {
+        pending.clear();
+        spillCount = fileCount = 0;
+        spillBytes = 0;
+    }
+
+    // take the oldest spilled packet from the file, or from the pending
+    // packets once the file is read, called with spillLock
+    private byte[] pollSpill()
+    {
+        lock.lock();
+
+        try
+        {
+            if (closed)
+                return null;
+
+            if (fileCount == 0)
+            {
+                byte[] frame = pending.poll();
+
+                if (frame != null)
+                {
+                    spillCount--;
+                    spillBytes -= Integer.BYTES + frame.length;
+                }
+
+                return frame;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        long freed = 0;
+        byte[] frame;
+
+        try
+        {
+            spill.seek(spillReadPos);
+
+            frame = new byte[spill.readInt()];
+            spill.readFully(frame);
+            spillReadPos += Integer.BYTES + frame.length;
+
+            // the file is drained, start over from the beginning
+            if (spillReadPos == spillWritePos)
+            {
+                freed = spillWritePos;
+                spillReadPos = spillWritePos = 0;
+                spill.setLength(0);
+            }
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+
+            // lose the packets in the file rather than the connection
+            lock.lock();
+
+            try
+            {
+                spillCount -= fileCount;
+                fileCount = 0;
+                spillBytes -= spillWritePos;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            spillReadPos = spillWritePos = 0;
+            return null;
+        }
+
+        lock.lock();
+
+        try
+        {
+            fileCount--;
+            spillCount--;
+            spillBytes -= freed;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        return frame;
+    }
+
+    private void closeSpill()
+    {
+        spillLock.lock();
+
+        try
+        {
+            spillReadPos = spillWritePos = 0;
+
+            if (spill == null)
+                return;
+
+            try
+            {
+                spill.close();
+            }
+            catch (IOException ex)
+            {
+                ex.printStackTrace();
+            }
+
+            spillFile.delete();
+            spill = null;
+        }
+        finally
+        {
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * Limits shared by the queues of all connections and their counters
+     */
+    public static class Settings
+    {
+        // packets kept in memory for a user
+        final private int capacity;
+
+        final private ServerConfig.SlowConsumerPolicy policy;
+
+        final private File spillDirectory;
+
+        // the largest spill file of a user
+        final private long maxSpillBytes;
+
+        // packets dropped by DROP_OLDEST
+        final private AtomicLong dropped = new AtomicLong();
+
+        // packets written to spill files
+        final private AtomicLong spilled = new AtomicLong();
+
+        // connections closed because their queue was full
+        final private AtomicLong disconnected = new AtomicLong();
+
+        public Settings(int capacity, ServerConfig.SlowConsumerPolicy policy,
+                        File spillDirectory, long maxSpillBytes)
+        {
+            this.capacity = Math.max(1, capacity);
+            this.policy = policy;
+            this.spillDirectory = spillDirectory;
+            this.maxSpillBytes = maxSpillBytes;
+        }
+
+        public Settings(ServerConfig config)
+        {
+            this(config.getOutboundCapacity(), config.getOutboundPolicy(),
+                config.getSpillDirectory(), config.getMaxSpillBytes());
+        }
+
+        public int getCapacity()
+        {
+            return capacity;
+        }
+
+        public ServerConfig.SlowConsumerPolicy getPolicy()
+        {
+            return policy;
+        }
+
+        public File getSpillDirectory()
+        {
+            return spillDirectory;
+        }
+
+        public long getMaxSpillBytes()
+        {
+            return maxSpillBytes;
+        }
+
+        public long getDropped()
+        {
+            return dropped.get();
+        }
+
+        public long getSpilled()
+        {
+            return spilled.get();
+        }
+
+        public long getDisconnected()
+        {
+            return disconnected.get();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.kwanii.chat.server;
+
+import com.kwanii.chat.HashHandler;
+
+import javax.crypto.spec.PBEKeySpec;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+
+/**
+ * Hashes passwords with one PBKDF2 function and iteration count. The
+ * factory of the function is cached per thread by KdfAlgorithm.
+ */
+public class Pbkdf2HashHandler implements HashHandler
+{
+    final private static SecureRandom RANDOM = new SecureRandom();
+
+    final private KdfAlgorithm algorithm;
+
+    final private int iterations;
+
+    /**
+     * @param algorithm PBKDF2 function
+     * @param iterations the iteration count, the cost of a hash
+     */
+    public Pbkdf2HashHandler(KdfAlgorithm algorithm, int iterations)
+    {
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Create a secure random number for the salt
+     *
+     * @param numByte the number of bytes to get
+     * @return The salt
+     */
+    @Override
+    public byte[] getSalt(int numByte)
+    {
+        byte[] salt = new byte[numByte];
+        RANDOM.nextBytes(salt);
+
+        return salt;
+    }
+
+    /**
+     * Create the hash from the password with the salt
+     *
+     * @param password a password to be hashed
+     * @param salt a salt to use hashing the password
+     * @return a hashed password or null if the function isn't supported
+     */
+    @Override
+    public byte[] hash(String password, byte[] salt)
+    {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
+            iterations, algorithm.getKeySize() * 8);
+
+        try
+        {
+            return algorithm.getFactory().generateSecret(spec).getEncoded();
+        }
+        catch (InvalidKeySpecException|IllegalStateException ex)
+        {
+            ex.printStackTrace();
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
+
+        return null;
+    }
+
+    /**
+     * Verify the password in constant time
+     *
+     * @param password To be verified
+     * @param hash To be compared with the password
+     * @param salt To generate the hash from the password
+     * @return true if the hashed password and hash match
+     */
+    @Override
+    public boolean verify(String password, byte[] hash, byte[] salt)
+    {
+        byte[] hash2 = hash(password, salt);
+
+        return hash2 != null && MessageDigest.isEqual(hash, hash2);
+    }
+
+    public KdfAlgorithm getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    public int getIterations()
+    {
+        return iterations;
+    }
+}
@@ -0,0 +1,120 @@
+package com.kwanii.chat.server;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Counts virtual threads that block while pinned to their carrier thread,
+ * for example on socket writes inside a synchronized block.
+ *
+ * It streams jdk.VirtualThreadPinned events from JFR. The JFR consumer API
+ * is looked up by reflection so the server still runs on Java 8, where
+ * the monitor does nothing.
+ */
+public class PinningMonitor implements AutoCloseable
+{
+    final private static String EVENT = "jdk.VirtualThreadPinned";
+
+    // the number of pinned events
+    final private AtomicLong pinnedCount = new AtomicLong();
+
+    // total time pinned in nanoseconds
+    final private AtomicLong pinnedNanos = new AtomicLong();
+
+    // jdk.jfr.consumer.RecordingStream
+    private AutoCloseable stream;
+
+    // RecordedEvent.getDuration()
+    private Method getDuration;
+
+    /**
+     * Starts listening to pinned events
+     *
+     * @param threshold events shorter than this are ignored
+     * @return true if the JVM supports the event stream
+     */
+    public boolean start(Duration threshold)
+    {
+        try
+        {
+            Class<?> streamClass =
+                Class.forName("jdk.jfr.consumer.RecordingStream");
+            Object recording = streamClass.getConstructor().newInstance();
+
+            Class<?> settingsClass = Class.forName("jdk.jfr.EventSettings");
+
+            Object settings = streamClass.getMethod("enable", String.class)
+                .invoke(recording, EVENT);
+            settingsClass.getMethod("withThreshold", Duration.class)
+                .invoke(settings, threshold);
+            settingsClass.getMethod("withStackTrace").invoke(settings);
+
+            getDuration = Class.forName("jdk.jfr.consumer.RecordedEvent")
+                .getMethod("getDuration");
+
+            Consumer<Object> onPinned = this::pinned;
+
+            streamClass.getMethod("onEvent", String.class, Consumer.class)
+                .invoke(recording, EVENT, onPinned);
+            streamClass.getMethod("startAsync").invoke(recording);
+
+            stream = (AutoCloseable) recording;
+            return true;
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            return false;
+        }
+    }
+
+    // jdk.jfr.consumer.RecordedEvent
+    private void pinned(Object event)
+    {
+        pinnedCount.incrementAndGet();
+
+        try
+        {
+            pinnedNanos.addAndGet(((Duration) getDuration.invoke(event)).toNanos());
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        // the event text has the thread and the stack where it blocked
+        System.err.println("[Pinned virtual thread] " + event);
+    }
+
+    public long getPinnedCount()
+    {
+        return pinnedCount.get();
+    }
+
+    public long getPinnedMillis()
+    {
+        return pinnedNanos.get() / 1000000L;
+    }
+
+    public boolean isRunning()
+    {
+        return stream != null;
+    }
+
+    @Override
+    public void close()
+    {
+        if (stream == null)
+            return;
+
+        try
+        {
+            stream.close();
+        }
+        catch (Exception ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.kwanii.chat.server;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A chat room. Members are an immutable set replaced by RoomRegistry,
+ * so fan-out iterates a snapshot without locks.
+ */
+public class Room
+{
+    // room id
+    final private String roomId;
+
+    // members in the chat room, replaced under the registry's stripe lock
+    private volatile Set<String> members;
+
+    Room(String roomId, String roomMaker)
+    {
+        this.roomId = roomId;
+        members = Collections.singleton(roomMaker);
+    }
+
+    // called by RoomRegistry under the stripe lock
+    boolean addMember(String userId)
+    {
+        if (members.contains(userId))
+            return false;
+
+        HashSet<String> newMembers = new HashSet<>(members);
+        newMembers.add(userId);
+        members = Collections.unmodifiableSet(newMembers);
+
+        return true;
+    }
+
+    // called by RoomRegistry under the stripe lock
+    boolean removeMember(String userId)
+    {
+        if (!members.contains(userId))
+            return false;
+
+        HashSet<String> newMembers = new HashSet<>(members);
+        newMembers.remove(userId);
+        members = Collections.unmodifiableSet(newMembers);
+
+        return true;
+    }
+
+    public String getRoomId()
+    {
+        return roomId;
+    }
+
+    public int getCountMembers()
+    {
+        return members.size();
+    }
+
+    /**
+     * @return members at this moment, the set never changes
+     */
+    public Set<String> getMembers()
+    {
+        return members;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[Room Id: %s, Room members: %s]",
+            roomId, members);
+    }
+}
@@ -0,0 +1,187 @@
+package com.kwanii.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Rooms by id, split into shards with a lock each.
+ *
+ * Create, join and leave of a room run under the lock of its shard, so
+ * they are atomic and operations on rooms of other shards don't wait.
+ * Lookups and member snapshots take no lock.
+ */
+public class RoomRegistry
+{
+    final private Shard[] shards;
+
+    // shards.length - 1, the number of shards is a power of two
+    final private int mask;
+
+    /**
+     * @param numShards the number of lock stripes, rounded up to a power of two
+     */
+    public RoomRegistry(int numShards)
+    {
+        int size = 1;
+
+        while (size < numShards)
+            size <<= 1;
+
+        shards = new Shard[size];
+        mask = size - 1;
+
+        for (int i = 0; i < size; i++)
+            shards[i] = new Shard();
+    }
+
+    /**
+     * Creates a room unless the id is used
+     *
+     * @param roomId room id
+     * @param roomMaker the first member
+     * @return the new room or null if the id exists
+     */
+    public Room create(String roomId, String roomMaker)
+    {
+        Shard shard = shardOf(roomId);
+        shard.lock.lock();
+
+        try
+        {
+            if (shard.rooms.containsKey(roomId))
+                return null;
+
+            Room room = new Room(roomId, roomMaker);
+            shard.rooms.put(roomId, room);
+
+            return room;
+        }
+        finally
+        {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a member to an existing room
+     *
+     * @param roomId room id
+     * @param userId user joining
+     * @return the room or null if it doesn't exist or the user is a member
+     */
+    public Room join(String roomId, String userId)
+    {
+        Shard shard = shardOf(roomId);
+        shard.lock.lock();
+
+        try
+        {
+            Room room = shard.rooms.get(roomId);
+
+            return (room != null && room.addMember(userId)) ? room : null;
+        }
+        finally
+        {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a member, the room is removed with its last member
+     *
+     * @param roomId room id
+     * @param userId user leaving
+     * @return the room or null if the user was not a member
+     */
+    public Room leave(String roomId, String userId)
+    {
+        Shard shard = shardOf(roomId);
+        shard.lock.lock();
+
+        try
+        {
+            Room room = shard.rooms.get(roomId);
+
+            if (room == null || !room.removeMember(userId))
+                return null;
+
+            if (room.getMembers().isEmpty())
+                shard.rooms.remove(roomId);
+
+            return room;
+        }
+        finally
+        {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * @param roomId room id
+     * @return the room or null
+     */
+    public Room get(String roomId)
+    {
+        return shardOf(roomId).rooms.get(roomId);
+    }
+
+    /**
+     * @param roomId room id
+     * @return members at this moment or null if the room doesn't exist
+     */
+    public Set<String> snapshot(String roomId)
+    {
+        Room room = get(roomId);
+
+        return (room == null) ? null : room.getMembers();
+    }
+
+    public int size()
+    {
+        int size = 0;
+
+        for (Shard shard: shards)
+            size += shard.rooms.size();
+
+        return size;
+    }
+
+    /**
+     * @return rooms at this moment
+     */
+    public List<Room> getRooms()
+    {
+        List<Room> rooms = new ArrayList<>();
+
+        for (Shard shard: shards)
+            rooms.addAll(shard.rooms.values());
+
+        return rooms;
+    }
+
+    public int getNumShards()
+    {
+        return shards.length;
+    }
+
+    private Shard shardOf(String roomId)
+    {
+        int hash = roomId.hashCode();
+
+        // spread high bits like HashMap does
+        return shards[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    private static class Shard
+    {
+        // changes of rooms in this shard
+        final private ReentrantLock lock = new ReentrantLock();
+
+        // written under the lock, read without it
+        final private ConcurrentHashMap<String, Room> rooms =
+            new ConcurrentHashMap<>();
+    }
+}
@@ -0,0 +1,172 @@
+package com.kwanii.chat.server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single threaded executors for room work. A room always runs on the shard
+ * chosen by the hash of its id, so the work of a room runs in the order it
+ * was queued and never at the same time, and rooms spread over the shards.
+ *
+ * Each shard counts its tasks and the time from queueing to completion.
+ */
+public class RoomShards
+{
+    final private Shard[] shards;
+
+    /**
+     * Starts a daemon thread for each shard
+     *
+     * @param numShards the number of shards
+     */
+    public RoomShards(int numShards)
+    {
+        shards = new Shard[Math.max(1, numShards)];
+
+        for (int i = 0; i < shards.length; i++)
+        {
+            shards[i] = new Shard();
+
+            Thread thread = new Thread(shards[i], "room-shard-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues work of a room on its shard, it can be called by any thread
+     *
+     * @param roomId room the task works on
+     * @param task task to run
+     */
+    public void execute(String roomId, Runnable task)
+    {
+        shards[shardOf(roomId)].queue.add(new Task(task));
+    }
+
+    public int shardOf(String roomId)
+    {
+        int hash = roomId.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+    }
+
+    public int getNumShards()
+    {
+        return shards.length;
+    }
+
+    /**
+     * @param shard shard index
+     * @return tasks waiting in the shard
+     */
+    public int getQueueDepth(int shard)
+    {
+        return shards[shard].queue.size();
+    }
+
+    /**
+     * @param shard shard index
+     * @return tasks completed by the shard
+     */
+    public long getCompleted(int shard)
+    {
+        return shards[shard].completed.get();
+    }
+
+    /**
+     * @param shard shard index
+     * @return average time from queueing to completion (ns)
+     */
+    public long getAverageLatency(int shard)
+    {
+        long completed = shards[shard].completed.get();
+
+        return (completed == 0) ? 0 :
+            shards[shard].totalLatency.get() / completed;
+    }
+
+    /**
+     * @param shard shard index
+     * @return the longest time from queueing to completion (ns)
+     */
+    public long getMaxLatency(int shard)
+    {
+        return shards[shard].maxLatency.get();
+    }
+
+    /**
+     * Stops the shards after the tasks already running
+     */
+    public void shutdown()
+    {
+        for (Shard shard: shards)
+            shard.queue.add(Task.STOP);
+    }
+
+    // a task with the time it was queued
+    private static class Task
+    {
+        // makes a shard stop
+        final private static Task STOP = new Task(null);
+
+        final private Runnable runnable;
+
+        final private long queuedAt = System.nanoTime();
+
+        Task(Runnable runnable)
+        {
+            this.runnable = runnable;
+        }
+    }
+
+    private static class Shard implements Runnable
+    {
+        final private LinkedBlockingQueue<Task> queue =
+            new LinkedBlockingQueue<>();
+
+        final private AtomicLong completed = new AtomicLong();
+
+        final private AtomicLong totalLatency = new AtomicLong();
+
+        final private AtomicLong maxLatency = new AtomicLong();
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                Task task;
+
+                while ((task = queue.take()) != Task.STOP)
+                {
+                    try
+                    {
+                        task.runnable.run();
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        // a failed task must not stop the other rooms
+                        ex.printStackTrace();
+                    }
+
+                    long latency = System.nanoTime() - task.queuedAt;
+
+                    completed.incrementAndGet();
+                    totalLatency.addAndGet(latency);
+
+                    long max;
+
+                    while (latency > (max = maxLatency.get())
+                        && !maxLatency.compareAndSet(max, latency))
+                    {
+                        // retry until this latency is stored or a longer one
+                    }
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                // stopped
+            }
+        }
+    }
+}
@@ -4,21 +4,38 @@ import com.kwanii.chat.Recordable;
 
 import java.io.DataOutput;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Calendar;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
 
 
 //TODO add DatePicker to choose the start date
 
 /**
  * Schedule server's task time
+ *
+ * Kept in a RecordFile: record() writes name, routine, comment and cron
+ * expression as UTF-8 strings, then the event time and day of week, and
+ * read() decodes them. readLegacy() decodes the fixed width layout of the
+ * first schedule files, SIZE bytes of padded UTF-16 fields.
  */
 public class Schedule implements Recordable
 {
+    // magic of the schedule file, "CHSD"
+    final public static int FILE_MAGIC = 0x43485344;
+
+    // version of the records record() writes
+    final public static short VERSION = 1;
+
+    // fields of the legacy layout (bytes)
     final public static int NAME_SIZE = 80;
 
     final public static int ROUTINE_SIZE = 30;
@@ -32,13 +49,22 @@ public class Schedule implements Recordable
     final public static int SIZE = NAME_SIZE + COMMENT_SIZE +
         EVENT_TIME_SIZE + ROUTINE_SIZE + DAY_OF_WEEK_SIZE;
 
+    // routine of a schedule made of a cron expression
+    final public static String CRON = "Cron";
+
+    // name of a cron schedule: the prefix and the expression
+    final private static String CRON_PREFIX = "[" + CRON + "] ";
+
+    // most missed fires caught up at once
+    final private static int MAX_CATCH_UP = 1000;
+
     // Schedule name;
     private String name;
 
     // description for schedules
     private String comment;
 
-    // routine monthly, weekly, daily, hourly
+    // routine monthly, weekly, daily, hourly or cron
     private String routine;
 
     /**
@@ -53,11 +79,20 @@ public class Schedule implements Recordable
      */
     private int dayOfWeek = -1;
 
-    // schedule object to take callback object
-    private ScheduledFuture futureTask;
+    // cron expression of the routine, null if the routine is unknown
+    private CronExpression expression;
+
+    // fires missed while the server was stopped or paused
+    private ServerConfig.CatchUp catchUp = ServerConfig.CatchUp.SKIP;
+
+    // time (epoch ms) of the last fire run, 0 if none
+    private volatile long lastFire;
+
+    // time (epoch ms) of the next fire, 0 if it never fires
+    private volatile long nextFire;
 
-    private ScheduledThreadPoolExecutor scheduledThreadPool =
-        new ScheduledThreadPoolExecutor(1);
+    // timeout of the next event in the server's timer wheel
+    private volatile TimerWheel.Timeout timeout;
 
     /** 
      * invoke this task when the event time
@@ -65,144 +100,123 @@ public class Schedule implements Recordable
     private Runnable task;
 
 
-    public Schedule(String routine, Calendar eventTime, String comment, int dayOfWeek)
+    /**
+     * Creates a schedule of a routine
+     *
+     * @param routine "Monthly", "Weekly", "Daily" or "Hourly"
+     * @param eventTime local time of an event, its fields below the
+     *        routine's period are used
+     * @param comment description
+     * @param dayOfWeek 1 (Sunday) ~ 7 (Saturday) for Weekly, else -1
+     */
+    public Schedule(String routine, LocalDateTime eventTime, String comment, int dayOfWeek)
     {
         this.dayOfWeek = dayOfWeek;
         this.routine = routine;
         this.name = getName(eventTime);
         this.eventTime = getEventTime(eventTime);
         this.comment = comment;
-
+        this.expression = compile(CronExpression.ofRoutine(
+            routine, this.eventTime, dayOfWeek));
     }
 
+    /**
+     * Creates a schedule saved before
+     *
+     * @throws IllegalArgumentException if the cron expression of the name
+     *         is invalid
+     */
     public Schedule(String name, String routine, long eventTime, String comment, int dayOfWeek)
+    {
+        this(name, routine, routine.equals(CRON)
+            ? name.substring(Math.min(name.length(), CRON_PREFIX.length()))
+            : CronExpression.ofRoutine(routine, eventTime, dayOfWeek),
+            eventTime, comment, dayOfWeek);
+    }
+
+    private Schedule(String name, String routine, String cron, long eventTime,
+                     String comment, int dayOfWeek)
     {
         this.dayOfWeek = dayOfWeek;
         this.name = name;
         this.routine = routine;
         this.eventTime = eventTime;
         this.comment = comment;
-    }
-
-    private String getName(Calendar time)
-    {
-        String[] week = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
-
-        switch (routine)
-        {
-            case "Monthly":
-                return String.format("[%s] %td day(s) %tT", routine, time, time);
-            case "Weekly":
-                return String.format("[%s] %s %tT", routine, week[dayOfWeek - 1], time);
-            case "Daily":
-                return String.format("[%s] %tT", routine, time);
-            case "Hourly":
-                return String.format("[%s] %tM:%tS", routine, time, time);
-            default:
-                return "";
-        }
+        this.expression = compile(cron);
     }
 
     /**
-     * Depends on the routine the first day, hour(00h) or minute(00m)
-     * get time gap between the first one and event time in the calendar object
+     * Creates a schedule firing at the times of a cron expression
      *
-     * @param eventTime calendar object that has event time
-     * @return milliseconds from default time to the event time
+     * @param expression "second minute hour day month day-of-week"
+     * @param comment description
+     * @throws IllegalArgumentException if the expression is invalid
      */
-    private long getEventTime(Calendar eventTime)
+    public Schedule(String expression, String comment)
     {
-        Calendar timeFrom = getDefaultCalendar(routine);
-
-        return eventTime.getTimeInMillis() - timeFrom.getTimeInMillis();
+        this.expression = new CronExpression(expression);
+        this.routine = CRON;
+        this.name = CRON_PREFIX + this.expression;
+        this.comment = comment;
     }
 
-    /**
-     * calculate delay between current time and event time
-     *
-     * @return delay milliseconds
-     */
-    private long getDelay()
+    private static CronExpression compile(String expression)
     {
-        // set the time that is the each routine's the first
-        // For monthly: 1st 00h:00m, For weekly: dayOfWeek 00h:00m
-        Calendar timeFrom = getDefaultCalendar(routine);
-
-        // get day gap between current and weekOfDay value
-        int dayGap = 0;
-        if (routine.equals("Weekly"))
-            dayGap = (7 + dayOfWeek - Calendar.getInstance()
-                .get(Calendar.DAY_OF_WEEK)) % 7;
-
-
-        // gap < 0: past, gap > 0: future
-        long gap = timeFrom.getTimeInMillis() + eventTime
-            - System.currentTimeMillis() + dayGap * 86400000L;
-
-        // use the gap when it is greater
-        if (gap / 1000L > 0)
-            return gap;
-        // add the gap to time depending on the routine
-        else
-            return gap + getRoutineDelay(routine);
+        return expression == null ? null : new CronExpression(expression);
     }
 
-    /**
-     *  get routine delay milliseconds
-     *  Monthly: Days of month
-     *  Weekly: 7 days
-     *  Daily: a day
-     *  Hourly: an hour
-     * @param routine routine
-     * @return long milliseconds
-     */
-    private long getRoutineDelay(String routine)
+    private String getName(LocalDateTime time)
     {
+        String[] week = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
+
         switch (routine)
         {
             case "Monthly":
-                return Calendar.getInstance()
-                    .getActualMaximum(Calendar.DAY_OF_MONTH) * 86400000L;
+                return String.format("[%s] %td day(s) %tT", routine, time, time);
             case "Weekly":
-                return 7 * 86400000L;
+                return String.format("[%s] %s %tT", routine, week[dayOfWeek - 1], time);
             case "Daily":
-                return 86400000L;
+                return String.format("[%s] %tT", routine, time);
             case "Hourly":
-                return 3600000L;
+                return String.format("[%s] %tM:%tS", routine, time, time);
             default:
-                return 0;
+                return "";
         }
     }
 
     /**
-     * get calendar object set the first time depending on the routine
+     * Gets the time from the start of the routine's period to the event
      *
-     * If today is 2016-04-13 12:32
+     * If the event is 2016-04-13 12:32
      *
-     * Monthly: 2016-04-01 00:00
-     * Weekly and Daily: 2016-04-13 00:00
+     * Monthly: from 2016-04-01 00:00
+     * Weekly and Daily: from 2016-04-13 00:00
+     * Hourly: from 2016-04-13 12:00
      *
-     * @param routine routine
-     * @return Calendar instance
+     * @param eventTime local time of the event
+     * @return milliseconds from the start of the period to the event
      */
-    private Calendar getDefaultCalendar(String routine)
+    private long getEventTime(LocalDateTime eventTime)
     {
-        Calendar timeFrom = Calendar.getInstance();
+        LocalDateTime timeFrom;
 
         switch (routine)
         {
             case "Monthly":
-                timeFrom.set(Calendar.DAY_OF_MONTH, 1);
+                timeFrom = eventTime.toLocalDate().withDayOfMonth(1).atStartOfDay();
+                break;
             case "Weekly":
             case "Daily":
-                timeFrom.set(Calendar.HOUR_OF_DAY, 0);
+                timeFrom = eventTime.truncatedTo(ChronoUnit.DAYS);
+                break;
             case "Hourly":
-                timeFrom.set(Calendar.MINUTE, 0);
-                timeFrom.set(Calendar.SECOND, 0);
-                timeFrom.set(Calendar.MILLISECOND, 0);
+                timeFrom = eventTime.truncatedTo(ChronoUnit.HOURS);
+                break;
+            default:
+                timeFrom = eventTime;
         }
 
-        return timeFrom;
+        return Duration.between(timeFrom, eventTime).toMillis();
     }
 
     public void setComment(String comment)
@@ -215,36 +229,116 @@ public class Schedule implements Recordable
         this.task = task;
     }
 
-    // start the schedule
-    public void start(boolean firstTime)
+    /**
+     * Starts the schedule in the timer wheel. The fires missed since the
+     * last fire are caught up first, then the task runs on a thread of the
+     * wheel at each fire and the same timeout waits for the next one.
+     *
+     * @param wheel the server's timer wheel
+     * @param catchUp what to do with the fires missed
+     */
+    public void start(TimerWheel wheel, ServerConfig.CatchUp catchUp)
     {
+        stop();
 
-        if (firstTime)
-            // calculate a new delay from now
-            start(getDelay());
-        else
-            // from the second time start with same delay
-            start(getRoutineDelay(routine));
+        if (expression == null)
+            return;
+
+        this.catchUp = catchUp;
+
+        long now = System.currentTimeMillis();
+        long missedFrom = lastFire;
+
+        // fires missed while the server was stopped
+        if (missedFrom > 0)
+            wheel.schedule(() -> catchUp(missedFrom, now), 0, TimeUnit.MILLISECONDS);
+
+        nextFire = next(now);
+
+        if (nextFire > 0)
+            timeout = wheel.schedule(this::fire, nextFire - now,
+                TimeUnit.MILLISECONDS);
     }
 
-    // set future task with the delay
-    private void start(long delay)
+    private void fire()
     {
-        //System.out.println("Start after: " + (delay / 1000L) + " secs");
+        long fire = nextFire;
+        long now = System.currentTimeMillis();
+
+        run(fire);
+
+        // fires passed while the server was paused
+        catchUp(fire, now);
 
-        futureTask = scheduledThreadPool.schedule(() ->
+        // fires passed while the task ran are skipped
+        nextFire = next(Math.max(now, System.currentTimeMillis()));
+
+        if (nextFire > 0)
+            timeout.reschedule(nextFire - System.currentTimeMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs the task for the fires after a time and up to another as the
+     * catch up policy says
+     *
+     * @param from time (epoch ms) of the last fire run
+     * @param to time (epoch ms) the fires are missed until
+     */
+    private void catchUp(long from, long to)
+    {
+        if (catchUp == ServerConfig.CatchUp.SKIP)
+            return;
+
+        long missed = 0;
+
+        for (long fire = next(from), count = 0;
+             fire > 0 && fire <= to && count < MAX_CATCH_UP;
+             fire = next(fire), count++)
+        {
+            if (catchUp == ServerConfig.CatchUp.ALL)
+                run(fire);
+            else
+                missed = fire;
+        }
+
+        // ONCE runs the last fire missed
+        if (missed > 0)
+            run(missed);
+    }
+
+    private void run(long fire)
+    {
+        lastFire = fire;
+
+        try
         {
             if (task != null)
-            {
-                new Thread(task).start();
-                start(false);
-            }
-        }, delay, TimeUnit.MILLISECONDS);
+                task.run();
+        }
+        catch (RuntimeException ex)
+        {
+            // the next fires must still come
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * @param after time (epoch ms)
+     * @return time (epoch ms) of the first fire after it, 0 if none
+     */
+    private long next(long after)
+    {
+        ZonedDateTime fire = expression.next(
+            Instant.ofEpochMilli(after).atZone(ZoneId.systemDefault()));
+
+        return fire == null ? 0 : fire.toInstant().toEpochMilli();
     }
 
     public void stop()
     {
-        futureTask.cancel(false);
+        if (timeout != null)
+            timeout.cancel();
     }
 
     public String getName() {
@@ -259,6 +353,38 @@ public class Schedule implements Recordable
         return routine;
     }
 
+    /**
+     * @return the cron expression of the schedule, null if it never fires
+     */
+    public String getCron()
+    {
+        return expression == null ? null : expression.toString();
+    }
+
+    /**
+     * @return time (epoch ms) of the last fire run, 0 if none
+     */
+    public long getLastFire()
+    {
+        return lastFire;
+    }
+
+    /**
+     * @param lastFire time (epoch ms) of the last fire run before a restart
+     */
+    public void setLastFire(long lastFire)
+    {
+        this.lastFire = lastFire;
+    }
+
+    /**
+     * @return time (epoch ms) of the next fire, 0 if not started
+     */
+    public long getNextFire()
+    {
+        return nextFire;
+    }
+
     @Override
     public String toString()
     {
@@ -268,49 +394,81 @@ public class Schedule implements Recordable
     @Override
     public long record(DataOutput output) throws IOException
     {
-        StringBuilder builder = new StringBuilder()
-            .append(name)
-            .append(getPadding((NAME_SIZE >>> 1) - name.length()))
-            .append(routine)
-            .append(getPadding((ROUTINE_SIZE >>> 1) - routine.length()))
-            .append(comment)
-            .append(getPadding((COMMENT_SIZE >>> 1)- comment.length()));
-
-        output.writeChars(builder.toString());
+        String cron = getCron();
+
+        long size = writeString(output, name)
+            + writeString(output, routine)
+            + writeString(output, comment)
+            + writeString(output, cron == null ? "" : cron);
+
         output.writeLong(eventTime);
         output.writeInt(dayOfWeek);
-        return SIZE;
 
+        return size + EVENT_TIME_SIZE + DAY_OF_WEEK_SIZE;
     }
 
-    public byte[] getBytes()
+    /**
+     * Decodes a schedule written by record()
+     *
+     * @param buffer buffer positioned at the record, left after it
+     * @param version version of the schedule file
+     * @return the schedule
+     * @throws IllegalArgumentException if its cron expression is invalid,
+     *         RecordFile.read reports it as a bad record
+     */
+    public static Schedule read(ByteBuffer buffer, int version)
     {
-        StringBuilder builder = new StringBuilder()
-            .append(name)
-            .append(getPadding((NAME_SIZE >>> 1) - name.length()))
-            .append(routine)
-            .append(getPadding((ROUTINE_SIZE >>> 1) - routine.length()))
-            .append(comment)
-            .append(getPadding((COMMENT_SIZE >>> 1)- comment.length()));
-
-        return concat(builder.toString().getBytes(),
-            longToByte(eventTime), intToByte(dayOfWeek));
-    }
+        String name = Recordable.readString(buffer);
+        String routine = Recordable.readString(buffer);
+        String comment = Recordable.readString(buffer);
+        String cron = Recordable.readString(buffer);
 
-    public byte[] concat(byte[]... bytesTokens)
-    {
-        return Stream.of(bytesTokens).reduce(this::concat).get();
+        long eventTime = buffer.getLong();
+        int dayOfWeek = buffer.getInt();
+
+        return new Schedule(name, routine, cron.isEmpty() ? null : cron,
+            eventTime, comment, dayOfWeek);
     }
 
-    public byte[] concat(byte[] b1, byte[] b2)
+    /**
+     * Decodes the schedules of a file in the legacy layout: name, routine
+     * and comment as UTF-16 chars padded with spaces, then the event time
+     * and day of week, SIZE bytes each
+     *
+     * @param buffer heap buffer holding the file
+     * @return the schedules
+     * @throws IllegalArgumentException if the file isn't a whole number of
+     *         records or a cron expression is invalid
+     */
+    public static List<Schedule> readLegacy(ByteBuffer buffer)
     {
-        byte[] result = Arrays.copyOf(b1, b1.length + b2.length);
+        if (buffer.remaining() % SIZE != 0)
+            throw new IllegalArgumentException(
+                "Not a legacy schedule file: " + buffer.remaining() + " bytes");
+
+        List<Schedule> schedules = new ArrayList<>(buffer.remaining() / SIZE);
+        byte[] bytes = buffer.array();
+        int offset = buffer.arrayOffset();
 
-        for (int i = b1.length, j = 0; i < b1.length + b2.length; i++, j++)
+        for (int pos = buffer.position(); pos < buffer.limit(); pos += SIZE)
         {
-            result[i] = b2[j];
+            int routinePos = pos + NAME_SIZE;
+            int commentPos = routinePos + ROUTINE_SIZE;
+            int timePos = commentPos + COMMENT_SIZE;
+
+            String name = new String(bytes, offset + pos, NAME_SIZE,
+                StandardCharsets.UTF_16BE).trim();
+            String routine = new String(bytes, offset + routinePos,
+                ROUTINE_SIZE, StandardCharsets.UTF_16BE).trim();
+            String comment = new String(bytes, offset + commentPos,
+                COMMENT_SIZE, StandardCharsets.UTF_16BE).trim();
+
+            schedules.add(new Schedule(name, routine, buffer.getLong(timePos),
+                comment, buffer.getInt(timePos + EVENT_TIME_SIZE)));
         }
-        return result;
-    }
 
-}
\ No newline at end of file
+        buffer.position(buffer.limit());
+
+        return schedules;
+    }
+}
@@ -0,0 +1,553 @@
+package com.kwanii.chat.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Server settings.
+ *
+ * Values are read from server.properties in the working directory, then
+ * overridden by system properties prefixed with "chat." (-Dchat.transport=nio)
+ * and finally by named application parameters (--transport=nio).
+ */
+public class ServerConfig
+{
+    final public static String CONFIG_FILE = "server.properties";
+
+    // prefix for system properties
+    final public static String PROPERTY_PREFIX = "chat.";
+
+    // transport used to accept and serve connections: blocking or nio
+    final public static String TRANSPORT = "transport";
+
+    // the number of selector threads for the nio transport
+    final public static String NIO_LOOPS = "nio.loops";
+
+    // false makes every client use java serialization
+    final public static String BINARY_CODEC = "binary.codec";
+
+    // threads that run connection handlers: platform or virtual
+    final public static String THREADS = "threads";
+
+    // jdk.tracePinnedThreads for virtual threads: short, full or off
+    final public static String PINNING_TRACE = "virtual.pinning";
+
+    // pinned virtual threads blocked longer than this are reported (ms)
+    final public static String PINNING_THRESHOLD = "virtual.pinning.threshold";
+
+    // packets queued in memory for a user before the policy applies
+    final public static String OUTBOUND_CAPACITY = "outbound.capacity";
+
+    // what to do when a user's queue is full: drop-oldest, disconnect, spill
+    final public static String OUTBOUND_POLICY = "outbound.policy";
+
+    // directory of the spill files
+    final public static String SPILL_DIR = "outbound.spill.dir";
+
+    // the largest spill file of a user, the user is dropped beyond it (bytes)
+    final public static String SPILL_MAX = "outbound.spill.max";
+
+    // the least time between ROOM_STATUS packets of a room (ms)
+    final public static String ROOM_STATUS_WINDOW = "room.status.window";
+
+    // lock stripes of the room registry
+    final public static String ROOM_STRIPES = "room.stripes";
+
+    // how room work runs: locked on the user's thread, or sharded
+    final public static String ROOM_EXECUTION = "room.execution";
+
+    // the number of room shard threads for sharded execution
+    final public static String ROOM_SHARDS = "room.shards";
+
+    // threads hashing passwords for login and sign up
+    final public static String AUTH_THREADS = "auth.threads";
+
+    // logins waiting for an auth thread before new ones are refused
+    final public static String AUTH_QUEUE = "auth.queue";
+
+    // the least retry time given to a refused login (ms)
+    final public static String AUTH_RETRY_AFTER = "auth.retry.after";
+
+    // time a resumption token can be used after a disconnect (ms), 0 issues none
+    final public static String SESSION_TTL = "session.ttl";
+
+    // where users are kept: oracle or file
+    final public static String USER_STORE = "user.store";
+
+    // the file of the file user store
+    final public static String USER_STORE_FILE = "user.store.file";
+
+    // user ids expected in the user id filter, 0 turns it off
+    final public static String USER_FILTER_SIZE = "user.filter.size";
+
+    // false positive rate of the user id filter with that many ids
+    final public static String USER_FILTER_FPR = "user.filter.fpr";
+
+    // function new password hashes are made with
+    final public static String KDF_ALGORITHM = "kdf.algorithm";
+
+    // iterations of new password hashes, the least if calibrated
+    final public static String KDF_ITERATIONS = "kdf.iterations";
+
+    // verify time (ms) the iterations are calibrated for, 0 doesn't
+    final public static String KDF_CALIBRATE = "kdf.calibrate";
+
+    // logins and sign ups per minute of an IP address, 0 is no limit
+    final public static String LOGIN_IP_RATE = "login.ip.rate";
+
+    // logins and sign ups an IP address can make at once
+    final public static String LOGIN_IP_BURST = "login.ip.burst";
+
+    // logins per minute of a user id, 0 is no limit
+    final public static String LOGIN_USER_RATE = "login.user.rate";
+
+    // logins a user id can get at once
+    final public static String LOGIN_USER_BURST = "login.user.burst";
+
+    // logins and sign ups queued or hashing at once
+    final public static String LOGIN_CONCURRENT = "login.concurrent";
+
+    // most time (ms) a log record waits to be forced to the disk
+    final public static String LOG_SYNC_INTERVAL = "log.sync.interval";
+
+    // log records forced at once without waiting the interval
+    final public static String LOG_SYNC_BATCH = "log.sync.batch";
+
+    // bytes of a log file that rotate it, 0 is no limit
+    final public static String LOG_ROTATE_SIZE = "log.rotate.size";
+
+    // age (ms) of a log file that rotates it, 0 is no limit
+    final public static String LOG_ROTATE_AGE = "log.rotate.age";
+
+    // compress the log files closed by a rotation
+    final public static String LOG_COMPRESS = "log.compress";
+
+    // slots of the ring carrying server events to their consumers
+    final public static String EVENT_RING_SIZE = "event.ring.size";
+
+    // length (ms) of a tick of the timer wheel, timers expire on a tick
+    final public static String TIMER_TICK = "timer.tick";
+
+    // threads running the tasks of the timers
+    final public static String TIMER_THREADS = "timer.threads";
+
+    // timer tasks waiting for a thread
+    final public static String TIMER_QUEUE = "timer.queue";
+
+    // log schedule fires missed while the server was stopped: skip, once, all
+    final public static String SCHEDULE_CATCH_UP = "schedule.catchup";
+
+    // the most database connections open at once
+    final public static String DB_POOL_SIZE = "db.pool.size";
+
+    // the longest wait for a database connection (ms)
+    final public static String DB_POOL_TIMEOUT = "db.pool.timeout";
+
+    // settings from the file
+    final private Properties properties = new Properties();
+
+    // settings from the application parameters
+    final private Properties overrides = new Properties();
+
+    public ServerConfig()
+    {
+        this(new File(CONFIG_FILE));
+    }
+
+    public ServerConfig(File file)
+    {
+        if (!file.exists())
+            return;
+
+        try (InputStream input = new FileInputStream(file))
+        {
+            properties.load(input);
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Overrides settings, used for named application parameters
+     *
+     * @param values key and value pairs
+     */
+    public void override(Map<String, String> values)
+    {
+        overrides.putAll(values);
+    }
+
+    public String getString(String key, String defaultValue)
+    {
+        String value = overrides.getProperty(key);
+
+        if (value == null)
+            value = System.getProperty(PROPERTY_PREFIX + key);
+
+        if (value == null)
+            value = properties.getProperty(key);
+
+        return (value == null) ? defaultValue : value.trim();
+    }
+
+    public int getInt(String key, int defaultValue)
+    {
+        try
+        {
+            return Integer.parseInt(getString(key, String.valueOf(defaultValue)));
+        }
+        catch (NumberFormatException ex)
+        {
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String key, long defaultValue)
+    {
+        try
+        {
+            return Long.parseLong(getString(key, String.valueOf(defaultValue)));
+        }
+        catch (NumberFormatException ex)
+        {
+            return defaultValue;
+        }
+    }
+
+    public double getDouble(String key, double defaultValue)
+    {
+        try
+        {
+            return Double.parseDouble(getString(key, String.valueOf(defaultValue)));
+        }
+        catch (NumberFormatException ex)
+        {
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue)
+    {
+        return Boolean.parseBoolean(
+            getString(key, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Gets an enum constant by its case insensitive name
+     *
+     * @param key setting key
+     * @param defaultValue used when the value is missing or unknown
+     * @return enum constant
+     */
+    public <E extends Enum<E>> E getEnum(String key, E defaultValue)
+    {
+        String value = getString(key, defaultValue.name());
+
+        for (E constant: defaultValue.getDeclaringClass().getEnumConstants())
+        {
+            if (constant.name().equalsIgnoreCase(value.replace('-', '_')))
+                return constant;
+        }
+
+        return defaultValue;
+    }
+
+    public TransportMode getTransport()
+    {
+        return getEnum(TRANSPORT, TransportMode.BLOCKING);
+    }
+
+    public int getNioLoops()
+    {
+        return Math.max(1, getInt(NIO_LOOPS,
+            Runtime.getRuntime().availableProcessors()));
+    }
+
+    public boolean isBinaryCodec()
+    {
+        return getBoolean(BINARY_CODEC, true);
+    }
+
+    public ThreadMode getThreads()
+    {
+        return getEnum(THREADS, ThreadMode.PLATFORM);
+    }
+
+    public String getPinningTrace()
+    {
+        return getString(PINNING_TRACE, "short");
+    }
+
+    public long getPinningThreshold()
+    {
+        return getLong(PINNING_THRESHOLD, 20);
+    }
+
+    public int getOutboundCapacity()
+    {
+        return getInt(OUTBOUND_CAPACITY, 1024);
+    }
+
+    public SlowConsumerPolicy getOutboundPolicy()
+    {
+        return getEnum(OUTBOUND_POLICY, SlowConsumerPolicy.DROP_OLDEST);
+    }
+
+    public File getSpillDirectory()
+    {
+        return new File(getString(SPILL_DIR, new File(
+            System.getProperty("java.io.tmpdir"), "chat-spill").getPath()));
+    }
+
+    public long getMaxSpillBytes()
+    {
+        return getLong(SPILL_MAX, 64L * 1024 * 1024);
+    }
+
+    public long getRoomStatusWindow()
+    {
+        return getLong(ROOM_STATUS_WINDOW, 50);
+    }
+
+    public int getRoomStripes()
+    {
+        return Math.max(1, getInt(ROOM_STRIPES,
+            Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    public RoomExecution getRoomExecution()
+    {
+        return getEnum(ROOM_EXECUTION, RoomExecution.LOCKED);
+    }
+
+    public int getRoomShards()
+    {
+        return Math.max(1, getInt(ROOM_SHARDS,
+            Runtime.getRuntime().availableProcessors()));
+    }
+
+    public int getAuthThreads()
+    {
+        return Math.max(1, getInt(AUTH_THREADS,
+            Runtime.getRuntime().availableProcessors()));
+    }
+
+    public int getAuthQueue()
+    {
+        return Math.max(1, getInt(AUTH_QUEUE, 64));
+    }
+
+    public long getAuthRetryAfter()
+    {
+        return getLong(AUTH_RETRY_AFTER, 1000);
+    }
+
+    public long getSessionTtl()
+    {
+        return Math.max(0, getLong(SESSION_TTL, 300000));
+    }
+
+    public UserStoreType getUserStore()
+    {
+        return getEnum(USER_STORE, UserStoreType.ORACLE);
+    }
+
+    public File getUserStoreFile()
+    {
+        return new File(getString(USER_STORE_FILE, "users.dat"));
+    }
+
+    public int getUserFilterSize()
+    {
+        return Math.max(0, getInt(USER_FILTER_SIZE, 100000));
+    }
+
+    public double getUserFilterFpr()
+    {
+        return getDouble(USER_FILTER_FPR, 0.01);
+    }
+
+    public KdfAlgorithm getKdfAlgorithm()
+    {
+        return getEnum(KDF_ALGORITHM, KdfAlgorithm.PBKDF2_SHA256);
+    }
+
+    public int getKdfIterations()
+    {
+        return Math.max(1000, getInt(KDF_ITERATIONS, 90000));
+    }
+
+    public long getKdfCalibrate()
+    {
+        return Math.max(0, getLong(KDF_CALIBRATE, 0));
+    }
+
+    public int getLoginIpRate()
+    {
+        return getInt(LOGIN_IP_RATE, 30);
+    }
+
+    public int getLoginIpBurst()
+    {
+        return getInt(LOGIN_IP_BURST, 10);
+    }
+
+    public int getLoginUserRate()
+    {
+        return getInt(LOGIN_USER_RATE, 10);
+    }
+
+    public int getLoginUserBurst()
+    {
+        return getInt(LOGIN_USER_BURST, 5);
+    }
+
+    public int getLoginConcurrent()
+    {
+        return getInt(LOGIN_CONCURRENT, getAuthThreads() + getAuthQueue());
+    }
+
+    public long getLogSyncInterval()
+    {
+        return Math.max(1, getLong(LOG_SYNC_INTERVAL, 1000));
+    }
+
+    public int getLogSyncBatch()
+    {
+        return Math.max(1, getInt(LOG_SYNC_BATCH, 256));
+    }
+
+    public long getLogRotateSize()
+    {
+        return Math.max(0, getLong(LOG_ROTATE_SIZE, 64L * 1024 * 1024));
+    }
+
+    public long getLogRotateAge()
+    {
+        return Math.max(0, getLong(LOG_ROTATE_AGE, 24 * 3600 * 1000L));
+    }
+
+    public boolean isLogCompress()
+    {
+        return getBoolean(LOG_COMPRESS, true);
+    }
+
+    public int getEventRingSize()
+    {
+        return Math.max(1024, getInt(EVENT_RING_SIZE, 65536));
+    }
+
+    public long getTimerTick()
+    {
+        return Math.max(1, getLong(TIMER_TICK, 10));
+    }
+
+    public int getTimerThreads()
+    {
+        return Math.max(1, getInt(TIMER_THREADS, 2));
+    }
+
+    public int getTimerQueue()
+    {
+        return Math.max(1, getInt(TIMER_QUEUE, 4096));
+    }
+
+    public CatchUp getScheduleCatchUp()
+    {
+        return getEnum(SCHEDULE_CATCH_UP, CatchUp.ONCE);
+    }
+
+    public int getDbPoolSize()
+    {
+        return Math.max(1, getInt(DB_POOL_SIZE, 4));
+    }
+
+    public long getDbPoolTimeout()
+    {
+        return getLong(DB_POOL_TIMEOUT, 2000);
+    }
+
+    /**
+     * The way the server accepts connections and reads packets
+     */
+    public enum TransportMode
+    {
+        // a thread per connection reading ObjectInputStream
+        BLOCKING,
+
+        // a few selector threads reading non-blocking channels
+        NIO
+    }
+
+    /**
+     * Threads the server runs long running tasks on
+     */
+    public enum ThreadMode
+    {
+        // a cached pool of platform threads
+        PLATFORM,
+
+        // a virtual thread per task, needs Java 21
+        VIRTUAL
+    }
+
+    /**
+     * Threads room work runs on
+     */
+    public enum RoomExecution
+    {
+        // the thread of the user, rooms are changed under registry locks
+        LOCKED,
+
+        // one of the room shard threads chosen by the room id
+        SHARDED
+    }
+
+    /**
+     * Where user ids and password hashes are kept
+     */
+    public enum UserStoreType
+    {
+        // the users table of the oracle server
+        ORACLE,
+
+        // a memory mapped file on the server
+        FILE
+    }
+
+    /**
+     * What happens when a user reads slower than packets are sent to it
+     */
+    public enum SlowConsumerPolicy
+    {
+        // drop the oldest packet queued for the user
+        DROP_OLDEST,
+
+        // close the user's connection
+        DISCONNECT,
+
+        // write packets to a file until the user catches up
+        SPILL
+    }
+
+    /**
+     * What a schedule does with the fires missed since its last fire
+     */
+    public enum CatchUp
+    {
+        // waits for the next fire
+        SKIP,
+
+        // runs its task once for all of them
+        ONCE,
+
+        // runs its task for each of them, up to 1000
+        ALL
+    }
+}
@@ -0,0 +1,268 @@
+package com.kwanii.chat.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resumption tokens. A user gets one with ACCEPT_LOGIN and sends it in
+ * RESUME after reconnecting, so the server checks an HMAC instead of
+ * hashing the password again.
+ *
+ * A token has the user id, the time it was issued and a nonce, signed
+ * with a key made when the server starts. The server keeps the nonce of
+ * the latest token of each user: a token is used once, a new login
+ * replaces it and LOGOUT revokes it. A session lasts while its user is
+ * connected, the ttl starts when the connection drops: the rooms of the
+ * user are kept with it until then.
+ */
+public class SessionTokens
+{
+    final private static String ALGORITHM = "HmacSHA256";
+
+    // the user id is followed by the issue time and the nonce
+    final private static int TRAILER_SIZE = 2 * Long.BYTES;
+
+    final private SecretKeySpec key;
+
+    // time a token can be used after a disconnect (ms), 0 issues no tokens
+    final private long ttl;
+
+    final private SecureRandom random = new SecureRandom();
+
+    // the latest session of each user
+    final private ConcurrentHashMap<String, Session> sessions =
+        new ConcurrentHashMap<>();
+
+    // a Mac is not thread safe, each thread signs with its own
+    final private ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+
+    final private AtomicLong issued = new AtomicLong();
+
+    final private AtomicLong resumed = new AtomicLong();
+
+    final private AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param ttl time a token can be used after a disconnect (ms), 0
+     *            issues no tokens
+     */
+    public SessionTokens(long ttl)
+    {
+        this.ttl = ttl;
+
+        byte[] secret = new byte[32];
+        random.nextBytes(secret);
+        key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    private Mac newMac()
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return ttl > 0;
+    }
+
+    /**
+     * Starts a session of a user logged in, earlier tokens can't be used
+     *
+     * @param userId user logged in
+     * @return token or null if tokens are disabled
+     */
+    public String issue(String userId)
+    {
+        if (!isEnabled())
+            return null;
+
+        Session session = new Session(random.nextLong());
+        sessions.put(userId, session);
+
+        byte[] id = userId.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = ByteBuffer.allocate(id.length + TRAILER_SIZE)
+            .put(id).putLong(System.currentTimeMillis())
+            .putLong(session.nonce).array();
+
+        issued.incrementAndGet();
+
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+
+        return encoder.encodeToString(payload) + "."
+            + encoder.encodeToString(macs.get().doFinal(payload));
+    }
+
+    /**
+     * Checks a token and ends its session, the caller issues a new one
+     *
+     * @param userId user resuming
+     * @param token token from ACCEPT_LOGIN
+     * @return the session or null if the token is invalid, expired or used
+     */
+    public Session resume(String userId, String token)
+    {
+        Session session = verify(userId, token);
+
+        if (session == null)
+            rejected.incrementAndGet();
+        else
+            resumed.incrementAndGet();
+
+        return session;
+    }
+
+    private Session verify(String userId, String token)
+    {
+        if (userId == null || token == null)
+            return null;
+
+        int split = token.indexOf('.');
+
+        if (split < 0)
+            return null;
+
+        byte[] payload;
+        byte[] signature;
+
+        try
+        {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            payload = decoder.decode(token.substring(0, split));
+            signature = decoder.decode(token.substring(split + 1));
+        }
+        catch (IllegalArgumentException ex)
+        {
+            return null;
+        }
+
+        if (payload.length < TRAILER_SIZE
+            || !MessageDigest.isEqual(macs.get().doFinal(payload), signature))
+            return null;
+
+        int idLength = payload.length - TRAILER_SIZE;
+        ByteBuffer trailer = ByteBuffer.wrap(payload, idLength, TRAILER_SIZE);
+        trailer.getLong();
+        long nonce = trailer.getLong();
+
+        if (!userId.equals(
+            new String(payload, 0, idLength, StandardCharsets.UTF_8)))
+            return null;
+
+        Session session = sessions.get(userId);
+
+        // the latest token, not expired since the disconnect, used once
+        if (session == null || session.nonce != nonce
+            || session.expiry < System.currentTimeMillis()
+            || !sessions.remove(userId, session))
+            return null;
+
+        return session;
+    }
+
+    /**
+     * Keeps the rooms of a user disconnected, they are joined on resume.
+     * The token can be used for ttl from now.
+     *
+     * @param userId user disconnected
+     * @param roomIds rooms the user was in
+     */
+    public void suspend(String userId, Set<String> roomIds)
+    {
+        Session session = sessions.get(userId);
+
+        if (session != null)
+        {
+            session.roomIds = new HashSet<>(roomIds);
+            session.expiry = System.currentTimeMillis() + ttl;
+        }
+    }
+
+    /**
+     * Ends the session of a user logged out, its token can't be used
+     *
+     * @param userId user logged out
+     */
+    public void revoke(String userId)
+    {
+        sessions.remove(userId);
+    }
+
+    /**
+     * Drops the sessions of users disconnected longer than ttl, called
+     * periodically. Sessions of users connected are kept.
+     */
+    public void purge()
+    {
+        long now = System.currentTimeMillis();
+
+        sessions.values().removeIf(session -> session.expiry < now);
+    }
+
+    public long getTtl()
+    {
+        return ttl;
+    }
+
+    public int size()
+    {
+        return sessions.size();
+    }
+
+    public long getIssued()
+    {
+        return issued.get();
+    }
+
+    public long getResumed()
+    {
+        return resumed.get();
+    }
+
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * Latest token of a user and the rooms kept while it is disconnected
+     */
+    public static class Session
+    {
+        final private long nonce;
+
+        // end of the session (epoch ms), set when the user disconnects
+        private volatile long expiry = Long.MAX_VALUE;
+
+        private volatile Set<String> roomIds = Collections.emptySet();
+
+        private Session(long nonce)
+        {
+            this.nonce = nonce;
+        }
+
+        public Set<String> getRoomIds()
+        {
+            return roomIds;
+        }
+    }
+}
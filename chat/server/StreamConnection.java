@@ -0,0 +1,163 @@
+package com.kwanii.chat.server;
+
+import com.kwanii.chat.EncodedPacket;
+import com.kwanii.chat.Packet;
+import com.kwanii.chat.PacketStream;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection over blocking socket streams, read by one thread per user.
+ *
+ * Senders only queue encoded packets. A writer task started on the pool
+ * when packets are queued writes them in order and ends when the queue is
+ * empty, so a user whose socket is full stalls only its own writer.
+ */
+public class StreamConnection implements UserConnection
+{
+    final private Socket socket;
+
+    final private String remoteAddress;
+
+    // packets in the format negotiated with the user
+    final private PacketStream stream;
+
+    // encoded packets waiting for the writer
+    final private OutboundQueue outbound;
+
+    // runs the writer task
+    final private Executor writerPool;
+
+    // true while a writer task is queued or running
+    final private AtomicBoolean writerScheduled = new AtomicBoolean();
+
+    /**
+     * Negotiates the wire format and opens streams on the socket.
+     * It blocks until the client sends a hello or the stream header
+     * so it should run on the user's thread.
+     *
+     * @param socket socket accepted
+     * @param allowBinary false makes the user fall back to serialization
+     * @param outboundSettings limits of the outbound queue
+     * @param writerPool runs the writer task
+     * @throws IOException if the streams can't be opened
+     */
+    public StreamConnection(Socket socket, boolean allowBinary,
+                            OutboundQueue.Settings outboundSettings,
+                            Executor writerPool)
+        throws IOException
+    {
+        this.socket = socket;
+        this.writerPool = writerPool;
+        remoteAddress = socket.getRemoteSocketAddress().toString();
+        outbound = new OutboundQueue(outboundSettings);
+        stream = PacketStream.accept(socket, allowBinary);
+    }
+
+    /**
+     * Blocks until the next packet arrives
+     *
+     * @return a packet or null if the object is not a packet
+     * @throws IOException if the socket is closed
+     * @throws ClassNotFoundException if the object can't be decoded
+     */
+    public Packet readPacket() throws IOException, ClassNotFoundException
+    {
+        return stream.readPacket();
+    }
+
+    @Override
+    public void sendPacket(EncodedPacket packet)
+    {
+        try
+        {
+            write(packet.getFrame(stream.getFormat()));
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Queues an encoded packet and starts the writer if it's not running
+     *
+     * @param frame packet encoded in the format of this connection
+     */
+    private void write(byte[] frame)
+    {
+        if (!outbound.offer(frame))
+        {
+            // the user is too slow, the reading thread cleans up
+            close();
+            return;
+        }
+
+        if (writerScheduled.compareAndSet(false, true))
+            writerPool.execute(this::drain);
+    }
+
+    // writes queued packets until the queue is empty
+    private void drain()
+    {
+        try
+        {
+            while (true)
+            {
+                byte[] frame;
+
+                while ((frame = outbound.poll()) != null)
+                    stream.writeFrame(frame);
+
+                stream.flush();
+                writerScheduled.set(false);
+
+                // a packet queued after the last poll has no writer yet
+                if (outbound.isEmpty()
+                    || !writerScheduled.compareAndSet(false, true))
+                    return;
+            }
+        }
+        catch (IOException ex)
+        {
+            writerScheduled.set(false);
+            close();
+        }
+    }
+
+    @Override
+    public Socket getSocket()
+    {
+        return socket;
+    }
+
+    @Override
+    public String getRemoteAddress()
+    {
+        return remoteAddress;
+    }
+
+    @Override
+    public boolean isClosed()
+    {
+        return socket.isClosed();
+    }
+
+    @Override
+    public void close()
+    {
+        outbound.close();
+
+        try
+        {
+            socket.close();
+        }
+        catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package com.kwanii.chat.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's timers: log schedules, maintenance and room publishes,
+ * thousands of them on one timer thread.
+ *
+ * A hierarchical timing wheel. Time is counted in ticks, a timeout is kept
+ * in a bucket by its expiry tick written in base WHEEL_SIZE: level 0 holds
+ * the timeouts of the current round of ticks by their last digit, level 1
+ * the next rounds by their second digit and so on. When the ticks reach a
+ * bucket of a higher level its timeouts move down a level, a timeout moves
+ * once per level, so adding, expiring and cancelling cost the same with
+ * ten or ten thousand timeouts.
+ *
+ * Only the timer thread touches the buckets. Other threads put a timeout
+ * changed, added, cancelled or moved, in a lock-free queue the timer
+ * thread reads when it wakes, once however often it changed meanwhile.
+ * The timer thread sleeps until the next tick that expires or moves a
+ * timeout, a change due before that tick wakes it.
+ * Expired tasks run on a bounded pool, never on the timer thread unless
+ * the pool is full.
+ */
+public class TimerWheel
+{
+    // buckets of a level, a power of 2
+    final public static int WHEEL_SIZE = 512;
+
+    final private static int BITS = Integer.numberOfTrailingZeros(WHEEL_SIZE);
+
+    // levels that hold any tick of a long
+    final private static int LEVELS = (63 + BITS - 1) / BITS;
+
+    // states of a timeout
+    final private static int WAITING = 0;
+
+    final private static int EXPIRED = 1;
+
+    final private static int CANCELLED = 2;
+
+    final private static AtomicIntegerFieldUpdater<Timeout> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    final private static AtomicIntegerFieldUpdater<Timeout> QUEUED =
+        AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "queued");
+
+    // length of a tick (ns)
+    final private long tickNanos;
+
+    // time of tick 0 (ns)
+    final private long start = System.nanoTime();
+
+    // buckets by level, a level is made when a timeout needs it
+    final private Timeout[][] wheels = new Timeout[LEVELS][];
+
+    // timeouts changed by other threads, read by the timer thread
+    final private ConcurrentLinkedQueue<Timeout> changes =
+        new ConcurrentLinkedQueue<>();
+
+    // the last tick done, written by the timer thread
+    private long current;
+
+    // timeouts in the buckets, for the timer thread
+    private int linked;
+
+    final private ThreadPoolExecutor executor;
+
+    final private Thread timer;
+
+    // the tick the timer thread sleeps until, Long.MAX_VALUE with no
+    // timeout linked and 0 while it is awake
+    private volatile long wakeTick;
+
+    private volatile boolean running = true;
+
+    // timeouts waiting, expired, cancelled and run on the timer thread
+    final private AtomicInteger pending = new AtomicInteger();
+
+    final private AtomicLong expired = new AtomicLong();
+
+    final private AtomicLong cancelled = new AtomicLong();
+
+    final private AtomicLong overflowed = new AtomicLong();
+
+    /**
+     * Starts the timer thread
+     *
+     * @param tickMillis length of a tick (ms), timeouts expire on a tick
+     * @param threads threads running the tasks expired
+     * @param queue tasks waiting for a thread, more run on the timer thread
+     */
+    public TimerWheel(long tickMillis, int threads, int queue)
+    {
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+
+        AtomicInteger count = new AtomicInteger();
+
+        executor = new ThreadPoolExecutor(threads, threads, 0L,
+            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queue)),
+            task ->
+            {
+                Thread thread = new Thread(task, "timer-task-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            },
+            (task, pool) ->
+            {
+                // a full pool delays the ticks rather than losing a task
+                overflowed.incrementAndGet();
+
+                if (!pool.isShutdown())
+                    task.run();
+            });
+
+        timer = new Thread(this::run, "timer-wheel");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    /**
+     * Runs a task once after a delay, called by any thread
+     *
+     * @param task task to run
+     * @param delay delay before the task runs
+     * @param unit unit of the delay
+     * @return timeout to cancel or reschedule the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        Timeout timeout = new Timeout(task, 0);
+        timeout.expires = tickOf(delay, unit);
+
+        pending.incrementAndGet();
+        change(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * Runs a task again and again with a delay between the end of a run and
+     * the start of the next, until its timeout is cancelled
+     *
+     * @param task task to run
+     * @param delay delay before each run
+     * @param unit unit of the delay
+     * @return timeout to cancel the task
+     */
+    public Timeout scheduleWithFixedDelay(Runnable task, long delay, TimeUnit unit)
+    {
+        Timeout timeout = new Timeout(task, Math.max(1, unit.toNanos(delay)));
+        timeout.expires = tickOf(delay, unit);
+
+        pending.incrementAndGet();
+        change(timeout);
+
+        return timeout;
+    }
+
+    // the tick a delay from now ends on, never before the next tick
+    private long tickOf(long delay, TimeUnit unit)
+    {
+        long nanos = System.nanoTime() - start + Math.max(0, unit.toNanos(delay));
+
+        return (nanos + tickNanos - 1) / tickNanos;
+    }
+
+    private void change(Timeout timeout)
+    {
+        // a timeout in the queue already is read with its last change
+        if (!QUEUED.compareAndSet(timeout, 0, 1))
+            return;
+
+        changes.add(timeout);
+
+        // the timer thread sleeps until its next bucket with a timeout
+        if (timeout.expires < wakeTick)
+            LockSupport.unpark(timer);
+    }
+
+    private void run()
+    {
+        while (running)
+        {
+            applyChanges();
+
+            long now = (System.nanoTime() - start) / tickNanos;
+
+            while (current < now)
+            {
+                current++;
+                advance(current);
+                applyChanges();
+            }
+
+            long next = nextTick();
+            wakeTick = next;
+
+            // a change added before wakeTick was set isn't missed
+            if (changes.isEmpty() && running)
+            {
+                if (next == Long.MAX_VALUE)
+                    LockSupport.park(this);
+                else
+                    LockSupport.parkNanos(this,
+                        start + next * tickNanos - System.nanoTime());
+            }
+
+            wakeTick = 0;
+        }
+    }
+
+    /**
+     * Finds the next tick with work: the first bucket of level 0 after the
+     * current tick, else the start of the first bucket of a higher level.
+     * The buckets of a level up to the current tick's digit are empty, so
+     * the lowest level with a timeout has the tick and empty levels are
+     * skipped.
+     *
+     * @return the tick, Long.MAX_VALUE if no timeout is linked
+     */
+    private long nextTick()
+    {
+        if (linked == 0)
+            return Long.MAX_VALUE;
+
+        for (int level = 0; level < LEVELS; level++)
+        {
+            Timeout[] wheel = wheels[level];
+
+            if (wheel == null)
+                continue;
+
+            int shift = BITS * level;
+            long digits = current >>> shift;
+            int first = (int) (digits & (WHEEL_SIZE - 1)) + 1;
+
+            for (int index = first; index < WHEEL_SIZE; index++)
+            {
+                // the higher digits of the current tick and the bucket's
+                if (wheel[index] != null)
+                    return ((digits & ~(long) (WHEEL_SIZE - 1)) | index) << shift;
+            }
+        }
+
+        return current + 1;
+    }
+
+    /**
+     * Puts the timeouts changed by other threads in their buckets
+     */
+    private void applyChanges()
+    {
+        for (Timeout timeout; (timeout = changes.poll()) != null; )
+        {
+            // changes from now on queue it again
+            timeout.queued = 0;
+
+            if (timeout.bucket != null)
+                unlink(timeout);
+
+            if (timeout.state == WAITING)
+                insert(timeout);
+        }
+    }
+
+    /**
+     * Does the work of a tick: moves the timeouts of the higher buckets it
+     * reaches down a level, then expires the timeouts of its bucket
+     */
+    private void advance(long tick)
+    {
+        for (int level = LEVELS - 1; level > 0; level--)
+        {
+            // the tick starts a bucket of the level when its lower digits are 0
+            if ((tick & ((1L << (BITS * level)) - 1)) != 0 || wheels[level] == null)
+                continue;
+
+            int index = (int) (tick >>> (BITS * level)) & (WHEEL_SIZE - 1);
+            Timeout timeout = wheels[level][index];
+
+            while (timeout != null)
+            {
+                Timeout next = timeout.next;
+                unlink(timeout);
+                insert(timeout);
+                timeout = next;
+            }
+        }
+
+        if (wheels[0] == null)
+            return;
+
+        Timeout timeout = wheels[0][(int) tick & (WHEEL_SIZE - 1)];
+
+        // insert() expires them, or moves one rescheduled meanwhile
+        while (timeout != null)
+        {
+            Timeout next = timeout.next;
+            unlink(timeout);
+            insert(timeout);
+            timeout = next;
+        }
+    }
+
+    /**
+     * Puts a timeout in the bucket of its expiry, or expires it if the
+     * tick passed. The level is the highest digit where the expiry and the
+     * current tick differ.
+     */
+    private void insert(Timeout timeout)
+    {
+        long expires = timeout.expires;
+
+        if (expires <= current)
+        {
+            expire(timeout);
+            return;
+        }
+
+        int level = (63 - Long.numberOfLeadingZeros(expires ^ current)) / BITS;
+
+        if (wheels[level] == null)
+            wheels[level] = new Timeout[WHEEL_SIZE];
+
+        Timeout[] wheel = wheels[level];
+        int index = (int) (expires >>> (BITS * level)) & (WHEEL_SIZE - 1);
+
+        timeout.bucket = wheel;
+        timeout.index = index;
+        timeout.prev = null;
+        timeout.next = wheel[index];
+
+        if (wheel[index] != null)
+            wheel[index].prev = timeout;
+
+        wheel[index] = timeout;
+        linked++;
+    }
+
+    private void unlink(Timeout timeout)
+    {
+        Timeout[] wheel = timeout.bucket;
+
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            wheel[timeout.index] = timeout.next;
+
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+
+        timeout.bucket = null;
+        timeout.prev = null;
+        timeout.next = null;
+        linked--;
+    }
+
+    private void expire(Timeout timeout)
+    {
+        if (!STATE.compareAndSet(timeout, WAITING, EXPIRED))
+            return;
+
+        pending.decrementAndGet();
+        expired.incrementAndGet();
+
+        executor.execute(timeout);
+    }
+
+    /**
+     * Stops the timer thread, the timeouts waiting never expire and the
+     * tasks running finish
+     */
+    public void close()
+    {
+        running = false;
+        LockSupport.unpark(timer);
+        executor.shutdown();
+    }
+
+    /**
+     * @return timeouts waiting to expire
+     */
+    public int getPending()
+    {
+        return pending.get();
+    }
+
+    public long getExpired()
+    {
+        return expired.get();
+    }
+
+    public long getCancelled()
+    {
+        return cancelled.get();
+    }
+
+    /**
+     * @return tasks run on the timer thread because the pool was full
+     */
+    public long getOverflowed()
+    {
+        return overflowed.get();
+    }
+
+    /**
+     * @return tasks waiting for a thread of the pool
+     */
+    public int getQueued()
+    {
+        return executor.getQueue().size();
+    }
+
+    public long getTickMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    /**
+     * A task waiting in the wheel
+     */
+    public class Timeout implements Runnable
+    {
+        final private Runnable task;
+
+        // delay between runs (ns), 0 runs once
+        final private long period;
+
+        // WAITING, EXPIRED or CANCELLED
+        volatile int state;
+
+        // tick the timeout expires on
+        volatile long expires;
+
+        // 1 while it is in the queue of changes
+        volatile int queued;
+
+        // links of its bucket, used by the timer thread only
+        private Timeout[] bucket;
+
+        private int index;
+
+        private Timeout prev;
+
+        private Timeout next;
+
+        Timeout(Runnable task, long period)
+        {
+            this.task = task;
+            this.period = period;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException ex)
+            {
+                ex.printStackTrace();
+            }
+
+            if (period > 0)
+                reschedule(period, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Stops the timeout, a task running finishes
+         *
+         * @return true if the task was waiting, it won't run
+         */
+        public boolean cancel()
+        {
+            while (true)
+            {
+                int current = state;
+
+                if (current == CANCELLED)
+                    return false;
+
+                if (STATE.compareAndSet(this, current, CANCELLED))
+                {
+                    cancelled.incrementAndGet();
+
+                    if (current != WAITING)
+                        return false;
+
+                    pending.decrementAndGet();
+
+                    // the timer thread takes it out of its bucket
+                    change(this);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Moves the expiry to a delay from now. A timeout expired waits
+         * again, so a task can schedule its next run with its own timeout.
+         *
+         * @param delay new delay
+         * @param unit unit of the delay
+         * @return false if the timeout is cancelled
+         */
+        public boolean reschedule(long delay, TimeUnit unit)
+        {
+            expires = tickOf(delay, unit);
+
+            while (true)
+            {
+                int current = state;
+
+                if (current == CANCELLED)
+                    return false;
+
+                if (STATE.compareAndSet(this, current, WAITING))
+                {
+                    if (current != WAITING)
+                        pending.incrementAndGet();
+
+                    change(this);
+                    return true;
+                }
+            }
+        }
+
+        public boolean isCancelled()
+        {
+            return state == CANCELLED;
+        }
+
+        /**
+         * @return time until the timeout expires (ms), 0 if it is due
+         */
+        public long getDelay()
+        {
+            return Math.max(0, TimeUnit.NANOSECONDS.toMillis(
+                start + expires * tickNanos - System.nanoTime()));
+        }
+    }
+}
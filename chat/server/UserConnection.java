@@ -0,0 +1,45 @@
+package com.kwanii.chat.server;
+
+import com.kwanii.chat.EncodedPacket;
+import com.kwanii.chat.Packet;
+
+import java.net.Socket;
+
+/**
+ * A client connection the server sends packets to.
+ * Implemented by the blocking stream transport and the nio transport.
+ */
+public interface UserConnection
+{
+    /**
+     * Sends the packet to the client, errors are printed not thrown
+     *
+     * @param packet packet to send
+     */
+    default void sendPacket(Packet packet)
+    {
+        sendPacket(new EncodedPacket(packet));
+    }
+
+    /**
+     * Sends a packet shared by many users. The connection queues the frame
+     * of its format, encoded only by the first connection that needs it.
+     *
+     * @param packet packet to send
+     */
+    void sendPacket(EncodedPacket packet);
+
+    /**
+     * @return the socket of this connection
+     */
+    Socket getSocket();
+
+    /**
+     * @return remote socket address, kept after the connection is closed
+     */
+    String getRemoteAddress();
+
+    boolean isClosed();
+
+    void close();
+}
@@ -2,7 +2,8 @@ package com.kwanii.chat.server;
 
 import java.net.Socket;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * this object used for User's information
@@ -16,8 +17,8 @@ public class UserInfo
 
     final private String ipAddress;
 
-    // rooms this user is connecting to
-    final private HashSet<String> roomIdSet = new HashSet<>();
+    // rooms this user is connecting to, read by the window and other users
+    final private Set<String> roomIdSet = ConcurrentHashMap.newKeySet();
 
     final private String timeLoggedIn = new Date().toString();
 
@@ -29,6 +30,21 @@ public class UserInfo
         ipAddress = socket.getRemoteSocketAddress().toString().split("/")[1];
     }
 
+    /**
+     * Gets the IP address of a remote address, e.g. "/10.0.0.1:5000"
+     * or "host/10.0.0.1:5000" gives "10.0.0.1"
+     *
+     * @param address remote socket address as a string
+     * @return the address without the host name and the port
+     */
+    public static String hostOf(String address)
+    {
+        String host = address.substring(address.lastIndexOf('/') + 1);
+        int port = host.lastIndexOf(':');
+
+        return (port < 0) ? host : host.substring(0, port);
+    }
+
     public String getId()
     {
         return id;
@@ -60,7 +76,7 @@ public class UserInfo
         return roomIdSet.remove(roomId);
     }
 
-    public HashSet<String> getRoomIdSet()
+    public Set<String> getRoomIdSet()
     {
         return roomIdSet;
     }
@@ -0,0 +1,102 @@
+package com.kwanii.chat.server;
+
+import java.util.function.Consumer;
+
+/**
+ * Where user ids and their password hashes are kept. DBHandler hashes and
+ * verifies passwords, a store only keeps the results.
+ *
+ * Implementations are called by auth threads at the same time.
+ */
+public interface UserStore
+{
+    /**
+     * Checks the user id exists
+     *
+     * @param id user id
+     * @return true if the user id exists
+     */
+    boolean exists(String id);
+
+    /**
+     * Gets the password hash and the salt of a user
+     *
+     * @param id user id
+     * @return credentials or null if the user id doesn't exist
+     */
+    Credentials fetchCredentials(String id);
+
+    /**
+     * Adds a user unless the id exists, checked and added at once
+     *
+     * @param id user id
+     * @param hash password hash
+     * @param salt salt the password was hashed with
+     * @return true if the user is added, false if the id exists or it fails
+     */
+    boolean create(String id, byte[] hash, byte[] salt);
+
+    /**
+     * Replaces the password hash of a user
+     *
+     * @param id user id
+     * @param hash new password hash
+     * @param salt salt the password was hashed with
+     * @return true if the hash is replaced, false if the id doesn't exist
+     */
+    boolean update(String id, byte[] hash, byte[] salt);
+
+    /**
+     * Passes every user id to the action without holding them all
+     *
+     * @param action called with each user id
+     * @return true if all the ids are passed
+     */
+    boolean forEachId(Consumer<String> action);
+
+    /**
+     * Prepares the store before the first user logs in
+     *
+     * @return true if the store can be used
+     */
+    default boolean connect()
+    {
+        return true;
+    }
+
+    /**
+     * @return statistics shown in the server status
+     */
+    default String getStatus()
+    {
+        return "";
+    }
+
+    default void close() {}
+
+    /**
+     * Password hash and salt of a user
+     */
+    final class Credentials
+    {
+        final private byte[] hash;
+
+        final private byte[] salt;
+
+        public Credentials(byte[] hash, byte[] salt)
+        {
+            this.hash = hash;
+            this.salt = salt;
+        }
+
+        public byte[] getHash()
+        {
+            return hash;
+        }
+
+        public byte[] getSalt()
+        {
+            return salt;
+        }
+    }
+}
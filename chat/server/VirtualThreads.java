@@ -0,0 +1,70 @@
+package com.kwanii.chat.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual thread support looked up at run time.
+ * The server builds for Java 8 and uses virtual threads on Java 21 or later.
+ */
+public class VirtualThreads
+{
+    // Executors.newVirtualThreadPerTaskExecutor() or null
+    final private static Method NEW_EXECUTOR = findExecutorFactory();
+
+    private static Method findExecutorFactory()
+    {
+        try
+        {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        }
+        catch (NoSuchMethodException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the running JVM has virtual threads
+     */
+    public static boolean isSupported()
+    {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task
+     *
+     * @return executor service
+     * @throws UnsupportedOperationException if the JVM has no virtual threads
+     */
+    public static ExecutorService newExecutor()
+    {
+        if (NEW_EXECUTOR == null)
+            throw new UnsupportedOperationException(
+                "Virtual threads need Java 21 or later");
+
+        try
+        {
+            return (ExecutorService) NEW_EXECUTOR.invoke(null);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new UnsupportedOperationException(ex);
+        }
+    }
+
+    /**
+     * Makes the JVM print the stack of a virtual thread that blocks while
+     * pinned to its carrier. It must be set before the first virtual thread
+     * starts.
+     *
+     * @param mode "short", "full" or "off"
+     */
+    public static void tracePinnedThreads(String mode)
+    {
+        if (mode.equals("short") || mode.equals("full"))
+            System.setProperty("jdk.tracePinnedThreads", mode);
+    }
+}
@@ -1,7 +1,7 @@
 package com.kwanii.chat.user;
 
+import com.kwanii.chat.Nullable;
 import com.kwanii.chat.Packet;
-import com.sun.istack.internal.Nullable;
 import javafx.application.Platform;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.SimpleIntegerProperty;
@@ -1,8 +1,10 @@
 package com.kwanii.chat.user;
 
 
+import com.kwanii.chat.Nullable;
 import com.kwanii.chat.Packet;
-import com.sun.istack.internal.Nullable;
+import com.kwanii.chat.PacketStream;
+import com.kwanii.chat.WireFormat;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.beans.InvalidationListener;
@@ -22,8 +24,6 @@ import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.Date;
 import java.util.HashMap;
@@ -79,9 +79,11 @@ public class ChatUser extends Application
     // socket for connecting with ChatServer
     private Socket socket;
 
-    // stream objects for communicating with ChatServer
-    private ObjectOutputStream toServer;
-    private ObjectInputStream fromServer;
+    // reads and writes packets for communicating with ChatServer
+    private PacketStream serverStream;
+
+    // wire format asked when connecting, --codec=serialized turns it off
+    private WireFormat preferredFormat = WireFormat.BINARY;
 
     // control all long running thread
     private ExecutorService threadPool = Executors.newCachedThreadPool();
@@ -119,9 +121,18 @@ public class ChatUser extends Application
     // User object about my information
     private String myId;
 
+    // token from ACCEPT_LOGIN to log in again after a reconnect
+    private volatile String resumeToken;
+
     // user list
     private ListView<String> userListView = new ListView<>();
 
+    // presence version of the user list, deltas must follow it in sequence
+    private long presenceVersion;
+
+    // true from asking for the full user list until it arrives
+    private boolean listRequested;
+
     // threads scheduled in this object to remove triggers
     private ScheduledThreadPoolExecutor triggerTimers =
         new ScheduledThreadPoolExecutor(30);
@@ -148,12 +159,10 @@ public class ChatUser extends Application
             // consistently get packets
             while(!socket.isClosed())
             {
-                Object obj = fromServer.readObject();
+                Packet packet = serverStream.readPacket();
 
-                if (obj != null && obj instanceof Packet)
+                if (packet != null)
                 {
-                    Packet packet = (Packet)obj;
-
                     // check if the user is logged in
                     if (login.get())
                         handleUserPacket(packet);
@@ -200,11 +209,26 @@ public class ChatUser extends Application
             // create new socket to the server
             socket = new Socket(SERVER_IP, SERVER_PORT);
 
-            toServer = new ObjectOutputStream(socket.getOutputStream());
-            fromServer = new ObjectInputStream(socket.getInputStream());
+            serverStream = PacketStream.connect(socket, preferredFormat);
+
+            // the server doesn't negotiate, reconnect with serialization
+            if (serverStream == null)
+            {
+                socket.close();
+                preferredFormat = WireFormat.SERIALIZED;
+
+                socket = new Socket(SERVER_IP, SERVER_PORT);
+                serverStream = PacketStream.connect(socket, preferredFormat);
+            }
 
             // execute listener thread
             threadPool.execute(listenerOfServer);
+
+            // logged in before the connection was lost, resume the session
+            if (resumeToken != null && login.get())
+                sendPacket(new Packet.Builder(Packet.RESUME)
+                    .setSender(myId).setPassword(resumeToken)
+                    .setReceiver(Packet.SERVER).build());
         }
         catch (Exception ex)
         {
@@ -270,7 +294,9 @@ public class ChatUser extends Application
 
                 rootPane.getCenter().setDisable(true);
 
-                resetContents();
+                // the tabs are kept for the session to resume
+                if (resumeToken == null)
+                    resetContents();
 
                 lbConnection.setText("Offline");
                 lbConnection.setStyle("-fx-background-color: orangered;");
@@ -344,6 +370,9 @@ public class ChatUser extends Application
         List<String> args = getParameters().getRaw();
         taStatus.appendText(args.toString());
 
+        if ("serialized".equalsIgnoreCase(getParameters().getNamed().get("codec")))
+            preferredFormat = WireFormat.SERIALIZED;
+
         this.window = window;
         taStatus.setEditable(false);
 
@@ -655,6 +684,7 @@ public class ChatUser extends Application
 
                     sendPacket(packet);
 
+                    resumeToken = null;
                     login.set(false);
                 }
             });
@@ -748,6 +778,12 @@ public class ChatUser extends Application
                 // remove my id from the user list
                 packet.getUserList().remove(packet.getReceiver());
 
+                // deltas after this version follow
+                presenceVersion = packet.getVersion();
+                listRequested = false;
+
+                resumeToken = packet.getMessage();
+
                 // update the user list
                 userListView.getItems().setAll(packet.getUserList());
 
@@ -780,23 +816,44 @@ public class ChatUser extends Application
         switch (packet.getType())
         {
             case Packet.UPDATE_LIST:
+            case Packet.USER_JOINED:
+            case Packet.USER_LEFT:
+            {
+                updateUserList(packet);
+            }
+            break;
+
+            // the session is resumed after a reconnect
+            case Packet.ACCEPT_LOGIN:
             {
-                System.out.println("user list: " + packet.getUserList());
-                HashSet<String> newList = packet.getUserList();
+                resumeToken = packet.getMessage();
 
-                // remover myId in the user list
-                newList.remove(myId);
+                packet.getUserList().remove(myId);
+
+                presenceVersion = packet.getVersion();
+                listRequested = false;
 
                 Platform.runLater(() ->
                 {
-                    // remove users left (not in the new list)
-                    userListView.getItems().removeIf(p -> !newList.contains(p));
+                    userListView.getItems().setAll(packet.getUserList());
+
+                    taStatus.appendText(String.format(
+                        "[Resumed] ID: %s, Time: %s%n", myId, new Date()));
+                });
+            }
+            break;
+
+            // the session expired, login again
+            case Packet.REJECT_LOGIN:
+            {
+                resumeToken = null;
 
-                    // make new list have only new users
-                    newList.removeAll(userListView.getItems());
+                Platform.runLater(() ->
+                {
+                    showDialog(Alert.AlertType.ERROR, "Session expired",
+                        packet.getMessage(), true, null);
 
-                    // add new users
-                    userListView.getItems().addAll(newList);
+                    login.set(false);
                 });
             }
             break;
@@ -900,6 +957,69 @@ public class ChatUser extends Application
         }
     }
 
+    /**
+     * Applies a full user list or a presence delta. A delta that skips a
+     * version means some were lost, then the full list is requested and
+     * deltas are ignored until it arrives.
+     *
+     * @param packet UPDATE_LIST, USER_JOINED or USER_LEFT
+     */
+    private void updateUserList(Packet packet)
+    {
+        HashSet<String> newList = packet.getUserList();
+
+        // remover myId in the user list
+        newList.remove(myId);
+
+        if (packet.getType() == Packet.UPDATE_LIST)
+        {
+            presenceVersion = packet.getVersion();
+            listRequested = false;
+
+            Platform.runLater(() ->
+            {
+                // remove users left (not in the new list)
+                userListView.getItems().removeIf(p -> !newList.contains(p));
+
+                // make new list have only new users
+                newList.removeAll(userListView.getItems());
+
+                // add new users
+                userListView.getItems().addAll(newList);
+            });
+
+            return;
+        }
+
+        // the full list requested has this change already
+        if (listRequested || packet.getVersion() <= presenceVersion)
+            return;
+
+        if (packet.getVersion() != presenceVersion + 1)
+        {
+            listRequested = true;
+
+            // packets are sent on the application thread
+            Platform.runLater(() -> sendPacket(
+                new Packet.Builder(Packet.REQUEST_LIST).setSender(myId)
+                    .setReceiver(Packet.SERVER).build()));
+            return;
+        }
+
+        presenceVersion = packet.getVersion();
+
+        Platform.runLater(() ->
+        {
+            if (packet.getType() == Packet.USER_JOINED)
+            {
+                newList.removeAll(userListView.getItems());
+                userListView.getItems().addAll(newList);
+            }
+            else
+                userListView.getItems().removeAll(newList);
+        });
+    }
+
     // action to show dialog when a user click userListView
     private EventHandler<MouseEvent> userListListener = ev ->
     {
@@ -990,9 +1110,7 @@ public class ChatUser extends Application
     {
         try
         {
-            toServer.writeUnshared(packet);
-            toServer.flush();
-            toServer.reset();
+            serverStream.writePacket(packet);
         }
         catch (IOException ex)
         {